@@ -0,0 +1,260 @@
+package library;
+
+import java.io.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class implements the parts of a SnapshotStore shared by all the implementations: the manifest of each node,
+ * the delta snapshots and the retention. The implementations only store, read and delete the segments (see SnapshotSegment)
+ * and the manifests. The operations on the snapshots of a node are serialized by locking the object describing the node,
+ * the operations on different nodes run in parallel.
+ * @param <NodeType> the class describing the snapshots of a node in the implementation
+ * */
+abstract class AbstractSnapshotStore<NodeType extends AbstractSnapshotStore.NodeSnapshots> implements SnapshotStore {
+
+    /**
+     * The nodes that used the store, indexed by hostname and port
+     * */
+    private final ConcurrentHashMap<String, NodeType> nodes = new ConcurrentHashMap<>();
+
+    /**
+     * The snapshots of a node
+     * */
+    static class NodeSnapshots {
+        final String hostname;
+
+        final int port;
+
+        /**
+         * The manifest of the node, null until it is loaded
+         * */
+        SnapshotManifest manifest;
+
+        NodeSnapshots(String hostname, int port) {
+            this.hostname = hostname;
+            this.port = port;
+        }
+    }
+
+    /**
+     * This method creates the object describing the snapshots of a node, the first time the node uses the store
+     * @param hostname the hostname of the node
+     * @param port the port of the node
+     * */
+    protected abstract NodeType createNode(String hostname, int port);
+
+    /**
+     * This method loads the manifest of a node
+     * @param node the node
+     * @return the manifest, an empty one if the node hasn't saved any snapshot
+     * */
+    protected abstract SnapshotManifest loadManifest(NodeType node) throws IOException, ClassNotFoundException;
+
+    /**
+     * This method saves the manifest of a node after a change
+     * @param node the node
+     * */
+    protected abstract void saveManifest(NodeType node) throws IOException;
+
+    /**
+     * This method creates the segment of a new snapshot
+     * @param node the node saving the snapshot
+     * @param entry the manifest entry of the snapshot
+     * @return the stream to write the segment to, the segment is stored once the stream is closed
+     * */
+    protected abstract OutputStream newSegment(NodeType node, SnapshotManifest.Entry entry) throws IOException;
+
+    /**
+     * This method is called once the segment of a new snapshot has been written completely, before the snapshot
+     * is marked as complete in the manifest
+     * @param node the node saving the snapshot
+     * @param entry the manifest entry of the snapshot, with the size of the segment
+     * */
+    protected void segmentWritten(NodeType node, SnapshotManifest.Entry entry) throws IOException {}
+
+    /**
+     * This method reads the segment of a snapshot
+     * @param node the node that saved the snapshot
+     * @param entry the manifest entry of the snapshot
+     * @return the stream to read the segment from
+     * */
+    protected abstract InputStream readSegment(NodeType node, SnapshotManifest.Entry entry) throws IOException;
+
+    /**
+     * This method deletes the segment of a snapshot removed from the manifest
+     * @param node the node that saved the snapshot
+     * @param entry the manifest entry of the snapshot
+     * @return the bytes reclaimed
+     * */
+    protected abstract long deleteSegment(NodeType node, SnapshotManifest.Entry entry) throws IOException;
+
+    /**
+     * This method is called once the segments removed by a collection have been deleted
+     * @param node the node that saved the snapshots
+     * */
+    protected void segmentsDeleted(NodeType node) throws IOException {}
+
+    /**
+     * This method releases the resources held for a node, they are acquired again if the node uses the store again
+     * @param node the node
+     * */
+    protected void release(NodeType node) throws IOException {}
+
+    /**
+     * This method deletes all the segments and manifests, after all the nodes have been released
+     * */
+    protected abstract void deleteAll() throws IOException;
+
+    @Override
+    public <StateType, MessageType> long write(Snapshot<StateType, MessageType> snapshot, String hostname, int port, DeltaChain<StateType> deltaChain, Compression compression) throws IOException {
+        NodeType node = node(hostname, port);
+        synchronized (node) {
+            SnapshotManifest manifest;
+            try {
+                manifest = manifest(node);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Could not read the manifest", e);
+            }
+            StateType state = snapshot.state;
+            SnapshotManifest.Entry entry = manifest.add(snapshot.snapshotId);
+            try {
+                saveManifest(node);
+
+                Serializable delta = null;
+                String baseName = null;
+                if (deltaChain != null && deltaChain.getLastName() != null) {
+                    SnapshotManifest.Entry base = manifest.getByName(deltaChain.getLastName());
+                    delta = deltaChain.nextDelta(state, base != null && base.status == SnapshotManifest.Status.COMPLETE);
+                    baseName = delta != null ? base.name : null;
+                }
+                long size = SnapshotSegment.write(newSegment(node, entry), snapshot, delta, baseName, compression);
+
+                entry.baseName = baseName;
+                entry.size = size;
+                segmentWritten(node, entry);
+                manifest.complete(entry, size);
+                saveManifest(node);
+                if (deltaChain != null)
+                    deltaChain.saved(state, entry.name, delta != null);
+                return size;
+            } catch (IOException e) {
+                System.err.println("Could not write file ");
+                entry.status = SnapshotManifest.Status.FAILED;
+                try {
+                    saveManifest(node);
+                } catch (IOException ignored) {}
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public <StateType, MessageType> Snapshot<StateType, MessageType> read(int snapshotId, String hostname, int port) throws IOException, ClassNotFoundException {
+        Snapshot<StateType, MessageType> loadedSnapshot = new Snapshot<>(snapshotId);
+        NodeType node = node(hostname, port);
+        synchronized (node) {
+            SnapshotManifest.Entry entry = manifest(node).get(snapshotId);
+            if (entry != null && entry.status == SnapshotManifest.Status.COMPLETE) {
+                try {
+                    SnapshotSegment.StateRecord stateRecord = SnapshotSegment.read(readSegment(node, entry), entry.name, loadedSnapshot);
+                    loadedSnapshot.state = resolveState(node, stateRecord);
+                } catch (IOException e) {
+                    System.err.println("Could not read file");
+                    throw e;
+                } catch (ClassNotFoundException e){
+                    System.err.println("Could not cast deserialized object to the expected type");
+                    throw e;
+                }
+            }
+        }
+        return loadedSnapshot;
+    }
+
+    /**
+     * This method gets the state of a snapshot from its state record: if the record contains a delta, the state
+     * of the base snapshot is read (recursively, up to the last full state) and the delta is applied to it
+     * @param node the node that saved the snapshot
+     * @param stateRecord the state record read from the segment of the snapshot
+     * @return the state of the snapshot
+     * */
+    private <StateType> StateType resolveState(NodeType node, SnapshotSegment.StateRecord stateRecord) throws IOException, ClassNotFoundException {
+        if (stateRecord.baseFolder == null) {
+            return (StateType) stateRecord.value;
+        }
+        SnapshotManifest.Entry base = node.manifest.getByName(stateRecord.baseFolder);
+        if (base == null)
+            throw new FileNotFoundException("The base snapshot " + stateRecord.baseFolder + " has been deleted");
+        StateType previous = resolveState(node, SnapshotSegment.readState(readSegment(node, base), base.name));
+        return ((DeltaState<StateType>) previous).apply((Serializable) stateRecord.value);
+    }
+
+    @Override
+    public int getLastSnapshotId(String hostname, int port) throws IOException, ClassNotFoundException {
+        NodeType node = node(hostname, port);
+        synchronized (node) {
+            SnapshotManifest.Entry entry = manifest(node).getLastComplete();
+            return entry != null ? entry.snapshotId : -1;
+        }
+    }
+
+    @Override
+    public void pin(Integer snapshotId, String hostname, int port) throws IOException, ClassNotFoundException {
+        NodeType node = node(hostname, port);
+        synchronized (node) {
+            manifest(node).pin(snapshotId);
+        }
+    }
+
+    @Override
+    public List<SnapshotManifest.Entry> collect(RetentionPolicy policy, String hostname, int port) throws IOException, ClassNotFoundException {
+        NodeType node = node(hostname, port);
+        synchronized (node) {
+            List<SnapshotManifest.Entry> removed = manifest(node).collect(policy, System.currentTimeMillis());
+            if (removed.isEmpty())
+                return removed;
+            // the manifest is saved first: a crash while deleting leaves segments that are no more referenced, never the opposite
+            saveManifest(node);
+            for (SnapshotManifest.Entry entry : removed) {
+                entry.size = deleteSegment(node, entry);
+            }
+            segmentsDeleted(node);
+            return removed;
+        }
+    }
+
+    @Override
+    public void release(String hostname, int port) throws IOException {
+        NodeType node = nodes.get(hostname + "_" + port);
+        if (node != null) {
+            synchronized (node) {
+                release(node);
+            }
+        }
+    }
+
+    @Override
+    public void clear() throws IOException {
+        for (NodeType node : nodes.values()) {
+            synchronized (node) {
+                release(node);
+            }
+        }
+        nodes.clear();
+        deleteAll();
+    }
+
+    private NodeType node(String hostname, int port) {
+        return nodes.computeIfAbsent(hostname + "_" + port, key -> createNode(hostname, port));
+    }
+
+    /**
+     * This method returns the manifest of a node, loading it the first time. It must be called holding the lock of the node
+     * @param node the node
+     * */
+    private SnapshotManifest manifest(NodeType node) throws IOException, ClassNotFoundException {
+        if (node.manifest == null)
+            node.manifest = loadManifest(node);
+        return node.manifest;
+    }
+}
@@ -1,6 +1,8 @@
 package library;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 /**
  * This interface must be implemented by the application in order to use the library.
@@ -16,6 +18,22 @@ public interface AppConnector<MessageType, StateType> {
      */
     void handleIncomingMessage(String senderHostname, int senderPort, MessageType o);
 
+    /**
+     * This is the method for the application to handle, with a single call, the messages of a node that are waiting to be handled.
+     * The messages of a node are never handled by two calls at the same time, and the calls follow the order the messages have been sent.
+     * It is also used for the messages recorded by a snapshot, once it has been restored.
+     * The default implementation calls handleIncomingMessage for each message: applications can override it to
+     * apply the whole batch at once, for example with a single lock and a single updateState.
+     * @param senderHostname the hostname of the sender
+     * @param senderPort the port assigned to the RMI registry of the sender
+     * @param messages the messages that the remote node sent, in the order it sent them
+     */
+    default void handleIncomingMessages(String senderHostname, int senderPort, List<MessageType> messages) {
+        for (MessageType message : messages) {
+            handleIncomingMessage(senderHostname, senderPort, message);
+        }
+    }
+
     /**
      * This is the method for the application to handle a new connection from another node of the network.
      * When creating a link the library establish a bi-directional communication between the two nodes, so this function
@@ -45,4 +63,31 @@ public interface AppConnector<MessageType, StateType> {
      * @param connections an ArrayList of Entities of the restored connections
      */
     void handleRestoredConnections(ArrayList<Entity> connections);
+
+    /**
+     * This is the method that the library will invoke on the user when a snapshot completed on this node has been saved on disk.
+     * Snapshots are saved in background, so the method can be invoked after other snapshots have started.
+     * The default implementation does nothing.
+     * @param snapshotId the unique snapshot identifier
+     * @param error the exception that prevented the snapshot from being saved, null if it has been saved
+     */
+    default void handleSnapshotSaved(int snapshotId, Throwable error) {}
+
+    /**
+     * This is the method that the library will invoke on the user when snapshots saved on disk by this node have been deleted
+     * because the retention policy doesn't keep them (see Configuration.setRetentionPolicy).
+     * It is invoked by the background thread deleting the snapshots. The default implementation does nothing.
+     * @param snapshotIds the unique identifiers of the deleted snapshots
+     * @param reclaimedBytes the disk space reclaimed, in bytes
+     */
+    default void handleSnapshotsCollected(List<Integer> snapshotIds, long reclaimedBytes) {}
+
+    /**
+     * This is the method that the library will invoke on the user when the markers of a snapshot propagated by this node
+     * could not be delivered to some of the connected nodes. The snapshot can't complete on those nodes.
+     * The default implementation does nothing.
+     * @param snapshotId the unique snapshot identifier
+     * @param failures the exception thrown by each node that did not receive the marker
+     */
+    default void handleMarkerFailures(int snapshotId, Map<Entity, Throwable> failures) {}
 }
@@ -0,0 +1,20 @@
+package library;
+
+/**
+ * The compression of the saved snapshots that can be selected in the Configuration used to initialize the library.
+ * The codec is recorded in each snapshot, so snapshots saved with any compression can be restored
+ * */
+public enum Compression {
+    /**
+     * The state and the messages are saved as serialized by Java
+     * */
+    NONE,
+    /**
+     * Deflate at its default level: good reduction of the serialized data, at a moderate CPU cost
+     * */
+    DEFLATE,
+    /**
+     * Deflate at its fastest level: a smaller reduction, for a fraction of the CPU time of DEFLATE
+     * */
+    FAST
+}
@@ -0,0 +1,210 @@
+package library;
+
+/**
+ * This class collects the options that can be provided when initializing a DistributedSnapshot object.
+ * A Configuration created with the default constructor reproduces the default behaviour of the library.
+ * */
+public class Configuration {
+
+    /**
+     * The communication layer used to interact with the other nodes
+     * */
+    private TransportType transportType = TransportType.RMI;
+
+    /**
+     * The time a call to a remote node waits for its answer when using the NIO transport, in milliseconds, 0 to wait
+     * without limit. A remote node that doesn't answer in time is considered unreachable
+     * */
+    private int callTimeout = 60000;
+
+    /**
+     * The maximum number of delta snapshots saved after a full one, 0 to always save the full state.
+     * Deltas are used only if the state implements DeltaState
+     * */
+    private int deltaChainLength = 0;
+
+    /**
+     * The maximum number of completed snapshots waiting to be saved on disk, see DistributedSnapshot.flushSnapshots
+     * */
+    private int persistenceQueueCapacity = 16;
+
+    /**
+     * Where the snapshots are saved
+     * */
+    private StorageType storageType = StorageType.FILE;
+
+    /**
+     * The folder containing the snapshots, for the stores saving them on disk
+     * */
+    private String storageFolder = Storage.FOLDER;
+
+    /**
+     * The compression of the state and of the messages of the saved snapshots
+     * */
+    private Compression compression = Compression.NONE;
+
+    /**
+     * The snapshots kept on disk, null to keep all of them
+     * */
+    private RetentionPolicy retentionPolicy = null;
+
+    /**
+     * The maximum number of connected nodes messages and markers are sent to at the same time
+     * */
+    private int senderParallelism = 4;
+
+    /**
+     * The kind of threads running the work of the library, see ExecutionMode
+     * */
+    private ExecutionMode executionMode = ExecutionMode.PLATFORM_THREADS;
+
+    /**
+     * The maximum number of threads handing the received messages over to the application (AppConnector.handleIncomingMessage).
+     * The messages of a sender are always delivered one at a time, in the order they have been received
+     * */
+    private int deliveryParallelism = 4;
+
+    /**
+     * The maximum number of received messages of a sender waiting to be delivered to the application: beyond it the
+     * new messages of the sender are refused, and sent again by the sender, until the application catches up
+     * */
+    private int deliveryQueueCapacity = 4096;
+
+    /**
+     * The time the nodes have to save a snapshot started by this node, in milliseconds: afterwards the completion of the
+     * snapshot (see SnapshotHandle.completed) fails with a TimeoutException. 0 to wait without limit
+     * */
+    private long snapshotCompletionTimeout = 60000;
+
+    /**
+     * The time between two checks of the cached references to the remote nodes, in milliseconds: the nodes that don't
+     * answer are looked up again. 0 disables the checks, the references are then only looked up again when a call fails
+     * */
+    private long stubHealthCheckInterval = 5000;
+
+    /**
+     * The time a sender keeps sending again the messages refused by a busy node (see setDeliveryQueueCapacity), in
+     * milliseconds: afterwards the send fails with a ReceiverBusyException. 0 to send them again without limit
+     * */
+    private long busyRetryTimeout = 30000;
+
+    public TransportType getTransportType() {
+        return transportType;
+    }
+
+    public void setTransportType(TransportType transportType) {
+        this.transportType = transportType;
+    }
+
+    public int getCallTimeout() {
+        return callTimeout;
+    }
+
+    public void setCallTimeout(int callTimeout) {
+        this.callTimeout = callTimeout;
+    }
+
+    public int getDeltaChainLength() {
+        return deltaChainLength;
+    }
+
+    public void setDeltaChainLength(int deltaChainLength) {
+        this.deltaChainLength = deltaChainLength;
+    }
+
+    public int getPersistenceQueueCapacity() {
+        return persistenceQueueCapacity;
+    }
+
+    public void setPersistenceQueueCapacity(int persistenceQueueCapacity) {
+        this.persistenceQueueCapacity = persistenceQueueCapacity;
+    }
+
+    public StorageType getStorageType() {
+        return storageType;
+    }
+
+    public void setStorageType(StorageType storageType) {
+        this.storageType = storageType;
+    }
+
+    public String getStorageFolder() {
+        return storageFolder;
+    }
+
+    public void setStorageFolder(String storageFolder) {
+        this.storageFolder = storageFolder;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    public RetentionPolicy getRetentionPolicy() {
+        return retentionPolicy;
+    }
+
+    public void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+        this.retentionPolicy = retentionPolicy;
+    }
+
+    public int getSenderParallelism() {
+        return senderParallelism;
+    }
+
+    public void setSenderParallelism(int senderParallelism) {
+        this.senderParallelism = senderParallelism;
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    public void setExecutionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+    }
+
+    public int getDeliveryParallelism() {
+        return deliveryParallelism;
+    }
+
+    public void setDeliveryParallelism(int deliveryParallelism) {
+        this.deliveryParallelism = deliveryParallelism;
+    }
+
+    public int getDeliveryQueueCapacity() {
+        return deliveryQueueCapacity;
+    }
+
+    public void setDeliveryQueueCapacity(int deliveryQueueCapacity) {
+        this.deliveryQueueCapacity = deliveryQueueCapacity;
+    }
+
+    public long getSnapshotCompletionTimeout() {
+        return snapshotCompletionTimeout;
+    }
+
+    public void setSnapshotCompletionTimeout(long snapshotCompletionTimeout) {
+        this.snapshotCompletionTimeout = snapshotCompletionTimeout;
+    }
+
+    public long getStubHealthCheckInterval() {
+        return stubHealthCheckInterval;
+    }
+
+    public void setStubHealthCheckInterval(long stubHealthCheckInterval) {
+        this.stubHealthCheckInterval = stubHealthCheckInterval;
+    }
+
+    public long getBusyRetryTimeout() {
+        return busyRetryTimeout;
+    }
+
+    public void setBusyRetryTimeout(long busyRetryTimeout) {
+        this.busyRetryTimeout = busyRetryTimeout;
+    }
+}
@@ -0,0 +1,229 @@
+package library;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class hands the received messages over to the application (AppConnector.handleIncomingMessages).
+ * The messages of each sender wait in a lane of their own and are delivered in the order they have been received,
+ * while the lanes of different senders are delivered at the same time by a bounded pool of workers.
+ * A worker hands all the messages waiting in a lane to the application with a single call, up to a limit, then
+ * gives way to the other lanes, so that a busy sender doesn't starve the others.
+ * <p>
+ * A lane holding more messages than its capacity pushes back on the sender: the call receiving new messages
+ * waits a bounded time for the application to catch up (see awaitCapacity), then refuses them, so that they
+ * wait in the outbound queue of the sender instead of piling up in this node. The lanes are guarded by
+ * ReentrantLocks rather than monitors, so that a virtual thread waiting for capacity doesn't pin its carrier.
+ * @param <MessageType> this is the type that will be exchanged as a message between nodes
+ * */
+class DeliveryLanes<MessageType> {
+
+    /**
+     * Maximum number of messages of a lane delivered with a single call, before giving way to the other lanes
+     * */
+    private static final int MAX_DELIVERIES_PER_TURN = 256;
+
+    /**
+     * The messages received from a sender and not delivered yet
+     * */
+    private static class Lane<MessageType> {
+        final Entity sender;
+
+        final ArrayDeque<MessageType> messages = new ArrayDeque<>();
+
+        final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * Signalled each time a worker ends a turn or the lanes are shut down
+         * */
+        final Condition turnEnded = lock.newCondition();
+
+        /**
+         * The messages taken by the worker delivering the lane and not all delivered yet
+         * */
+        int inTurn;
+
+        /**
+         * True while a worker is delivering the messages of the lane, or is about to
+         * */
+        boolean delivering;
+
+        Lane(Entity sender) {
+            this.sender = sender;
+        }
+
+        int depth() {
+            return messages.size() + inTurn;
+        }
+    }
+
+    private final ConcurrentHashMap<Entity, Lane<MessageType>> lanes = new ConcurrentHashMap<>();
+
+    /**
+     * The workers delivering the lanes
+     * */
+    private final ExecutorService workers;
+
+    /**
+     * The number of messages a lane can hold before pushing back on the sender
+     * */
+    private final int laneCapacity;
+
+    private final AppConnector<MessageType, ?> appConnector;
+
+    private volatile boolean closed = false;
+
+    public DeliveryLanes(String name, ExecutionMode executionMode, int parallelism, int laneCapacity, AppConnector<MessageType, ?> appConnector) {
+        this.workers = executionMode.newBoundedExecutor(name, parallelism);
+        this.laneCapacity = laneCapacity;
+        this.appConnector = appConnector;
+    }
+
+    /**
+     * This method adds messages to the lane of their sender, after the ones already waiting
+     * @param sender the node that sent the messages
+     * @param messages the messages, in the order they have been sent
+     * */
+    void enqueue(Entity sender, List<MessageType> messages) {
+        Lane<MessageType> lane = lanes.computeIfAbsent(sender, Lane::new);
+        boolean startWorker;
+        lane.lock.lock();
+        try {
+            lane.messages.addAll(messages);
+            startWorker = !lane.delivering;
+            lane.delivering = true;
+        } finally {
+            lane.lock.unlock();
+        }
+        if (startWorker)
+            schedule(lane);
+    }
+
+    /**
+     * This method waits until the lane of the provided sender holds no more messages than its capacity, for at most
+     * the provided time. It must be called without holding the locks of the node, the application may need them
+     * to handle the messages
+     * @param sender the node that sent the messages
+     * @param timeout the maximum time to wait, in milliseconds
+     * @return false if the lane is still beyond its capacity once the time has passed
+     * */
+    boolean awaitCapacity(Entity sender, long timeout) {
+        Lane<MessageType> lane = lanes.get(sender);
+        if (lane == null)
+            return true;
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+        lane.lock.lock();
+        try {
+            while (lane.depth() > laneCapacity && !closed) {
+                if (remaining <= 0)
+                    return false;
+                remaining = lane.turnEnded.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lane.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of messages waiting to be delivered, for each sender that has some
+     * */
+    Map<Entity, Integer> getQueueDepth() {
+        HashMap<Entity, Integer> depth = new HashMap<>();
+        for (Lane<MessageType> lane : lanes.values()) {
+            int waiting;
+            lane.lock.lock();
+            try {
+                waiting = lane.depth();
+            } finally {
+                lane.lock.unlock();
+            }
+            if (waiting > 0)
+                depth.put(lane.sender, waiting);
+        }
+        return depth;
+    }
+
+    /**
+     * This method stops the workers: the messages not delivered yet are dropped and the senders waiting for capacity are released
+     * */
+    void shutdown() {
+        closed = true;
+        workers.shutdownNow();
+        for (Lane<MessageType> lane : lanes.values()) {
+            lane.lock.lock();
+            try {
+                lane.messages.clear();
+                lane.turnEnded.signalAll();
+            } finally {
+                lane.lock.unlock();
+            }
+        }
+    }
+
+    private void schedule(Lane<MessageType> lane) {
+        try {
+            workers.execute(() -> deliver(lane));
+        } catch (RejectedExecutionException e) {
+            // the node has been stopped
+            lane.lock.lock();
+            try {
+                lane.messages.clear();
+                lane.delivering = false;
+                lane.turnEnded.signalAll();
+            } finally {
+                lane.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * This method delivers the messages of a lane in order, then hands the lane back to the pool if more are waiting
+     * @param lane the lane to deliver
+     * */
+    private void deliver(Lane<MessageType> lane) {
+        ArrayList<MessageType> turn = new ArrayList<>();
+        lane.lock.lock();
+        try {
+            MessageType message;
+            while (turn.size() < MAX_DELIVERIES_PER_TURN && (message = lane.messages.poll()) != null) {
+                turn.add(message);
+            }
+            lane.inTurn = turn.size();
+        } finally {
+            lane.lock.unlock();
+        }
+        try {
+            appConnector.handleIncomingMessages(lane.sender.getHostname(), lane.sender.getPort(), Collections.unmodifiableList(turn));
+        } catch (RuntimeException e) {
+            // a failing batch doesn't stop the delivery of the next ones
+            System.err.println("The application failed to handle " + turn.size() + " messages from " + lane.sender);
+            e.printStackTrace();
+        }
+        boolean again;
+        lane.lock.lock();
+        try {
+            lane.inTurn = 0;
+            lane.turnEnded.signalAll();
+            again = !lane.messages.isEmpty() && !closed;
+            lane.delivering = again;
+        } finally {
+            lane.lock.unlock();
+        }
+        if (again)
+            schedule(lane);
+    }
+}
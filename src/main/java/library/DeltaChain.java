@@ -0,0 +1,68 @@
+package library;
+
+import java.io.Serializable;
+
+/**
+ * This class keeps track of the snapshots saved by a node when delta snapshots are enabled.
+ * Each snapshot is saved either with its full state (a base) or with the changes with respect
+ * to the previous snapshot saved by the node. After a number of deltas a full state is saved again,
+ * so that a restore never has to apply too many deltas.
+ * @param <StateType> this is the type that will be saved as the state of the application
+ * */
+class DeltaChain<StateType> {
+
+    /**
+     * The maximum number of deltas saved after a base
+     * */
+    private final int maxLength;
+
+    /**
+     * The state saved by the last snapshot, null if no snapshot has been saved yet
+     * */
+    private StateType lastState;
+
+    /**
+     * The name of the last snapshot saved in the SnapshotStore of the node
+     * */
+    private String lastName;
+
+    /**
+     * The number of deltas saved since the last base
+     * */
+    private int length = 0;
+
+    public DeltaChain(int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * This method computes the delta to save for a new snapshot
+     * @param state the state of the new snapshot
+     * @param lastAvailable true if the last snapshot saved can still be read from the store
+     * @return the changes with respect to the last snapshot, null if the full state must be saved
+     * */
+    public Serializable nextDelta(StateType state, boolean lastAvailable) {
+        if (lastState == null || length >= maxLength || !(state instanceof DeltaState) || !lastAvailable)
+            return null;
+        return ((DeltaState<StateType>) state).diff(lastState);
+    }
+
+    /**
+     * This method records that a snapshot has been saved
+     * @param state the state of the saved snapshot
+     * @param name the name of the snapshot in the store
+     * @param delta true if only the delta has been saved, false if the full state has been saved
+     * */
+    public void saved(StateType state, String name, boolean delta) {
+        lastState = state;
+        lastName = name;
+        length = delta ? length + 1 : 0;
+    }
+
+    /**
+     * @return the name of the last snapshot saved, the base of the next delta, null if no snapshot has been saved yet
+     * */
+    public String getLastName() {
+        return lastName;
+    }
+}
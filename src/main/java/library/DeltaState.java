@@ -0,0 +1,26 @@
+package library;
+
+import java.io.Serializable;
+
+/**
+ * This interface can be implemented by the state of the application to enable delta snapshots
+ * (see Configuration.setDeltaChainLength). Instead of the full state, a snapshot then stores only the
+ * changes with respect to the state of the previous snapshot saved by the same node.
+ * @param <StateType> this is the type that will be saved as the state of the application, the one implementing this interface
+ */
+public interface DeltaState<StateType> extends Serializable {
+    /**
+     * This is the method that the library will invoke to compute the changes made since a previous state
+     * @param previous the state saved by the previous snapshot, it must not be modified
+     * @return the changes that turn previous into this state, or null to save the full state
+     */
+    Serializable diff(StateType previous);
+
+    /**
+     * This is the method that the library will invoke on a previous state to rebuild a state from its changes.
+     * It must not modify this object
+     * @param delta the changes returned by diff
+     * @return a new state equal to the one diff was invoked on
+     */
+    StateType apply(Serializable delta);
+}
@@ -3,18 +3,27 @@ package library;
 import library.exceptions.*;
 
 import java.io.*;
+import java.nio.file.Paths;
 import java.rmi.*;
-import java.rmi.registry.Registry;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayDeque;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This is the main class of the distributed snapshot library. A DistributedSnapshot object must be created
- * in order to interact with the library. This implementation provides methods such as init, sendMessage,
+ * in order to interact with the library. This implementation provides methods such as init, sendMessage, sendMessages,
  * updateState, addConnection, removeConnection and initiateSnapshot.
  * @param <StateType> this is the type that will be used to store the application state
  * @param <MessageType> this is the type that will be exchanged as a message between nodes
@@ -26,9 +35,31 @@ public class DistributedSnapshot<StateType, MessageType> {
     protected final RemoteImplementation<StateType,MessageType> remoteImplementation = new RemoteImplementation<>();
 
     /**
-     * Lock object
+     * Taken by the operations that change the lifecycle or the connections of this node (init, joinNetwork, disconnect,
+     * removeNode and restoreLastSnapshot), so that they run one at a time. Sending messages, starting snapshots and
+     * updating the state don't take it: they check the state of the node (see NodeState) and take the nodeSnapshotLock
      * */
-    protected ReadWriteLock distributedSnapshotLock = new ReentrantReadWriteLock();
+    protected final ReentrantLock topologyLock = new ReentrantLock();
+
+    /**
+     * The duration of each phase of the last restore started by this node
+     * */
+    private volatile Map<RestorePhase, Duration> lastRestoreTimings = Collections.emptyMap();
+
+    /**
+     * Creates an instance that copies the states provided by the application through serialization
+     * (see StateCopier.serialization)
+     * */
+    public DistributedSnapshot() {
+    }
+
+    /**
+     * Creates an instance that copies the states provided by the application with the provided strategy
+     * @param stateCopier the strategy used to copy the state of the application, see StateCopier
+     * */
+    public DistributedSnapshot(StateCopier<StateType> stateCopier) {
+        remoteImplementation.stateCopier = Objects.requireNonNull(stateCopier);
+    }
 
     /**
      * This method is used to initialize a DistributedSnapshot object.
@@ -42,24 +73,53 @@ public class DistributedSnapshot<StateType, MessageType> {
      * @throws AlreadyInitialized this instance has been already initialized
      */
     public void init(String yourHostname, int rmiRegistryPort, AppConnector<MessageType, StateType> appConnector) throws RemoteException, AlreadyBoundException, AlreadyInitialized {
-        distributedSnapshotLock.writeLock().lock();
-        remoteImplementation.nodeStateLock.writeLock().lock();
+        init(yourHostname, rmiRegistryPort, appConnector, new Configuration());
+    }
+
+    /**
+     * This method is used to initialize a DistributedSnapshot object with the provided configuration.
+     * It sets the hostname, the port and the appConnector reference.
+     * It publishes the RemoteInterface through the selected transport in order to be reachable from other nodes.
+     * @param yourHostname the hostname the application can be reached at
+     * @param port the port used by the selected transport (the rmi registry port when using RMI)
+     * @param appConnector the reference to an appConnector implementation
+     * @param configuration the options used by this instance, see Configuration
+     * @throws RemoteException communication-related exception that may occur during remote calls
+     * @throws AlreadyBoundException the rmi registry has already bound a remote interface, try with another registry
+     * @throws AlreadyInitialized this instance has been already initialized
+     */
+    public void init(String yourHostname, int port, AppConnector<MessageType, StateType> appConnector, Configuration configuration) throws RemoteException, AlreadyBoundException, AlreadyInitialized {
+        topologyLock.lock();
         try {
-            if (remoteImplementation.nodeState != NodeState.STARTED)
+            if (remoteImplementation.nodeState.get() != NodeState.STARTED)
                 throw new AlreadyInitialized("You are trying to initialize an instance that is already initialized");
 
-            remoteImplementation.hostname = yourHostname;
-            remoteImplementation.port = rmiRegistryPort;
+            Transport<MessageType> transport = createTransport(configuration.getTransportType(), configuration.getCallTimeout());
+            transport.export(yourHostname, port, remoteImplementation);
 
-            RemoteInterface<MessageType> stub = (RemoteInterface<MessageType>) UnicastRemoteObject.exportObject(remoteImplementation, 0);
-            Registry registry = LocateRegistry.createRegistry(remoteImplementation.port);
-            registry.bind("RemoteInterface", stub);
+            remoteImplementation.hostname = yourHostname;
+            remoteImplementation.port = port;
+            remoteImplementation.transport = transport;
+            remoteImplementation.stubs = new StubCache<>("stub-health-check-" + port, transport, configuration.getStubHealthCheckInterval());
+            remoteImplementation.store = createStore(configuration.getStorageType(), configuration.getStorageFolder());
+            remoteImplementation.senderParallelism = configuration.getSenderParallelism();
+            remoteImplementation.snapshotCompletionTimeout = configuration.getSnapshotCompletionTimeout();
+            remoteImplementation.busyRetryTimeout = configuration.getBusyRetryTimeout();
+            remoteImplementation.executionMode = configuration.getExecutionMode();
+            remoteImplementation.executors = configuration.getExecutionMode().newTaskExecutor("snapshot-library-" + port);
+            remoteImplementation.senders = configuration.getExecutionMode().newBoundedExecutor("snapshot-sender-" + port, configuration.getSenderParallelism());
+            remoteImplementation.persister = new SnapshotPersister<>("snapshot-persister-" + port, configuration.getPersistenceQueueCapacity(), remoteImplementation.store, configuration.getCompression());
+            if (configuration.getDeltaChainLength() > 0)
+                remoteImplementation.deltaChain = new DeltaChain<>(configuration.getDeltaChainLength());
+            if (configuration.getRetentionPolicy() != null)
+                remoteImplementation.collector = new SnapshotCollector("snapshot-collector-" + port, configuration.getRetentionPolicy(), remoteImplementation.store, yourHostname, port, appConnector);
 
             remoteImplementation.appConnector = appConnector;
-            remoteImplementation.nodeState = NodeState.DETACHED;
+            remoteImplementation.deliveries = new DeliveryLanes<>("message-delivery-" + port, configuration.getExecutionMode(), configuration.getDeliveryParallelism(), configuration.getDeliveryQueueCapacity(), appConnector);
+            // the remote calls received so far have been ignored, from now on they find the fields set
+            remoteImplementation.moveTo(NodeState.STARTED, NodeState.DETACHED);
         } finally {
-            remoteImplementation.nodeStateLock.writeLock().unlock();
-            distributedSnapshotLock.writeLock().unlock();
+            topologyLock.unlock();
         }
     }
 
@@ -75,12 +135,11 @@ public class DistributedSnapshot<StateType, MessageType> {
      * @throws OperationForbidden thrown if an attempt to join the network is made through the node itself
      */
     public ArrayList<Entity> joinNetwork(String hostname, int port) throws RemoteException, NotBoundException, NotInitialized, OperationForbidden {
-        distributedSnapshotLock.writeLock().lock();
-        remoteImplementation.nodeStateLock.writeLock().lock();
+        topologyLock.lock();
         try {
-            if (remoteImplementation.nodeState == NodeState.STARTED)
+            if (remoteImplementation.nodeState.get() == NodeState.STARTED)
                 throw new NotInitialized("You must initialize the library and join a network before trying to disconnect from it");
-            if (remoteImplementation.nodeState != NodeState.DETACHED)
+            if (remoteImplementation.nodeState.get() != NodeState.DETACHED)
                 throw new OperationForbidden("You are already connected to a network!");
 
             if (Objects.equals(hostname, this.remoteImplementation.hostname) && port == this.remoteImplementation.port)
@@ -89,29 +148,29 @@ public class DistributedSnapshot<StateType, MessageType> {
             remoteImplementation.nodeSnapshotLock.writeLock().lock();
             ArrayList<Entity> networkNodes;
             try {
-                Registry registry = LocateRegistry.getRegistry(hostname, port);
-                RemoteInterface<MessageType> remoteInterface = (RemoteInterface<MessageType>) registry.lookup("RemoteInterface");
+                // another node may have connected to this one in the meantime (addMeBack)
+                if (remoteImplementation.nodeState.get() != NodeState.DETACHED)
+                    throw new OperationForbidden("You are already connected to a network!");
+                RemoteInterface<MessageType> remoteInterface = remoteImplementation.stubs.get(hostname, port);
                 networkNodes = remoteInterface.getConnections();
-                this.remoteImplementation.remoteNodes = new ArrayList<>(); //reset current node connections
+                this.remoteImplementation.remoteNodes = new RemoteNodeTable<>(); //reset current node connections
                 this.remoteImplementation.remoteNodes.add(new RemoteNode<>(hostname, port, remoteInterface));
                 remoteInterface.addMeBack(remoteImplementation.hostname, remoteImplementation.port);
                 for (Entity entry : networkNodes) {
                     if (!Objects.equals(entry.getHostname(), this.remoteImplementation.hostname) || entry.getPort() != this.remoteImplementation.port) {
-                        Registry nodeRegistry = LocateRegistry.getRegistry(entry.getHostname(), entry.getPort());
-                        RemoteInterface<MessageType> nodeRemoteInterface = (RemoteInterface<MessageType>) nodeRegistry.lookup("RemoteInterface");
+                        RemoteInterface<MessageType> nodeRemoteInterface = remoteImplementation.stubs.get(entry.getHostname(), entry.getPort());
                         remoteImplementation.remoteNodes.add(new RemoteNode<>(entry.getHostname(), entry.getPort(), nodeRemoteInterface));
                         nodeRemoteInterface.addMeBack(remoteImplementation.hostname, remoteImplementation.port);
                     }
                 }
+                remoteImplementation.moveTo(NodeState.DETACHED, NodeState.READY);
             } finally {
                 remoteImplementation.nodeSnapshotLock.writeLock().unlock();
             }
             networkNodes.add(new Entity(hostname, port));
-            remoteImplementation.nodeState = NodeState.READY;
             return networkNodes;
         } finally {
-            remoteImplementation.nodeStateLock.writeLock().unlock();
-            distributedSnapshotLock.writeLock().unlock();
+            topologyLock.unlock();
         }
     }
 
@@ -127,115 +186,199 @@ public class DistributedSnapshot<StateType, MessageType> {
      * @throws SnapshotInterruptException it's not possible to remove a node when a snapshot is running
      * @throws RestoreInProgress thrown if a restore of a snapshot is in progress and the user tries to send a message
      * @throws OperationForbidden thrown if an attempt to send a message to the node itself is made
+     * @throws ReceiverBusyException the remote node has refused the message for Configuration.setBusyRetryTimeout, it is behind on the messages of this node
      */
-    public void sendMessage(String hostname, int port, MessageType message) throws RemoteNodeNotFound, RemoteException, NotBoundException, NotInitialized, SnapshotInterruptException, RestoreInProgress, OperationForbidden {
-        distributedSnapshotLock.readLock().lock();
+    public void sendMessage(String hostname, int port, MessageType message) throws RemoteNodeNotFound, RemoteException, NotBoundException, NotInitialized, SnapshotInterruptException, RestoreInProgress, OperationForbidden, ReceiverBusyException {
+        sendMessages(hostname, port, Collections.singletonList(message));
+    }
+
+    /**
+     * This method is used to send a batch of messages to a specific node, grouping them into receiveMessages calls.
+     * The messages are received, and recorded in the running snapshots, in the order of the list.
+     * @param hostname the hostname of the remote node
+     * @param port the port associated to the rmi registry in the remote node
+     * @param messages the messages to send to the remote node
+     * @throws RemoteNodeNotFound the remote node is not found, you must first connect to it
+     * @throws RemoteException communication-related exception that may occur during remote calls
+     * @throws NotBoundException the remote node has not bound its remote implementation
+     * @throws NotInitialized this instance hasn't been initialized, you must do it first
+     * @throws SnapshotInterruptException it's not possible to remove a node when a snapshot is running
+     * @throws RestoreInProgress thrown if a restore of a snapshot is in progress and the user tries to send a message
+     * @throws OperationForbidden thrown if an attempt to send a message to the node itself is made
+     * @throws ReceiverBusyException the remote node has refused the messages for Configuration.setBusyRetryTimeout, it is behind on the messages of this node
+     */
+    public void sendMessages(String hostname, int port, List<MessageType> messages) throws RemoteNodeNotFound, RemoteException, NotBoundException, NotInitialized, SnapshotInterruptException, RestoreInProgress, OperationForbidden, ReceiverBusyException {
+        CompletableFuture<Void> delivery = enqueueMessages(hostname, port, messages);
         try {
-            remoteImplementation.nodeStateLock.readLock().lock();
-            try {
-                if (remoteImplementation.nodeState == NodeState.STARTED || remoteImplementation.nodeState == NodeState.DETACHED) {
-                    throw new NotInitialized("You must initialize the instance and connect to a network before sending any message");
-                }
-                if (remoteImplementation.nodeState == NodeState.RESTORING) {
-                    throw new RestoreInProgress("A restore is in progress, please wait until node is ready");
-                }
-            } finally {
-                remoteImplementation.nodeStateLock.readLock().unlock();
-            }
-            RemoteInterface<MessageType> remoteInterface;
-            remoteImplementation.nodeSnapshotLock.writeLock().lock();
-            try {
-                // send the message only if we are not sending the message to this node
-                if (!(hostname.equals(this.remoteImplementation.hostname) && port==this.remoteImplementation.port)) {
-                    remoteInterface = getRemoteInterface(hostname, port);
-                } else {
-                    throw new OperationForbidden("You cannot send a message to yourself");
-                }
-            } finally {
-                remoteImplementation.nodeSnapshotLock.writeLock().unlock();
-            }
-            try {
-                remoteInterface.receiveMessage(remoteImplementation.hostname, remoteImplementation.port, message);
-            } catch (RemoteException e) {
-                Registry nodeRegistry = LocateRegistry.getRegistry(hostname, port);
-                RemoteInterface<MessageType> nodeRemoteInterface = (RemoteInterface<MessageType>) nodeRegistry.lookup("RemoteInterface");
-                remoteImplementation.nodeSnapshotLock.writeLock().lock();
-                try {
-                    this.remoteImplementation.getRemoteNode(hostname, port).remoteInterface = nodeRemoteInterface; //set the new remoteInterface
-                } finally {
-                    remoteImplementation.nodeSnapshotLock.writeLock().unlock();
-                }
-                nodeRemoteInterface.receiveMessage(remoteImplementation.hostname, remoteImplementation.port, message);
-            }
-        } finally {
-            distributedSnapshotLock.readLock().unlock();
+            delivery.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for the delivery of the messages", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException)
+                throw (RemoteException) cause;
+            if (cause instanceof NotBoundException)
+                throw (NotBoundException) cause;
+            if (cause instanceof SnapshotInterruptException)
+                throw (SnapshotInterruptException) cause;
+            if (cause instanceof RestoreInProgress)
+                throw (RestoreInProgress) cause;
+            if (cause instanceof ReceiverBusyException)
+                throw (ReceiverBusyException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new UnexpectedException("Unexpected exception while sending the messages", (Exception) cause);
         }
     }
 
-    /** This method is used to update the state. It makes a deep copy to store inside the remoteImplementation
+    /**
+     * This method is used to send a message to a specific node without waiting for it to be received.
+     * The message is added to the outbound queue of the link, which is emptied by a sender in the background:
+     * messages sent to the same node are received in the same order they were sent.
+     * @param hostname the hostname of the remote node
+     * @param port the port associated to the rmi registry in the remote node
+     * @param message the message to send to the remote node
+     * @return a future completed once the remote node has received the message, or exceptionally with the exception that prevented the delivery
+     * (RestoreInProgress if a restore started before the message was received: it has been dropped)
+     * @throws RemoteNodeNotFound the remote node is not found, you must first connect to it
+     * @throws NotInitialized this instance hasn't been initialized, you must do it first
+     * @throws RestoreInProgress thrown if a restore of a snapshot is in progress and the user tries to send a message
+     * @throws OperationForbidden thrown if an attempt to send a message to the node itself is made
+     */
+    public CompletableFuture<Void> sendMessageAsync(String hostname, int port, MessageType message) throws RemoteNodeNotFound, NotInitialized, RestoreInProgress, OperationForbidden {
+        return enqueueMessages(hostname, port, Collections.singletonList(message));
+    }
+
+    /** This method is used to update the state. It makes a copy, with the configured StateCopier, to store inside the remoteImplementation
      * @param state the object to save
-     * @throws StateUpdateException something went wrong making a deep copy
+     * @throws StateUpdateException something went wrong making a copy
      * @throws RestoreInProgress thrown if a restore of a snapshot is in progress and the user tries to update the state of the node
      * @throws NotInitialized thrown if an attempt to update the state is made before the node is correctly initialized
      * */
     public void updateState(StateType state) throws StateUpdateException, RestoreInProgress, NotInitialized {
-        remoteImplementation.nodeStateLock.readLock().lock();
+        NodeState nodeState = remoteImplementation.nodeState.get();
+        if (nodeState == NodeState.STARTED) {
+            throw new NotInitialized("You must initialize the instance before saving the state");
+        }
+        if (nodeState == NodeState.RESTORING) {
+            throw new RestoreInProgress("A restore is in progress, please wait until node is ready");
+        }
+        if (remoteImplementation.stateProvider != null) {
+            return; // the state will be requested to the StateProvider when needed
+        }
+        StateType copy;
         try {
-            if (remoteImplementation.nodeState == NodeState.STARTED) {
-                throw new NotInitialized("You must initialize the instance before saving the state");
-            }
-            if (remoteImplementation.nodeState == NodeState.RESTORING) {
+            copy = remoteImplementation.stateCopier.copy(state); // assign currentState a copy of the state provided by the user
+        } catch (IOException e) {
+            StateUpdateException sue = new StateUpdateException("Problem in updating the state");
+            sue.setStackTrace(e.getStackTrace());
+            throw sue;
+        }
+        synchronized (remoteImplementation.currentStateLock) {
+            // a restore started while copying the state replaces it
+            if (remoteImplementation.nodeState.get() == NodeState.RESTORING)
                 throw new RestoreInProgress("A restore is in progress, please wait until node is ready");
-            }
-            synchronized (remoteImplementation.currentStateLock) {
-                try {
-                    this.remoteImplementation.currentState = deepClone(state); // assign currentState a deepCopy of the state provided by the user
-                } catch (IOException | ClassNotFoundException e) {
-                    StateUpdateException sue = new StateUpdateException("Problem in updating the state");
-                    sue.setStackTrace(e.getStackTrace());
-                    throw sue;
-                }
-            }
-        } finally {
-            remoteImplementation.nodeStateLock.readLock().unlock();
+            this.remoteImplementation.currentState = copy;
         }
     }
 
     /**
-     * This method is used to start a snapshot with the distributed snapshot algorithm
-     * @throws RemoteException communication-related exception that may occur during remote calls
-     * @throws DoubleMarkerException received multiple marker (same id) from the same link
-     * @throws UnexpectedMarkerReceived the sender node is not present in the remote nodes list
+     * This method is used to register a callback that provides the state only when a snapshot needs it.
+     * The library calls it when the local node starts a snapshot or receives the first marker of a snapshot,
+     * and makes a copy of the returned state at that moment: as long as a StateProvider is registered,
+     * the state doesn't need to be updated with updateState, and the states passed to updateState are ignored.
+     * The callback is invoked while the library holds its locks, so it must not call the library nor
+     * wait on locks held by threads that call the library.
+     * @param stateProvider the callback returning the current state, null to go back to updateState
+     * @throws NotInitialized thrown if an attempt to register the provider is made before the node is correctly initialized
+     * */
+    public void setStateProvider(StateProvider<StateType> stateProvider) throws NotInitialized {
+        if (remoteImplementation.nodeState.get() == NodeState.STARTED) {
+            throw new NotInitialized("You must initialize the instance before registering a state provider");
+        }
+        remoteImplementation.stateProvider = stateProvider;
+    }
+
+    /**
+     * This method is used to start a snapshot with the distributed snapshot algorithm.
+     * The markers are sent to all the connected nodes at the same time, at most Configuration.getSenderParallelism()
+     * of them concurrently, and the method returns once all of them have been delivered or have failed.
+     * Messages can be sent by other threads while the method waits for the markers (see initiateSnapshotAsync)
+     * @throws MarkerDeliveryException the marker could not be delivered to some of the connected nodes, the exception
+     * thrown by each of them is reported (e.g. RemoteException, DoubleMarkerException, UnexpectedMarkerReceived)
+     * @throws IOException communication-related exception that may occur during remote calls
      * @throws NotInitialized this instance hasn't been initialized, you must do it first
      * @throws RestoreInProgress thrown when trying to start a snapshot while a restore is in progress in this node
      * */
-    public void initiateSnapshot() throws IOException, DoubleMarkerException, UnexpectedMarkerReceived, NotInitialized, RestoreInProgress {
-        distributedSnapshotLock.writeLock().lock();
-        remoteImplementation.nodeStateLock.readLock().lock();
+    public void initiateSnapshot() throws IOException, NotInitialized, RestoreInProgress {
+        SnapshotHandle handle = initiateSnapshotAsync();
         try {
-            if (remoteImplementation.nodeState == NodeState.STARTED || remoteImplementation.nodeState == NodeState.DETACHED)
-                throw new NotInitialized("You must initialize the instance and connect to a network before starting a snapshot");
-            if (remoteImplementation.nodeState == NodeState.RESTORING)
-                throw new RestoreInProgress("A restore is in progress, please wait until node is ready");
-            remoteImplementation.nodeSnapshotLock.writeLock().lock();
-            int snapshotId;
-            try {
-                String snapshotIdString = remoteImplementation.hostname + remoteImplementation.port + remoteImplementation.localSnapshotCounter;
-                snapshotId = snapshotIdString.hashCode();
-                remoteImplementation.localSnapshotCounter++;
-                Snapshot<StateType, MessageType> snap = new Snapshot<>(snapshotId, remoteImplementation.currentState, remoteImplementation.remoteNodes);
-                remoteImplementation.runningSnapshots.add(snap);
-            } finally {
-                remoteImplementation.nodeSnapshotLock.writeLock().unlock();
-            }
+            handle.markersDelivered().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the delivery of the markers");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new UnexpectedException("Unexpected exception while sending the markers", (Exception) cause);
+        }
+    }
+
+    /**
+     * This method is used to start a snapshot with the distributed snapshot algorithm without waiting for the markers.
+     * The state of this node is recorded and the markers are added to the outbound queues of the links, ahead of the
+     * messages sent afterwards: messages being sent only wait for the state to be recorded, not for the markers to be delivered
+     * @return the handle of the snapshot, to wait for the delivery of the markers and for the snapshot to be saved by all the nodes
+     * @throws IOException the state of this node could not be recorded
+     * @throws NotInitialized this instance hasn't been initialized, you must do it first
+     * @throws RestoreInProgress thrown when trying to start a snapshot while a restore is in progress in this node
+     * */
+    public SnapshotHandle initiateSnapshotAsync() throws IOException, NotInitialized, RestoreInProgress {
+        LinkedHashMap<Entity, CompletableFuture<Void>> markers = new LinkedHashMap<>();
+        int snapshotId;
+        SnapshotCompletion completion;
+        // the write lock excludes the changes of the connected nodes and the messages being sent, only while the state is recorded
+        remoteImplementation.nodeSnapshotLock.writeLock().lock();
+        try {
+            checkReady("You must initialize the instance and connect to a network before starting a snapshot");
+            String snapshotIdString = remoteImplementation.hostname + remoteImplementation.port + remoteImplementation.localSnapshotCounter;
+            snapshotId = snapshotIdString.hashCode();
+            remoteImplementation.localSnapshotCounter++;
+            Snapshot<StateType, MessageType> snap = new Snapshot<>(snapshotId, remoteImplementation.captureState(), remoteImplementation.remoteNodes);
+            snap.initiator = new Entity(remoteImplementation.hostname, remoteImplementation.port);
+            completion = new SnapshotCompletion(snapshotId, snap.initiator);
+            remoteImplementation.completions.put(snapshotId, completion);
+            // whether all the nodes reported, the markers failed, the deadline passed or the caller gave up
+            completion.completed.whenComplete((report, error) -> remoteImplementation.completions.remove(snapshotId, completion));
+            if (remoteImplementation.snapshotCompletionTimeout > 0)
+                completion.completed.orTimeout(remoteImplementation.snapshotCompletionTimeout, TimeUnit.MILLISECONDS);
+            remoteImplementation.runningSnapshots.start(snap, remoteImplementation.remoteNodes);
             // Assumption from the text: no change in the network topology is allowed during a snapshot!
             for (RemoteNode<MessageType> remoteNode : remoteImplementation.remoteNodes) {
-                remoteNode.remoteInterface.receiveMarker(remoteImplementation.hostname, remoteImplementation.port, remoteImplementation.hostname, remoteImplementation.port, snapshotId);
+                markers.put(new Entity(remoteNode.hostname, remoteNode.port),
+                        remoteImplementation.enqueue(remoteNode, new Outbound<>(remoteImplementation.hostname, remoteImplementation.port, snapshotId)));
             }
         } finally {
-            remoteImplementation.nodeStateLock.readLock().unlock();
-            distributedSnapshotLock.writeLock().unlock();
+            remoteImplementation.nodeSnapshotLock.writeLock().unlock();
         }
+        // a failed marker doesn't stop the wait: the failures of all the nodes are reported together
+        CompletableFuture<Void> delivered = CompletableFuture.allOf(markers.values().toArray(new CompletableFuture<?>[0]))
+                .handle((ignored, error) -> {
+                    Map<Entity, Throwable> failures = RemoteImplementation.collectFailures(markers);
+                    if (!failures.isEmpty())
+                        throw new CompletionException(new MarkerDeliveryException("Could not deliver the marker of snapshot " + snapshotId + " to " + failures.keySet(), failures));
+                    return null;
+                });
+        // without all the markers some nodes never save their part
+        delivered.whenComplete((ignored, error) -> {
+            if (error != null)
+                completion.completed.completeExceptionally(error.getCause());
+        });
+        return new SnapshotHandle(snapshotId, delivered, completion.completed);
     }
 
     /**
@@ -247,130 +390,159 @@ public class DistributedSnapshot<StateType, MessageType> {
      * @throws RestoreInProgress thrown if an attempt to disconnect this node from the network is made while a restore is in progress
      * */
     public void disconnect() throws OperationForbidden, SnapshotInterruptException, NotInitialized, RestoreInProgress {
-        distributedSnapshotLock.writeLock().lock();
-        remoteImplementation.nodeStateLock.writeLock().lock();
+        topologyLock.lock();
         try {
-            if (remoteImplementation.nodeState == NodeState.STARTED || remoteImplementation.nodeState == NodeState.DETACHED)
+            NodeState nodeState = remoteImplementation.nodeState.get();
+            if (nodeState == NodeState.STARTED || nodeState == NodeState.DETACHED)
                 throw new NotInitialized("You must initialize the library and join a network before trying to disconnect from it");
-            if (remoteImplementation.nodeState == NodeState.RESTORING)
+            if (nodeState == NodeState.RESTORING)
                 throw new RestoreInProgress("A restore is in progress, please wait until node is ready");
-            remoteImplementation.nodeState = NodeState.DISCONNECTING;
-        } finally {
-            remoteImplementation.nodeStateLock.readLock().lock();
-            remoteImplementation.nodeStateLock.writeLock().unlock();
-            try {
-                remoteImplementation.nodeSnapshotLock.writeLock().lock();
-                try {
-                    // Since no change in the network topology is allowed during a snapshot
-                    // this function WON'T BE CALLED if any snapshot is running THIS IS AN ASSUMPTION FROM THE ASSIGNMENT
-                    if (!remoteImplementation.runningSnapshots.isEmpty()) {
-                        throw new OperationForbidden("Unable to disconnect from the network while snapshots are running");
-                    }
-                    for (RemoteNode<MessageType> remoteNode : remoteImplementation.remoteNodes) {
-                        try {
-                            remoteNode.remoteInterface.removeMe(remoteImplementation.hostname, remoteImplementation.port);
-                        } catch (RemoteException ignored) {}
-                    }
-                    remoteImplementation.remoteNodes = new ArrayList<>();
-                } finally {
-                    remoteImplementation.nodeSnapshotLock.writeLock().unlock();
-                }
-            } finally {
-                remoteImplementation.nodeStateLock.readLock().unlock();
-            }
-            remoteImplementation.nodeStateLock.writeLock().lock();
             remoteImplementation.nodeSnapshotLock.writeLock().lock();
             try {
-                if (remoteImplementation.remoteNodes.size()==0)
-                    remoteImplementation.nodeState = NodeState.DETACHED;
+                // from now on no message can be sent, the remote calls received are ignored
+                if (!remoteImplementation.moveTo(NodeState.READY, NodeState.DISCONNECTING))
+                    throw new NotInitialized("You must initialize the library and join a network before trying to disconnect from it");
+
+                // Since no change in the network topology is allowed during a snapshot
+                // this function WON'T BE CALLED if any snapshot is running THIS IS AN ASSUMPTION FROM THE ASSIGNMENT
+                if (!remoteImplementation.runningSnapshots.isEmpty()) {
+                    remoteImplementation.moveTo(NodeState.DISCONNECTING, NodeState.READY);
+                    throw new OperationForbidden("Unable to disconnect from the network while snapshots are running");
+                }
+                for (RemoteNode<MessageType> remoteNode : remoteImplementation.remoteNodes) {
+                    try {
+                        remoteNode.remoteInterface.removeMe(remoteImplementation.hostname, remoteImplementation.port);
+                    } catch (RemoteException ignored) {}
+                }
+                remoteImplementation.remoteNodes = new RemoteNodeTable<>();
+                remoteImplementation.moveTo(NodeState.DISCONNECTING, NodeState.DETACHED);
             } finally {
                 remoteImplementation.nodeSnapshotLock.writeLock().unlock();
-                remoteImplementation.nodeStateLock.writeLock().unlock();
             }
-            distributedSnapshotLock.writeLock().unlock();
+        } finally {
+            topologyLock.unlock();
         }
     }
 
     /**
-     * This method is used to un-export and unbind this remoteImplementation in the RMI registry
+     * This method is used to un-export this remoteImplementation from the transport (un-export and unbind it in the RMI registry when using RMI)
      * @throws RemoteException communication-related exception that may occur during remote calls
      * @throws NotBoundException thrown if an attempt is made to lookup or unbind in the registry a name that has no associated binding.
      */
     public void stop() throws NotBoundException, RemoteException {
-        UnicastRemoteObject.unexportObject(remoteImplementation, true);
-        LocateRegistry.getRegistry(remoteImplementation.port).unbind("RemoteInterface");
+        remoteImplementation.transport.unexport();
+        remoteImplementation.persister.shutdown();
+        remoteImplementation.deliveries.shutdown();
+        remoteImplementation.stubs.shutdown();
+        if (remoteImplementation.collector != null)
+            remoteImplementation.collector.shutdown();
+        // the tasks already queued are completed, the threads end afterwards
+        remoteImplementation.senders.shutdown();
+        remoteImplementation.executors.shutdown();
+        // the snapshots still waiting to be saved need the store
+        remoteImplementation.persister.flush().thenRun(() -> {
+            try {
+                remoteImplementation.store.release(remoteImplementation.hostname, remoteImplementation.port);
+            } catch (IOException e) {
+                System.err.println("Could not release the snapshot store");
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * This method is used to know how much disk space has been reclaimed by deleting the snapshots that the retention
+     * policy doesn't keep. Each deletion is also notified with AppConnector.handleSnapshotsCollected
+     * @return the bytes reclaimed since the instance has been initialized, 0 if no retention policy has been configured
+     * @throws NotInitialized thrown if the instance hasn't been initialized
+     * */
+    public long getReclaimedBytes() throws NotInitialized {
+        if (remoteImplementation.persister == null)
+            throw new NotInitialized("You must initialize the instance before asking for the reclaimed space");
+        return remoteImplementation.collector != null ? remoteImplementation.collector.getReclaimedBytes() : 0;
+    }
+
+    /**
+     * This method is used to know when the snapshots completed so far on this node have been saved on disk.
+     * Snapshots are saved in background: the outcome of each one is also notified with AppConnector.handleSnapshotSaved
+     * @return a future completed once all the snapshots completed so far have been saved, or have failed
+     * @throws NotInitialized thrown if the instance hasn't been initialized
+     * */
+    public CompletableFuture<Void> flushSnapshots() throws NotInitialized {
+        if (remoteImplementation.persister == null)
+            throw new NotInitialized("You must initialize the instance before waiting for the snapshots to be saved");
+        return remoteImplementation.persister.flush();
+    }
+
+    /**
+     * This method is used to know how far the application is behind in handling the received messages.
+     * When the messages of a sender waiting to be handled exceed Configuration.setDeliveryQueueCapacity, its new messages are refused
+     * @return the number of messages waiting to be handed over to AppConnector.handleIncomingMessage, for each sender that has some
+     * @throws NotInitialized thrown if the instance hasn't been initialized
+     * */
+    public Map<Entity, Integer> getDeliveryQueueDepth() throws NotInitialized {
+        if (remoteImplementation.deliveries == null)
+            throw new NotInitialized("You must initialize the instance before asking for the messages waiting to be delivered");
+        return remoteImplementation.deliveries.getQueueDepth();
+    }
+
+    /**
+     * This method is used to know how long the phases of the last restore started by this node took (see RestorePhase)
+     * @return the duration of each phase that has been run, empty if no restore has been started
+     * */
+    public Map<RestorePhase, Duration> getLastRestoreTimings() {
+        return lastRestoreTimings;
     }
 
     /**
      * This method is used to start restoring from the most recent snapshot available.
      * The node must be initialized before calling this method.
+     * Each phase of the restore runs on all the nodes at the same time (see RestorePhase). If a node fails before the
+     * restore is completed, the restore is aborted on all the nodes, which keep the connections and the state they had.
      * @throws RestoreAlreadyInProgress thrown when asking a remote node to restore while another restore is already in progress on the remote node
      * @throws RemoteException communication-related exception that may occur during remote calls
      * @throws NotBoundException thrown if an attempt is made to lookup or unbind in the registry a name that has no associated binding.
      * @throws RestoreInProgress thrown if we are trying to restore while a restore is already in progress in our node
-     * @throws RestoreNotPossible thrown if the restore was not possible, reason specified in the exception message (for example a node is no more reachable)
+     * @throws RestoreNotPossible thrown if the restore was not possible, reason specified in the exception message (for example a node is no more reachable).
+     * If the restore has been aborted on the other nodes, the cause is a RestorePhaseException reporting the failed ones
+     * @throws RestorePhaseException thrown if some nodes failed after the restore has been completed on all of them
      * @throws ClassNotFoundException thrown when the storage facility is not able to reconstruct the Snapshot from the file
      */
     public void restoreLastSnapshot() throws RestoreAlreadyInProgress, IOException, NotBoundException, RestoreInProgress, RestoreNotPossible, ClassNotFoundException, OperationForbidden {
         System.out.println("["+ remoteImplementation.hostname+":"+ remoteImplementation.port+"] INITIATING RESTORE LAST SNAPSHOT #######################");
-        distributedSnapshotLock.writeLock().lock();
-        remoteImplementation.nodeStateLock.writeLock().lock();
-        remoteImplementation.nodeSnapshotLock.writeLock().lock();
+        topologyLock.lock();
         try {
-            if (remoteImplementation.nodeState == NodeState.RESTORING)
+            if (remoteImplementation.nodeState.get() == NodeState.RESTORING)
                 throw new RestoreInProgress("A restore is in progress, please wait until node is ready");
 
-            if (remoteImplementation.nodeState != NodeState.DETACHED)
+            if (remoteImplementation.nodeState.get() != NodeState.DETACHED)
                 throw new OperationForbidden("You cannot restore a snapshot while connected to a network");
 
-            int snapshotToRestore = Storage.getLastSnapshotId(remoteImplementation.hostname, remoteImplementation.port);
+            remoteImplementation.persister.awaitPending();
+            int snapshotToRestore = remoteImplementation.store.getLastSnapshotId(remoteImplementation.hostname, remoteImplementation.port);
 
-            // we set our node to the not-ready state and restore our connections and state according to our snapshot
-            remoteImplementation.nodeState = NodeState.RESTORING;
+            // messages, markers and connections received from now on are ignored until the restore ends
+            boolean restoring;
+            remoteImplementation.nodeSnapshotLock.writeLock().lock();
             try {
-                this.remoteImplementation.restoreConnections(snapshotToRestore);
-            } catch (RestoreNotPossible e){
-                //if a restore is not possible we should restore the state of the node to ready=true
-                // by re-throwing the exception we let the user handle this case
-                this.remoteImplementation.nodeState = NodeState.READY;
-                throw e;
-            }
-            this.remoteImplementation.restoreState(snapshotToRestore);
-
-            // we set all the nodes in our new connections list to the not-ready state and proceed to set their connection
-            // list and state according to their snapshot
-            // those calls should not be parallelized: if the
-            System.out.println("["+ remoteImplementation.hostname+":"+ remoteImplementation.port+"] STARTING RESTORE ON OTHER NODES #######################");
-
-            for (RemoteNode<MessageType> remoteNode : this.remoteImplementation.remoteNodes) {
-                System.out.println("STARTING RESTORE ON ["+remoteNode.port+"]");
-                remoteNode.remoteInterface.setReady(false);
-                remoteNode.remoteInterface.restoreConnections(snapshotToRestore);
-                remoteNode.remoteInterface.restoreState(snapshotToRestore);
-                System.out.println("ENDING RESTORE ON ["+remoteNode.port+"]");
-            }
-
-            System.out.println("["+ remoteImplementation.hostname+":"+ remoteImplementation.port+"] RESTORE ENDED #######################");
-
-
-            // now all the nodes can be set to the ready state
-            System.out.println("["+ remoteImplementation.hostname+":"+ remoteImplementation.port+"] SETTING nodeReady=true #######################");
-            remoteImplementation.nodeState = NodeState.READY;
-            for (RemoteNode<MessageType> remoteNode : this.remoteImplementation.remoteNodes) {
-                remoteNode.remoteInterface.setReady(true);
+                restoring = remoteImplementation.moveTo(NodeState.DETACHED, NodeState.RESTORING);
+            } finally {
+                remoteImplementation.nodeSnapshotLock.writeLock().unlock();
             }
-            //now all the "modifying" functions can be called again, hence we will start handling the old messages
+            if (!restoring)
+                throw new OperationForbidden("You cannot restore a snapshot while connected to a network");
 
-            //handle old incoming messages
-            System.out.println("["+ remoteImplementation.hostname+":"+ remoteImplementation.port+"] HANDLE OLD MESSAGES #######################");
-            this.remoteImplementation.restoreOldIncomingMessages(snapshotToRestore);
-            for (RemoteNode<MessageType> remoteNode : this.remoteImplementation.remoteNodes) {
-                remoteNode.remoteInterface.restoreOldIncomingMessages(snapshotToRestore);
+            // the phases of the restore run on all the nodes at the same time
+            ExecutorService restorers = remoteImplementation.executionMode.newBoundedExecutor("snapshot-restore-" + remoteImplementation.port, remoteImplementation.senderParallelism);
+            RestoreCoordinator<StateType, MessageType> coordinator = new RestoreCoordinator<>(remoteImplementation, restorers);
+            try {
+                coordinator.restore(snapshotToRestore);
+            } finally {
+                restorers.shutdown();
+                lastRestoreTimings = coordinator.getTimings();
             }
         } finally {
-            remoteImplementation.nodeSnapshotLock.writeLock().unlock();
-            remoteImplementation.nodeStateLock.writeLock().unlock();
-            distributedSnapshotLock.writeLock().unlock();
+            topologyLock.unlock();
         }
         System.out.println("["+ remoteImplementation.hostname+":"+ remoteImplementation.port+"] FINISHED RESTORE LAST SNAPSHOT #######################");
 
@@ -386,16 +558,16 @@ public class DistributedSnapshot<StateType, MessageType> {
      * @throws SnapshotInterruptException thrown if an attempt to remove a node (change in the network topology) is made while a snapshot is running
      */
     public void removeNode(String hostname, int port) throws RemoteException, RestoreInProgress, NotInitialized, SnapshotInterruptException {
-        distributedSnapshotLock.writeLock().lock();
-        remoteImplementation.nodeStateLock.readLock().lock();
+        topologyLock.lock();
         try {
-            if (remoteImplementation.nodeState == NodeState.RESTORING)
-                throw new RestoreInProgress("A restore is in progress, please wait until node is ready");
-            if (remoteImplementation.nodeState == NodeState.STARTED || remoteImplementation.nodeState == NodeState.DETACHED)
-                throw new NotInitialized("You must initialize the library and join a network before trying to disconnect a node from it");
             remoteImplementation.nodeSnapshotLock.writeLock().lock();
             try {
-                this.remoteImplementation.remoteNodes.remove(this.remoteImplementation.getRemoteNode(hostname, port));
+                NodeState nodeState = remoteImplementation.nodeState.get();
+                if (nodeState == NodeState.RESTORING)
+                    throw new RestoreInProgress("A restore is in progress, please wait until node is ready");
+                if (nodeState == NodeState.STARTED || nodeState == NodeState.DETACHED)
+                    throw new NotInitialized("You must initialize the library and join a network before trying to disconnect a node from it");
+                this.remoteImplementation.remoteNodes.remove(hostname, port);
                 for (RemoteNode<MessageType> remoteNode : this.remoteImplementation.remoteNodes) {
                     remoteNode.remoteInterface.removeMe(hostname, port);
                 }
@@ -403,8 +575,7 @@ public class DistributedSnapshot<StateType, MessageType> {
                 remoteImplementation.nodeSnapshotLock.writeLock().unlock();
             }
         } finally {
-            remoteImplementation.nodeStateLock.readLock().unlock();
-            distributedSnapshotLock.writeLock().unlock();
+            topologyLock.unlock();
         }
     }
 
@@ -413,67 +584,106 @@ public class DistributedSnapshot<StateType, MessageType> {
     //              COMMODITY FUNCTIONS
     //##############################################################
 
+    /**
+     * This method checks that messages can be sent to the provided node and adds them to the outbound queue of the link
+     * @param hostname the hostname of the remote node
+     * @param port the port associated to the rmi registry in the remote node
+     * @param messages the messages to send to the remote node
+     * @return a future completed once the remote node has received the messages
+     * @throws RemoteNodeNotFound the remote node is not found, you must first connect to it
+     * @throws NotInitialized this instance hasn't been initialized, you must do it first
+     * @throws RestoreInProgress thrown if a restore of a snapshot is in progress and the user tries to send a message
+     * @throws OperationForbidden thrown if an attempt to send a message to the node itself is made
+     * */
+    private CompletableFuture<Void> enqueueMessages(String hostname, int port, List<MessageType> messages) throws RemoteNodeNotFound, NotInitialized, RestoreInProgress, OperationForbidden {
+        // the read lock is shared between senders, but it excludes the recording of the state and the
+        // queueing of the markers (done with the write lock): a snapshot started concurrently either
+        // records the messages as sent before its marker or queues its marker before them
+        remoteImplementation.nodeSnapshotLock.readLock().lock();
+        try {
+            checkReady("You must initialize the instance and connect to a network before sending any message");
+            // send the message only if we are not sending the message to this node
+            if (hostname.equals(this.remoteImplementation.hostname) && port==this.remoteImplementation.port) {
+                throw new OperationForbidden("You cannot send a message to yourself");
+            }
+            RemoteNode<MessageType> remoteNode = findRemoteNode(hostname, port);
+            if (messages.isEmpty())
+                return CompletableFuture.completedFuture(null);
+            return remoteImplementation.enqueue(remoteNode, new Outbound<>(new ArrayList<>(messages)));
+        } finally {
+            remoteImplementation.nodeSnapshotLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This method checks that the node is connected to a network and no restore is in progress. The connected nodes
+     * don't change while the caller holds the nodeSnapshotLock, so the node is still ready when the check returns
+     * @param notConnected the message of the exception thrown if the node isn't connected to a network
+     * @throws NotInitialized the node isn't initialized, isn't connected to a network or is disconnecting from it
+     * @throws RestoreInProgress a restore is in progress
+     * */
+    private void checkReady(String notConnected) throws NotInitialized, RestoreInProgress {
+        NodeState nodeState = remoteImplementation.nodeState.get();
+        if (nodeState == NodeState.RESTORING)
+            throw new RestoreInProgress("A restore is in progress, please wait until node is ready");
+        if (nodeState != NodeState.READY)
+            throw new NotInitialized(notConnected);
+    }
+
     /**
      * This is method is used to get the reference of a RemoteNode
      * @param hostname the hostname of the remote node
      * @param port the RMI registry port of the remote node
      * @throws RemoteNodeNotFound the remote node is not found
      * */
-    private RemoteInterface<MessageType> getRemoteInterface(String hostname, int port) throws RemoteNodeNotFound {
-        int index= remoteImplementation.remoteNodes.indexOf(new RemoteNode<MessageType>(hostname,port,null));
-        if(index==-1){
+    private RemoteNode<MessageType> findRemoteNode(String hostname, int port) throws RemoteNodeNotFound {
+        RemoteNode<MessageType> remoteNode = remoteImplementation.remoteNodes.get(hostname, port);
+        if(remoteNode==null){
            throw new RemoteNodeNotFound("RemoteNode with the following hostname " + hostname +
                    " and port " +port+
                    " not found");
         }
-        RemoteNode<MessageType> remoteNode = remoteImplementation.remoteNodes.get(index);
-        return remoteNode.remoteInterface;
+        return remoteNode;
     }
 
     /**
-     * Courtesy of
-     * www.infoworld.com/article/2077578/java-tip-76--an-alternative-to-the-deep-copy-technique.html
-     *
-     * Given that we decided to make a deep copy of a serializable object this trick allows us
-     * to make it by using only properties deriving from the fact that that object is serializable.
-     * So no Cloneable or similar approaches, that would have implied that the user must create a State class
-     * with specific characteristics mandated by the library (so not completely State agnostic)
-     *
-     * @param state The state provided by the user
-     */
-    private StateType deepClone(StateType state) throws IOException, ClassNotFoundException {
-        ObjectOutputStream out = null;
-        ObjectInputStream in = null;
-        try {
-            // First serializing the object and its state to memory using
-            // ByteArrayOutputStream instead of FileOutputStream.
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            out = new ObjectOutputStream(bos);
-            out.writeObject(state);
-            out.flush();
-
-            // And then deserializing it from memory using ByteArrayOutputStream instead of FileInputStream.
-            // Deserialization process will create a new object with the same state as in the serialized object,
-            ByteArrayInputStream bis = new ByteArrayInputStream(bos.toByteArray());
-            in = new ObjectInputStream(bis);
-            return (StateType) in.readObject();
-        } finally {
-            if (out != null) {
-                out.close();
-            }
-            if (in != null) {
-                in.close();
-            }
+     * This method builds the snapshot store selected in the configuration
+     * @param storageType the type of store to build
+     * @param folder the folder the stores on disk save the snapshots in
+     * @return the store
+     * */
+    private SnapshotStore createStore(StorageType storageType, String folder) {
+        switch (storageType) {
+            case LOG:
+                return LogSnapshotStore.forFolder(Paths.get(folder));
+            case MEMORY:
+                return new MemorySnapshotStore(false);
+            case OFF_HEAP:
+                return new MemorySnapshotStore(true);
+            default:
+                return FileSnapshotStore.forFolder(Paths.get(folder));
         }
     }
+
+    /**
+     * This method builds the transport selected in the configuration
+     * @param transportType the type of transport to build
+     * @param callTimeout the time a call waits for the answer of the remote node, in milliseconds (NIO only)
+     * @return the transport
+     * */
+    private Transport<MessageType> createTransport(TransportType transportType, int callTimeout) {
+        if (transportType == TransportType.NIO)
+            return new NioTransport<>(callTimeout);
+        return new RmiTransport<>();
+    }
+
 }
 
 /** Data class that encapsulates the structure of a Remote Node.
  * It contains the node identifiers (hostname and port) as well as the
  * reference to its corresponding Remote RMI Interface.
- * The class is also
- * used to keep track of the Snapshot marker received by the corresponding
- * Remote Node.
+ * The class also provides the channel used to keep track of the Snapshot
+ * markers received from the corresponding Remote Node.
  * @param <MessageType> this is the type that will be exchanged as a message between nodes
  * */
 class RemoteNode<MessageType> {
@@ -491,14 +701,36 @@ class RemoteNode<MessageType> {
     /**
      * A reference to the Remote RMI Interface associated to this Remote Node
      * */
-    protected RemoteInterface<MessageType> remoteInterface;
+    protected volatile RemoteInterface<MessageType> remoteInterface;
+
+    /**
+     * Messages and markers waiting to be sent to this Remote Node, in the order they must be received.
+     * It is also used as lock-object for the draining variable
+     * */
+    protected final Deque<Outbound<MessageType>> outbound = new ArrayDeque<>();
+
+    /**
+     * True while a sender is emptying the outbound queue: there is at most one sender per Remote Node
+     * */
+    protected boolean draining = false;
+
+    /**
+     * The time (System.nanoTime) of the first refusal of the messages at the head of the outbound queue by this busy
+     * Remote Node, 0 if they haven't been refused. Guarded by the outbound queue like the draining variable
+     * */
+    protected long busySince = 0;
+
+    /**
+     * True while a restore is in progress: nothing is sent to this Remote Node, the elements added to the outbound
+     * queue fail with RestoreInProgress. Guarded by the outbound queue like the draining variable
+     * */
+    protected boolean stopped = false;
 
     /**
-     * A List of Integers containing the IDs of the snapshots for which
-     * the corresponding marker has been received by this Remote Node.
-     * It is used to enable management of multiple, parallel, snapshots.
+     * The index of the link to this Remote Node, unique among the nodes of the same RemoteNodeTable.
+     * The running snapshots use it to keep track of the markers received from this Remote Node (see MarkerTracker)
      * */
-    protected ArrayList<Integer> snapshotIdsReceived = new ArrayList<>(); //holds the marker.id received from this remoteNode (for multiple concurrent distributed snapshots)
+    protected int channel = -1;
 
     /**
      * Constructor for the Remote Node object, it allows encapsulation of hostname
@@ -0,0 +1,68 @@
+package library;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The kinds of threads running the work of the library that can be selected in the Configuration used to initialize it:
+ * the calls to the AppConnector, the senders of messages and markers, the delivery of the received messages and the restore phases
+ * */
+public enum ExecutionMode {
+    /**
+     * Platform threads: each remote call blocks an operating system thread until it returns
+     * */
+    PLATFORM_THREADS {
+        @Override
+        ExecutorService newTaskExecutor(String name) {
+            return Executors.newCachedThreadPool(threadFactory(name));
+        }
+
+        @Override
+        ThreadFactory threadFactory(String name) {
+            AtomicInteger threads = new AtomicInteger();
+            return runnable -> {
+                Thread thread = new Thread(runnable, name + "-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    },
+    /**
+     * Virtual threads: a remote call waiting for its answer releases the operating system thread running it, so that the
+     * number of connected nodes called at the same time (see Configuration.setSenderParallelism) is no longer bound to
+     * the number of platform threads
+     * */
+    VIRTUAL_THREADS {
+        @Override
+        ExecutorService newTaskExecutor(String name) {
+            return Executors.newThreadPerTaskExecutor(threadFactory(name));
+        }
+
+        @Override
+        ThreadFactory threadFactory(String name) {
+            return Thread.ofVirtual().name(name + "-", 1).factory();
+        }
+    };
+
+    /**
+     * @param name the prefix of the names of the threads
+     * @return an executor running each task as soon as it is submitted
+     * */
+    abstract ExecutorService newTaskExecutor(String name);
+
+    /**
+     * @param name the prefix of the names of the threads
+     * @return an executor running at most the provided number of tasks at the same time
+     * */
+    ExecutorService newBoundedExecutor(String name, int threads) {
+        return Executors.newFixedThreadPool(threads, threadFactory(name));
+    }
+
+    /**
+     * @param name the prefix of the names of the threads
+     * @return a factory of daemon threads
+     * */
+    abstract ThreadFactory threadFactory(String name);
+}
@@ -0,0 +1,102 @@
+package library;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This store saves the snapshots on disk, one folder per node and one folder per snapshot containing its segment file:
+ * <pre>
+ *     folder/hostname_port/manifest.ser
+ *     folder/hostname_port/sequenceNumber_snapshotId/snapshot.seg
+ * </pre>
+ * There is a single store for each folder, shared by all the nodes using the folder, so that they all see the same manifests.
+ * */
+class FileSnapshotStore extends AbstractSnapshotStore<FileSnapshotStore.NodeFolder> {
+
+    /**
+     * The stores created so far, indexed by their folder
+     * */
+    private static final ConcurrentHashMap<Path, FileSnapshotStore> STORES = new ConcurrentHashMap<>();
+
+    /**
+     * The folder containing the folders of the nodes
+     * */
+    private final Path folder;
+
+    /**
+     * The snapshots of a node, saved in the folder of the node
+     * */
+    static class NodeFolder extends NodeSnapshots {
+        final Path folder;
+
+        NodeFolder(String hostname, int port, Path folder) {
+            super(hostname, port);
+            this.folder = folder;
+        }
+    }
+
+    private FileSnapshotStore(Path folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * This method returns the store saving the snapshots in the provided folder
+     * @param folder the folder containing the folders of the nodes, created when the first snapshot is saved
+     * */
+    static FileSnapshotStore forFolder(Path folder) {
+        return STORES.computeIfAbsent(folder.toAbsolutePath().normalize(), FileSnapshotStore::new);
+    }
+
+    @Override
+    protected NodeFolder createNode(String hostname, int port) {
+        return new NodeFolder(hostname, port, folder.resolve(hostname + "_" + port));
+    }
+
+    @Override
+    protected SnapshotManifest loadManifest(NodeFolder node) throws IOException, ClassNotFoundException {
+        return SnapshotManifest.load(node.folder);
+    }
+
+    @Override
+    protected void saveManifest(NodeFolder node) throws IOException {
+        Files.createDirectories(node.folder);
+        node.manifest.save(node.folder);
+    }
+
+    @Override
+    protected OutputStream newSegment(NodeFolder node, SnapshotManifest.Entry entry) throws IOException {
+        Path snapshotFolder = Files.createDirectories(node.folder.resolve(entry.name));
+        return Files.newOutputStream(snapshotFolder.resolve(SnapshotSegment.FILE_NAME));
+    }
+
+    @Override
+    protected InputStream readSegment(NodeFolder node, SnapshotManifest.Entry entry) throws IOException {
+        return Files.newInputStream(node.folder.resolve(entry.name).resolve(SnapshotSegment.FILE_NAME));
+    }
+
+    @Override
+    protected long deleteSegment(NodeFolder node, SnapshotManifest.Entry entry) throws IOException {
+        File snapshotFolder = node.folder.resolve(entry.name).toFile();
+        if (!snapshotFolder.isDirectory())
+            return 0;
+        long size = FileUtils.sizeOfDirectory(snapshotFolder);
+        FileUtils.deleteDirectory(snapshotFolder);
+        return size;
+    }
+
+    @Override
+    protected void deleteAll() throws IOException {
+        if (folder.toFile().isDirectory()) {
+            try {
+                FileUtils.deleteDirectory(folder.toFile());
+            } catch (IOException e) {
+                System.out.println("Unable to delete folder");
+                throw e;
+            }
+        }
+    }
+}
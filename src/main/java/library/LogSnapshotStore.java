@@ -0,0 +1,244 @@
+package library;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * This store appends the segments of all the snapshots of a node to a single log file, next to the manifest of the node:
+ * <pre>
+ *     folder/hostname_port/manifest.ser
+ *     folder/hostname_port/snapshots-generation.log
+ * </pre>
+ * Saving a snapshot is a sequential append and doesn't create any file or folder. The segments of deleted snapshots
+ * are left in the log until they take more space than the live ones: then the live segments are copied to a new log
+ * (the next generation), which replaces the previous one once the manifest pointing to it has been saved.
+ * There is a single store for each folder, shared by all the nodes using the folder, so that they all see the same manifests.
+ * */
+class LogSnapshotStore extends AbstractSnapshotStore<LogSnapshotStore.NodeLog> {
+
+    /**
+     * The stores created so far, indexed by their folder
+     * */
+    private static final ConcurrentHashMap<Path, LogSnapshotStore> STORES = new ConcurrentHashMap<>();
+
+    /**
+     * The folder containing the folders of the nodes
+     * */
+    private final Path folder;
+
+    /**
+     * The log of a node
+     * */
+    static class NodeLog extends NodeSnapshots {
+        final Path folder;
+
+        /**
+         * The open log, null until it is used
+         * */
+        FileChannel log;
+
+        /**
+         * The end of the last segment written completely: what follows it is left by a failed write
+         * */
+        long end;
+
+        /**
+         * The bytes of the log taken by the segments of deleted snapshots
+         * */
+        long deadBytes;
+
+        NodeLog(String hostname, int port, Path folder) {
+            super(hostname, port);
+            this.folder = folder;
+        }
+    }
+
+    private LogSnapshotStore(Path folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * This method returns the store saving the snapshots in the provided folder
+     * @param folder the folder containing the folders of the nodes, created when the first snapshot is saved
+     * */
+    static LogSnapshotStore forFolder(Path folder) {
+        return STORES.computeIfAbsent(folder.toAbsolutePath().normalize(), LogSnapshotStore::new);
+    }
+
+    @Override
+    protected NodeLog createNode(String hostname, int port) {
+        return new NodeLog(hostname, port, folder.resolve(hostname + "_" + port));
+    }
+
+    @Override
+    protected SnapshotManifest loadManifest(NodeLog node) throws IOException, ClassNotFoundException {
+        return SnapshotManifest.load(node.folder);
+    }
+
+    @Override
+    protected void saveManifest(NodeLog node) throws IOException {
+        Files.createDirectories(node.folder);
+        node.manifest.save(node.folder);
+    }
+
+    @Override
+    protected OutputStream newSegment(NodeLog node, SnapshotManifest.Entry entry) throws IOException {
+        FileChannel log = log(node);
+        log.truncate(node.end);
+        log.position(node.end);
+        entry.offset = node.end;
+        OutputStream out = Channels.newOutputStream(log);
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                // the log stays open for the next segments
+                log.force(false);
+            }
+        };
+    }
+
+    @Override
+    protected void segmentWritten(NodeLog node, SnapshotManifest.Entry entry) {
+        node.end = entry.offset + entry.size;
+    }
+
+    @Override
+    protected InputStream readSegment(NodeLog node, SnapshotManifest.Entry entry) throws IOException {
+        FileChannel log = log(node);
+        ByteBuffer segment = ByteBuffer.allocate(Math.toIntExact(entry.size));
+        while (segment.hasRemaining()) {
+            if (log.read(segment, entry.offset + segment.position()) < 0)
+                throw new EOFException("The segment of " + entry.name + " is truncated");
+        }
+        return new ByteArrayInputStream(segment.array());
+    }
+
+    @Override
+    protected long deleteSegment(NodeLog node, SnapshotManifest.Entry entry) {
+        if (entry.status != SnapshotManifest.Status.COMPLETE)
+            return 0;
+        // the space is reclaimed by the next compaction
+        if (node.log != null)
+            node.deadBytes += entry.size;
+        return entry.size;
+    }
+
+    @Override
+    protected void segmentsDeleted(NodeLog node) throws IOException {
+        log(node);
+        if (node.deadBytes > node.end - node.deadBytes)
+            compact(node);
+    }
+
+    @Override
+    protected void release(NodeLog node) throws IOException {
+        if (node.log != null) {
+            node.log.close();
+            node.log = null;
+        }
+    }
+
+    @Override
+    protected void deleteAll() throws IOException {
+        if (folder.toFile().isDirectory())
+            FileUtils.deleteDirectory(folder.toFile());
+    }
+
+    /**
+     * This method opens the log of a node the first time it is used
+     * @param node the node, its manifest must be loaded
+     * @return the open log
+     * */
+    private FileChannel log(NodeLog node) throws IOException {
+        if (node.log == null) {
+            Files.createDirectories(node.folder);
+            Path current = logFile(node, node.manifest.generation);
+            // logs of other generations are left by a compaction interrupted by a crash
+            try (DirectoryStream<Path> logs = Files.newDirectoryStream(node.folder, "snapshots-*.log")) {
+                for (Path log : logs) {
+                    if (!log.equals(current))
+                        Files.delete(log);
+                }
+            }
+            node.log = FileChannel.open(current, CREATE, READ, WRITE);
+            long live = 0;
+            node.end = 0;
+            for (SnapshotManifest.Entry entry : node.manifest.getEntries()) {
+                if (entry.status == SnapshotManifest.Status.COMPLETE) {
+                    live += entry.size;
+                    node.end = Math.max(node.end, entry.offset + entry.size);
+                }
+            }
+            node.deadBytes = node.end - live;
+        }
+        return node.log;
+    }
+
+    /**
+     * This method copies the live segments of a node to a new log, which replaces the current one
+     * @param node the node
+     * */
+    private void compact(NodeLog node) throws IOException {
+        FileChannel log = node.log;
+        int generation = node.manifest.generation + 1;
+        Path compacted = logFile(node, generation);
+        ArrayList<SnapshotManifest.Entry> live = new ArrayList<>();
+        for (SnapshotManifest.Entry entry : node.manifest.getEntries()) {
+            if (entry.status == SnapshotManifest.Status.COMPLETE)
+                live.add(entry);
+        }
+        live.sort(Comparator.comparingLong(entry -> entry.offset));
+
+        long[] offsets = new long[live.size()];
+        long position = 0;
+        FileChannel out = FileChannel.open(compacted, CREATE, TRUNCATE_EXISTING, READ, WRITE);
+        try {
+            for (int i = 0; i < live.size(); i++) {
+                SnapshotManifest.Entry entry = live.get(i);
+                for (long copied = 0; copied < entry.size; ) {
+                    copied += log.transferTo(entry.offset + copied, entry.size - copied, out);
+                }
+                offsets[i] = position;
+                position += entry.size;
+            }
+            out.force(false);
+        } catch (IOException e) {
+            out.close();
+            Files.deleteIfExists(compacted);
+            throw e;
+        }
+
+        for (int i = 0; i < live.size(); i++) {
+            live.get(i).offset = offsets[i];
+        }
+        node.manifest.generation = generation;
+        node.log = out;
+        node.end = position;
+        node.deadBytes = 0;
+        log.close();
+        // the manifest pointing to the new log is the switch: the previous log is deleted only afterwards
+        saveManifest(node);
+        Files.delete(logFile(node, generation - 1));
+    }
+
+    private static Path logFile(NodeLog node, int generation) {
+        return node.folder.resolve("snapshots-" + generation + ".log");
+    }
+}
@@ -0,0 +1,78 @@
+package library;
+
+import java.util.BitSet;
+
+/**
+ * This class keeps track of the markers received by a running snapshot. Each link to a connected node is
+ * identified by its channel (see RemoteNode.channel), so recording a marker and checking whether the messages of a
+ * link must still be recorded take constant time, whatever the number of links and of snapshots taken so far.
+ * A tracker belongs to a single snapshot and is dropped together with it when the snapshot completes.
+ * Only the channels of the links present when the snapshot starts are expected to send the marker: a link connected
+ * afterwards (see addMeBack) is not part of the snapshot.
+ * */
+class MarkerTracker {
+
+    /**
+     * The channels of the links present when the snapshot started
+     * */
+    private final BitSet expectedChannels = new BitSet();
+
+    /**
+     * The channels the marker has already been received from
+     * */
+    private final BitSet closedChannels = new BitSet();
+
+    /**
+     * The number of channels the marker is still expected from
+     * */
+    private int openChannels;
+
+    /**
+     * @param remoteNodes the nodes connected when the snapshot starts
+     * */
+    <MessageType> MarkerTracker(Iterable<RemoteNode<MessageType>> remoteNodes) {
+        for (RemoteNode<MessageType> node : remoteNodes) {
+            expectedChannels.set(node.channel);
+        }
+        this.openChannels = expectedChannels.cardinality();
+    }
+
+    /**
+     * @param channel the channel of a link
+     * @return true if the link was present when the snapshot started, so its marker is expected
+     * */
+    boolean isExpected(int channel) {
+        return expectedChannels.get(channel);
+    }
+
+    /**
+     * This method records the marker received from a channel
+     * @param channel the channel of the link the marker has been received from, it must be expected (see isExpected)
+     * @return false if the marker had already been received from the channel
+     * @throws IllegalArgumentException the link wasn't present when the snapshot started
+     * */
+    boolean close(int channel) {
+        if (!expectedChannels.get(channel))
+            throw new IllegalArgumentException("The channel " + channel + " is not part of the snapshot");
+        if (closedChannels.get(channel))
+            return false;
+        closedChannels.set(channel);
+        openChannels--;
+        return true;
+    }
+
+    /**
+     * @param channel the channel of a link
+     * @return true if the marker has been received from the channel: its messages are no longer part of the snapshot
+     * */
+    boolean isClosed(int channel) {
+        return closedChannels.get(channel);
+    }
+
+    /**
+     * @return true if the marker has been received from all the channels
+     * */
+    boolean isComplete() {
+        return openChannels <= 0;
+    }
+}
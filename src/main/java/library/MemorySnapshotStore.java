@@ -0,0 +1,115 @@
+package library;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * This store keeps the snapshots in memory, they are lost when the process ends. It is meant for tests and benchmarks,
+ * where it removes the cost of the disk. The segments are kept either in byte arrays on the heap or in direct buffers
+ * outside of the heap, which don't add to the work of the garbage collector.
+ * */
+class MemorySnapshotStore extends AbstractSnapshotStore<MemorySnapshotStore.NodeSegments> {
+
+    /**
+     * True to keep the segments outside of the heap
+     * */
+    private final boolean offHeap;
+
+    /**
+     * The segments of a node, indexed by the name of their snapshot
+     * */
+    static class NodeSegments extends NodeSnapshots {
+        final HashMap<String, ByteBuffer> segments = new HashMap<>();
+
+        NodeSegments(String hostname, int port) {
+            super(hostname, port);
+        }
+    }
+
+    public MemorySnapshotStore(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    @Override
+    protected NodeSegments createNode(String hostname, int port) {
+        return new NodeSegments(hostname, port);
+    }
+
+    @Override
+    protected SnapshotManifest loadManifest(NodeSegments node) {
+        return new SnapshotManifest();
+    }
+
+    @Override
+    protected void saveManifest(NodeSegments node) {
+        // the manifest is only kept in memory
+    }
+
+    @Override
+    protected OutputStream newSegment(NodeSegments node, SnapshotManifest.Entry entry) {
+        return new ByteArrayOutputStream(4096) {
+            @Override
+            public void close() {
+                ByteBuffer segment;
+                if (offHeap) {
+                    segment = ByteBuffer.allocateDirect(count).put(buf, 0, count).flip();
+                } else {
+                    segment = ByteBuffer.wrap(toByteArray());
+                }
+                node.segments.put(entry.name, segment);
+            }
+        };
+    }
+
+    @Override
+    protected InputStream readSegment(NodeSegments node, SnapshotManifest.Entry entry) throws IOException {
+        ByteBuffer segment = node.segments.get(entry.name);
+        if (segment == null)
+            throw new FileNotFoundException("The segment of " + entry.name + " is missing");
+        return new ByteBufferInputStream(segment.duplicate());
+    }
+
+    @Override
+    protected long deleteSegment(NodeSegments node, SnapshotManifest.Entry entry) {
+        ByteBuffer segment = node.segments.remove(entry.name);
+        return segment != null ? segment.capacity() : 0;
+    }
+
+    @Override
+    protected void deleteAll() {
+        // the segments are dropped together with the nodes
+    }
+
+    /**
+     * Reads a segment without copying it
+     * */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            int read = Math.min(len, buffer.remaining());
+            buffer.get(b, off, read);
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,677 @@
+package library;
+
+import library.exceptions.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.rmi.*;
+import java.rmi.server.ExportException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Transport implementation based on non-blocking TCP sockets.
+ * The local node accepts connections on its port and serves them with a single selector thread,
+ * the requests are then executed on a pool of workers. Each request travels as a frame made of a
+ * 4 bytes length followed by the serialized Request, the answer travels back on the same connection.
+ * Towards every remote node a single persistent connection is kept and reused by all the calls on that link.
+ * @param <MessageType> this is the type that will be exchanged as a message between nodes
+ * */
+class NioTransport<MessageType> implements Transport<MessageType> {
+
+    /**
+     * Upper bound on the size of a single frame, protects against corrupted length headers
+     * */
+    private static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The time a call waits for the answer of the remote node, in milliseconds, 0 to wait without limit
+     * */
+    private final int callTimeout;
+
+    /**
+     * The local implementation that serves the incoming requests
+     * */
+    private RemoteInterface<MessageType> localNode;
+
+    /**
+     * The channel accepting the incoming connections
+     * */
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * The selector multiplexing the accepted connections
+     * */
+    private Selector selector;
+
+    /**
+     * Executes the incoming requests outside of the selector thread
+     * */
+    private final ExecutorService executors = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "nio-transport-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The persistent outgoing connections, one for each remote node
+     * */
+    private final ConcurrentHashMap<Entity, Link> links = new ConcurrentHashMap<>();
+
+    /**
+     * Set to false to stop the selector thread
+     * */
+    private volatile boolean running = false;
+
+    /**
+     * @param callTimeout the time a call waits for the answer of the remote node, in milliseconds, 0 to wait without limit
+     * */
+    NioTransport(int callTimeout) {
+        this.callTimeout = callTimeout;
+    }
+
+    @Override
+    public void export(String hostname, int port, RemoteInterface<MessageType> localNode) throws RemoteException {
+        try {
+            this.selector = Selector.open();
+            this.serverChannel = ServerSocketChannel.open();
+            this.serverChannel.bind(new InetSocketAddress(port));
+            this.serverChannel.configureBlocking(false);
+            this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            throw new ExportException("Unable to listen on port " + port, e);
+        }
+        this.localNode = localNode;
+        this.running = true;
+        Thread selectorThread = new Thread(this::serve, "nio-transport-" + port);
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    @Override
+    public RemoteInterface<MessageType> lookup(String hostname, int port) throws RemoteException {
+        Link link = links.computeIfAbsent(new Entity(hostname, port), entity -> new Link(hostname, port));
+        link.connect();
+        return link;
+    }
+
+    @Override
+    public void unexport() {
+        running = false;
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException ignored) {}
+        links.values().forEach(Link::close);
+        links.clear();
+        executors.shutdown();
+    }
+
+
+    //:::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
+    //                      SERVER SIDE
+    //:::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
+
+    /**
+     * Body of the selector thread: accepts new connections, reads the incoming frames
+     * and writes back the answers
+     * */
+    private void serve() {
+        while (running) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        // the key of the server socket is never closed here: a failed accept doesn't stop the node from accepting the next ones
+                        accept();
+                        continue;
+                    }
+                    try {
+                        if (key.isReadable())
+                            read(key);
+                        if (key.isValid() && key.isWritable())
+                            write(key);
+                    } catch (IOException | CancelledKeyException e) {
+                        closeQuietly(key);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Selector failure");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Accepts a pending connection. The failures are reported and only affect that connection: when the accept itself
+     * fails (e.g. too many open files) the connection stays in the backlog and is tried again at the next select
+     * */
+    private void accept() {
+        SocketChannel channel;
+        try {
+            channel = serverChannel.accept();
+        } catch (IOException e) {
+            System.err.println("Could not accept a connection: " + e);
+            return;
+        }
+        if (channel == null)
+            return;
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(key, channel));
+        } catch (IOException e) {
+            System.err.println("Could not set up an accepted connection: " + e);
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Reads as many complete frames as available on the connection and schedules them for execution
+     * */
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        while (true) {
+            if (connection.body == null) {
+                if (connection.channel.read(connection.header) < 0)
+                    throw new EOFException();
+                if (connection.header.hasRemaining())
+                    return;
+                connection.header.flip();
+                int length = connection.header.getInt();
+                connection.header.clear();
+                if (length < 0 || length > MAX_FRAME_SIZE)
+                    throw new StreamCorruptedException("Invalid frame length " + length);
+                connection.body = ByteBuffer.allocate(length);
+            }
+            if (connection.channel.read(connection.body) < 0)
+                throw new EOFException();
+            if (connection.body.hasRemaining())
+                return;
+            byte[] frame = connection.body.array();
+            connection.body = null;
+            dispatch(connection, frame);
+        }
+    }
+
+    /**
+     * Writes the pending answers of the connection, removing the write interest once all of them are sent
+     * */
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer buffer;
+        while ((buffer = connection.pendingWrites.peek()) != null) {
+            connection.channel.write(buffer);
+            if (buffer.hasRemaining())
+                return;
+            connection.pendingWrites.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        // an answer may have been queued after the loop: in that case we keep the write interest
+        if (!connection.pendingWrites.isEmpty())
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Queues a frame for execution. Frames of the same connection are executed one at a time
+     * and in the order they were received, so that the link behaves as a FIFO channel
+     * */
+    private void dispatch(Connection connection, byte[] frame) {
+        synchronized (connection) {
+            connection.inbox.add(frame);
+            if (connection.processing)
+                return;
+            connection.processing = true;
+        }
+        executors.execute(() -> {
+            while (true) {
+                byte[] next;
+                synchronized (connection) {
+                    next = connection.inbox.poll();
+                    if (next == null) {
+                        connection.processing = false;
+                        return;
+                    }
+                }
+                reply(connection, handle(next));
+            }
+        });
+    }
+
+    /**
+     * Decodes a request, executes it on the local node and encodes the answer
+     * */
+    private ByteBuffer handle(byte[] frame) {
+        Response response;
+        try {
+            Request request = (Request) decode(frame);
+            response = new Response(invoke(request), null);
+        } catch (Exception e) {
+            response = new Response(null, e);
+        } catch (Error e) {
+            response = new Response(null, new ServerError("Error occurred in server thread", e));
+        }
+        try {
+            return encode(response);
+        } catch (IOException e) {
+            try {
+                return encode(new Response(null, new MarshalException("Unable to marshal the answer: " + e.getMessage())));
+            } catch (IOException impossible) {
+                throw new UncheckedIOException(impossible);
+            }
+        }
+    }
+
+    private void reply(Connection connection, ByteBuffer answer) {
+        connection.pendingWrites.add(answer);
+        try {
+            connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            selector.wakeup();
+        } catch (CancelledKeyException ignored) {
+            // the connection has been closed by the other party
+        }
+    }
+
+    /**
+     * Executes the operation contained in the request on the local node
+     * */
+    private Object invoke(Request request) throws Exception {
+        Object[] arguments = request.arguments;
+        switch (request.operation) {
+            case RECEIVE_MESSAGE:
+                localNode.receiveMessage((String) arguments[0], (Integer) arguments[1], (MessageType) arguments[2]);
+                return null;
+            case RECEIVE_MESSAGES:
+                localNode.receiveMessages((String) arguments[0], (Integer) arguments[1], (ArrayList<MessageType>) arguments[2]);
+                return null;
+            case RECEIVE_MARKER:
+                localNode.receiveMarker((String) arguments[0], (Integer) arguments[1], (String) arguments[2], (Integer) arguments[3], (Integer) arguments[4]);
+                return null;
+            case ADD_ME_BACK:
+                localNode.addMeBack((String) arguments[0], (Integer) arguments[1]);
+                return null;
+            case REMOVE_ME:
+                localNode.removeMe((String) arguments[0], (Integer) arguments[1]);
+                return null;
+            case GET_CONNECTIONS:
+                return localNode.getConnections();
+            case RESTORE_STATE:
+                localNode.restoreState((Integer) arguments[0]);
+                return null;
+            case RESTORE_CONNECTIONS:
+                localNode.restoreConnections((Integer) arguments[0]);
+                return null;
+            case RESTORE_OLD_INCOMING_MESSAGES:
+                localNode.restoreOldIncomingMessages((Integer) arguments[0]);
+                return null;
+            case SET_READY:
+                localNode.setReady((Boolean) arguments[0]);
+                return null;
+            case ABORT_RESTORE:
+                localNode.abortRestore();
+                return null;
+            case SNAPSHOT_COMPLETED:
+                localNode.snapshotCompleted((String) arguments[0], (Integer) arguments[1], (Integer) arguments[2], (Long) arguments[3], (ArrayList<Entity>) arguments[4], (String) arguments[5]);
+                return null;
+            case PING:
+                localNode.ping();
+                return null;
+            default:
+                throw new UnmarshalException("Unknown operation " + request.operation);
+        }
+    }
+
+    private void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {}
+    }
+
+
+    //:::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
+    //                      COMMODITY FUNCTIONS
+    //:::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
+
+    /**
+     * Serializes the provided object into a frame, length header included
+     * */
+    private static ByteBuffer encode(Object object) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(object);
+        }
+        byte[] payload = bos.toByteArray();
+        ByteBuffer frame = ByteBuffer.allocate(4 + payload.length);
+        frame.putInt(payload.length).put(payload).flip();
+        return frame;
+    }
+
+    private static Object decode(byte[] payload) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+            return in.readObject();
+        }
+    }
+
+    /**
+     * The operations of the RemoteInterface that can travel inside a Request
+     * */
+    private enum Operation {
+        RECEIVE_MESSAGE,
+        RECEIVE_MESSAGES,
+        RECEIVE_MARKER,
+        ADD_ME_BACK,
+        REMOVE_ME,
+        GET_CONNECTIONS,
+        RESTORE_STATE,
+        RESTORE_CONNECTIONS,
+        RESTORE_OLD_INCOMING_MESSAGES,
+        SET_READY,
+        ABORT_RESTORE,
+        SNAPSHOT_COMPLETED,
+        PING
+    }
+
+    /**
+     * Frame sent from the caller to the callee: the operation to execute and its arguments
+     * */
+    private static class Request implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final Operation operation;
+        // the arguments that can't be serialized fail the encoding of the request
+        @SuppressWarnings("serial")
+        private final Object[] arguments;
+
+        private Request(Operation operation, Object[] arguments) {
+            this.operation = operation;
+            this.arguments = arguments;
+        }
+    }
+
+    /**
+     * Frame sent back from the callee: either the returned value or the thrown exception
+     * */
+    private static class Response implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        // a value that can't be serialized fails the encoding of the answer
+        @SuppressWarnings("serial")
+        private final Object value;
+        private final Exception error;
+
+        private Response(Object value, Exception error) {
+            this.value = value;
+            this.error = error;
+        }
+    }
+
+    /**
+     * State of an accepted connection, owned by the selector thread
+     * except for the inbox and the pending answers
+     * */
+    private static class Connection {
+        private final SelectionKey key;
+        private final SocketChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(4);
+        private ByteBuffer body = null;
+        private final Queue<byte[]> inbox = new ArrayDeque<>();
+        private boolean processing = false;
+        private final Queue<ByteBuffer> pendingWrites = new ConcurrentLinkedQueue<>();
+
+        private Connection(SelectionKey key, SocketChannel channel) {
+            this.key = key;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * The reference to a remote node. It owns the persistent connection towards it:
+     * calls on the same link are sent one at a time, each one waiting for its answer.
+     * */
+    private class Link implements RemoteInterface<MessageType> {
+        private final String hostname;
+        private final int port;
+        private SocketChannel channel = null;
+        private DataInputStream input = null;
+
+        private Link(String hostname, int port) {
+            this.hostname = hostname;
+            this.port = port;
+        }
+
+        /**
+         * Opens the connection if there isn't an open one, verifying that the remote node is reachable.
+         * An open connection is kept: a connection found broken by a call is closed by the call itself
+         * */
+        private synchronized void connect() throws RemoteException {
+            if (channel != null && channel.isOpen())
+                return;
+            close();
+            try {
+                channel = SocketChannel.open(new InetSocketAddress(hostname, port));
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                // the answers are read through the socket adaptor, which honours the read timeout
+                channel.socket().setSoTimeout(callTimeout);
+                input = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream()));
+            } catch (IOException e) {
+                channel = null;
+                throw new ConnectException(hostname + ":" + port + " | unable to connect", e);
+            }
+        }
+
+        private synchronized void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+                channel = null;
+                input = null;
+            }
+        }
+
+        /**
+         * Sends the request on the link and waits for its answer, for at most callTimeout milliseconds.
+         * If the remote node threw an exception it is re-thrown to the caller.
+         * */
+        private synchronized Object call(Operation operation, Object... arguments) throws Exception {
+            ByteBuffer request;
+            try {
+                request = encode(new Request(operation, arguments));
+            } catch (IOException e) {
+                throw new MarshalException("Unable to marshal the request", e);
+            }
+            connect();
+            Response response;
+            try {
+                while (request.hasRemaining())
+                    channel.write(request);
+                int length = input.readInt();
+                if (length < 0 || length > MAX_FRAME_SIZE)
+                    throw new StreamCorruptedException("Invalid frame length " + length);
+                byte[] body = new byte[length];
+                input.readFully(body);
+                response = (Response) decode(body);
+            } catch (SocketTimeoutException e) {
+                // the answer may still come: the connection can't be reused for the next calls
+                close();
+                throw new RemoteException(hostname + ":" + port + " | no answer within " + callTimeout + " ms", e);
+            } catch (IOException | ClassNotFoundException e) {
+                close();
+                throw new RemoteException(hostname + ":" + port + " | communication failure", e);
+            }
+            if (response.error != null)
+                throw response.error;
+            return response.value;
+        }
+
+        private UnexpectedException undeclared(Exception e) {
+            return new UnexpectedException(hostname + ":" + port + " | undeclared checked exception", e);
+        }
+
+        @Override
+        public void receiveMessage(String senderHostname, int senderPort, MessageType message) throws RemoteException, NotBoundException, SnapshotInterruptException, ReceiverBusyException, RestoreInProgress {
+            try {
+                call(Operation.RECEIVE_MESSAGE, senderHostname, senderPort, message);
+            } catch (RemoteException | NotBoundException | SnapshotInterruptException | ReceiverBusyException | RestoreInProgress | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw undeclared(e);
+            }
+        }
+
+        @Override
+        public void receiveMessages(String senderHostname, int senderPort, ArrayList<MessageType> messages) throws RemoteException, NotBoundException, SnapshotInterruptException, ReceiverBusyException, RestoreInProgress {
+            try {
+                call(Operation.RECEIVE_MESSAGES, senderHostname, senderPort, messages);
+            } catch (RemoteException | NotBoundException | SnapshotInterruptException | ReceiverBusyException | RestoreInProgress | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw undeclared(e);
+            }
+        }
+
+        @Override
+        public void receiveMarker(String senderHostname, int senderPort, String initiatorHostname, int initiatorPort, int snapshotId) throws IOException, DoubleMarkerException, UnexpectedMarkerReceived {
+            try {
+                call(Operation.RECEIVE_MARKER, senderHostname, senderPort, initiatorHostname, initiatorPort, snapshotId);
+            } catch (IOException | DoubleMarkerException | UnexpectedMarkerReceived | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw undeclared(e);
+            }
+        }
+
+        @Override
+        public void addMeBack(String hostname, int port) throws RemoteException, NotBoundException {
+            try {
+                call(Operation.ADD_ME_BACK, hostname, port);
+            } catch (RemoteException | NotBoundException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw undeclared(e);
+            }
+        }
+
+        @Override
+        public void removeMe(String hostname, int port) throws RemoteException, SnapshotInterruptException {
+            try {
+                call(Operation.REMOVE_ME, hostname, port);
+            } catch (RemoteException | SnapshotInterruptException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw undeclared(e);
+            }
+        }
+
+        @Override
+        public ArrayList<Entity> getConnections() throws RemoteException {
+            try {
+                return (ArrayList<Entity>) call(Operation.GET_CONNECTIONS);
+            } catch (RemoteException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw undeclared(e);
+            }
+        }
+
+        @Override
+        public void restoreState(int snapshotId) throws IOException, RestoreAlreadyInProgress, ClassNotFoundException {
+            try {
+                call(Operation.RESTORE_STATE, snapshotId);
+            } catch (IOException | RestoreAlreadyInProgress | ClassNotFoundException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw undeclared(e);
+            }
+        }
+
+        @Override
+        public void restoreConnections(int snapshotId) throws IOException, RestoreAlreadyInProgress, NotBoundException, RestoreNotPossible, ClassNotFoundException {
+            try {
+                call(Operation.RESTORE_CONNECTIONS, snapshotId);
+            } catch (IOException | RestoreAlreadyInProgress | NotBoundException | RestoreNotPossible | ClassNotFoundException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw undeclared(e);
+            }
+        }
+
+        @Override
+        public void restoreOldIncomingMessages(int snapshotId) throws IOException, RestoreAlreadyInProgress, ClassNotFoundException {
+            try {
+                call(Operation.RESTORE_OLD_INCOMING_MESSAGES, snapshotId);
+            } catch (IOException | RestoreAlreadyInProgress | ClassNotFoundException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw undeclared(e);
+            }
+        }
+
+        @Override
+        public void setReady(boolean value) throws RemoteException {
+            try {
+                call(Operation.SET_READY, value);
+            } catch (RemoteException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw undeclared(e);
+            }
+        }
+
+        @Override
+        public void abortRestore() throws RemoteException {
+            try {
+                call(Operation.ABORT_RESTORE);
+            } catch (RemoteException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw undeclared(e);
+            }
+        }
+
+        @Override
+        public void snapshotCompleted(String hostname, int port, int snapshotId, long bytes, ArrayList<Entity> connections, String error) throws RemoteException {
+            try {
+                call(Operation.SNAPSHOT_COMPLETED, hostname, port, snapshotId, bytes, connections, error);
+            } catch (RemoteException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw undeclared(e);
+            }
+        }
+
+        @Override
+        public void ping() throws RemoteException {
+            try {
+                call(Operation.PING);
+            } catch (RemoteException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw undeclared(e);
+            }
+        }
+    }
+}
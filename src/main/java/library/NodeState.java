@@ -1,9 +1,45 @@
 package library;
 
+/**
+ * The lifecycle of a node. The state is changed with atomic compare-and-set transitions (see RemoteImplementation.moveTo),
+ * only between the states allowed by canMoveTo. After init, the transitions are made while holding the nodeSnapshotLock
+ * in write mode, so that no marker or message is being handled while the state changes:
+ * <pre>
+ *     STARTED -&gt; DETACHED                 init
+ *     DETACHED -&gt; READY                   joinNetwork, or another node connects to this one (addMeBack)
+ *     READY -&gt; DISCONNECTING -&gt; DETACHED  disconnect
+ *     READY -&gt; DETACHED                   the last connected node has removed this one (removeMe)
+ *     READY, DETACHED -&gt; RESTORING        a restore starts (setReady(false))
+ *     RESTORING -&gt; READY                  the restore is completed (setReady(true)), or aborted
+ *     RESTORING -&gt; DETACHED               the restore of a node without connections is aborted
+ *     DISCONNECTING -&gt; READY              the disconnection is not possible while snapshots are running
+ * </pre>
+ * */
 public enum NodeState {
     READY,
     RESTORING,
     DISCONNECTING,
     DETACHED,
-    STARTED
+    STARTED;
+
+    /**
+     * @param next the state to move to
+     * @return true if a node in this state can move to the provided one
+     * */
+    public boolean canMoveTo(NodeState next) {
+        switch (this) {
+            case STARTED:
+                return next == DETACHED;
+            case DETACHED:
+                return next == READY || next == RESTORING;
+            case READY:
+                return next == DISCONNECTING || next == DETACHED || next == RESTORING;
+            case DISCONNECTING:
+                return next == DETACHED || next == READY;
+            case RESTORING:
+                return next == READY || next == DETACHED;
+            default:
+                return false;
+        }
+    }
 }
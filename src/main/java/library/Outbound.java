@@ -0,0 +1,67 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An element waiting in the outbound queue of a RemoteNode: either a list of messages
+ * or a marker. The elements of a queue are sent one after the other, in the order
+ * they were added, so that each link behaves as a FIFO channel as required by the
+ * distributed snapshot algorithm.
+ * @param <MessageType> this is the type that will be exchanged as a message between nodes
+ * */
+class Outbound<MessageType> {
+
+    /**
+     * The messages to send, null if this element is a marker
+     * */
+    protected final ArrayList<MessageType> messages;
+
+    /**
+     * The hostname of the entity that initiated the snapshot (markers only)
+     * */
+    protected final String initiatorHostname;
+
+    /**
+     * The port of the entity that initiated the snapshot (markers only)
+     * */
+    protected final int initiatorPort;
+
+    /**
+     * The unique snapshot identifier (markers only)
+     * */
+    protected final int snapshotId;
+
+    /**
+     * Completed once the element has been received by the remote node, or exceptionally if the send failed
+     * */
+    protected final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    /**
+     * Constructor for an element carrying messages
+     * @param messages the messages to send, in order
+     * */
+    public Outbound(ArrayList<MessageType> messages) {
+        this.messages = messages;
+        this.initiatorHostname = null;
+        this.initiatorPort = 0;
+        this.snapshotId = 0;
+    }
+
+    /**
+     * Constructor for an element carrying a marker
+     * @param initiatorHostname the hostname of the entity that initiated the snapshot
+     * @param initiatorPort the port of the entity that initiated the snapshot
+     * @param snapshotId the unique snapshot identifier (i.e. marker)
+     * */
+    public Outbound(String initiatorHostname, int initiatorPort, int snapshotId) {
+        this.messages = null;
+        this.initiatorHostname = initiatorHostname;
+        this.initiatorPort = initiatorPort;
+        this.snapshotId = snapshotId;
+    }
+
+    public boolean isMarker() {
+        return messages == null;
+    }
+}
@@ -5,18 +5,26 @@ import library.exceptions.*;
 import java.io.IOException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * This is the implementation of the RemoteInterface. The RemoteInterface is the stub
  * that is available to others nodes to interact with this one.
- * It contains methods such as receiveMarker, receiveMessage, addMeBack and removeMe
+ * It contains methods such as receiveMarker, receiveMessage, receiveMessages, addMeBack and removeMe
  * @param <MessageType> this is the type that will be exchanged as a message between nodes
  * @param <StateType> this is the type that will be saved as the state of the application
  * */
@@ -42,10 +50,50 @@ class RemoteImplementation<StateType, MessageType>  implements RemoteInterface<M
      * */
     protected final Object currentStateLock = new Object();
 
+    /**
+     * If not null, it provides the state when a snapshot is started, in place of currentState
+     * */
+    protected volatile StateProvider<StateType> stateProvider;
+
+    /**
+     * Copies the states provided by the application, selected when the DistributedSnapshot is created
+     * */
+    protected StateCopier<StateType> stateCopier = StateCopier.serialization();
+
+    /**
+     * The snapshots saved by this node, used to save only the changes of the state. Null if delta snapshots are disabled
+     * */
+    protected DeltaChain<StateType> deltaChain;
+
+    /**
+     * Saves the completed snapshots on disk in background, created at initialization
+     * */
+    protected SnapshotPersister<StateType, MessageType> persister;
+
+    /**
+     * Where the snapshots of this node are saved, selected at initialization
+     * */
+    protected SnapshotStore store;
+
+    /**
+     * Deletes the snapshots that the retention policy doesn't keep, null if no policy has been configured
+     * */
+    protected SnapshotCollector collector;
+
     /**
      * It stores remote references to the linked nodes
      * */
-    protected ArrayList<RemoteNode<MessageType>> remoteNodes = new ArrayList<>();
+    protected volatile RemoteNodeTable<MessageType> remoteNodes = new RemoteNodeTable<>();
+
+    /**
+     * The communication layer used to publish this node and to reach the remote ones
+     * */
+    protected Transport<MessageType> transport;
+
+    /**
+     * The references to the remote nodes, all the lookups go through it
+     * */
+    protected StubCache<MessageType> stubs;
 
     /**
      * Provided implementation of the class AppConnector
@@ -53,9 +101,20 @@ class RemoteImplementation<StateType, MessageType>  implements RemoteInterface<M
     protected AppConnector<MessageType, StateType> appConnector;
 
     /**
-     * List of the ids of running snapshots
+     * The snapshots running on this node and the messages recorded for them
+     * */
+    protected RunningSnapshots<StateType, MessageType> runningSnapshots = new RunningSnapshots<>();
+
+    /**
+     * The snapshots started by this node that haven't been saved by all the nodes yet, indexed by their identifier.
+     * A snapshot is removed as soon as its completion ends, however it ends
+     * */
+    protected final ConcurrentHashMap<Integer, SnapshotCompletion> completions = new ConcurrentHashMap<>();
+
+    /**
+     * The time the nodes have to save a snapshot started by this node, in milliseconds, 0 to wait without limit
      * */
-    protected ArrayList<Snapshot<StateType, MessageType>> runningSnapshots = new ArrayList<>();
+    protected long snapshotCompletionTimeout;
 
     /**
      * Counter that is increased each time this node starts a snapshot, it is used to compute the new snapshotId
@@ -63,9 +122,52 @@ class RemoteImplementation<StateType, MessageType>  implements RemoteInterface<M
     protected int localSnapshotCounter=0;
 
     /**
-     * Handles the propagateMarker calls (see receiveMarker method) and handleIncomingMessage in receiveMessage
+     * Handles the appConnector calls, except handleIncomingMessage (see deliveries), created at initialization
      * */
-    private final ExecutorService executors = Executors.newCachedThreadPool();
+    protected ExecutorService executors;
+
+    /**
+     * Hands the received messages over to the application, in order for each sender, created at initialization
+     * */
+    protected DeliveryLanes<MessageType> deliveries;
+
+    /**
+     * Runs the senders that empty the outbound queues of the remote nodes. Its size (Configuration.setSenderParallelism)
+     * bounds the number of concurrent remote calls (and connections) opened by this node
+     * */
+    protected ExecutorService senders;
+
+    /**
+     * The kind of threads running the executors of this node, selected at initialization
+     * */
+    protected ExecutionMode executionMode;
+
+    /**
+     * The size of the senders pool, also used to bound the remote calls made at the same time by a restore
+     * */
+    protected int senderParallelism;
+
+    /**
+     * Maximum number of messages sent with a single receiveMessages call by a sender
+     * */
+    private static final int MAX_BATCH_SIZE = 512;
+
+    /**
+     * Maximum time a receiveMessages call waits for the application to catch up on the messages of the sender
+     * before refusing the new ones, in milliseconds
+     * */
+    private static final long MAX_CAPACITY_WAIT = 50;
+
+    /**
+     * Time a sender waits before sending again the messages refused by a busy node, in milliseconds.
+     * The other links of the node are sent meanwhile
+     * */
+    private static final long BUSY_RETRY_DELAY = 20;
+
+    /**
+     * The time the messages refused by a busy node are sent again before failing, in milliseconds, 0 without limit
+     * */
+    protected long busyRetryTimeout;
 
     /**
      * Stores the current snapshot that is being restored
@@ -73,140 +175,188 @@ class RemoteImplementation<StateType, MessageType>  implements RemoteInterface<M
     private Snapshot<StateType, MessageType> currentSnapshotToBeRestored =  null;
 
     /**
-     * Lock object
+     * The connections replaced by the restore in progress, put back if the restore is aborted. Null if they haven't been replaced
      * */
-    protected final ReadWriteLock nodeSnapshotLock = new ReentrantReadWriteLock();
+    private RemoteNodeTable<MessageType> connectionsBeforeRestore = null;
 
-    protected NodeState nodeState = NodeState.STARTED;
+    /**
+     * True if the state has been replaced by the restore in progress, stateBeforeRestore is put back if the restore is aborted
+     * */
+    private boolean stateReplaced = false;
 
-    protected final ReadWriteLock nodeStateLock = new ReentrantReadWriteLock();
+    private StateType stateBeforeRestore = null;
+
+    /**
+     * Lock-object for the restore in progress: currentSnapshotToBeRestored, connectionsBeforeRestore, stateReplaced and stateBeforeRestore
+     * */
+    private final Object restoreLock = new Object();
+
+    /**
+     * Protects the running snapshots and the table of the connected nodes. The messages are received and sent with the
+     * read lock, the markers are handled, the snapshots started and the connected nodes changed with the write lock.
+     * The state of the node is checked again after taking it: it only changes, together with the connected nodes, while the write lock is held
+     * */
+    protected final ReadWriteLock nodeSnapshotLock = new ReentrantReadWriteLock();
+
+    /**
+     * The lifecycle of the node, changed with moveTo
+     * */
+    protected final AtomicReference<NodeState> nodeState = new AtomicReference<>(NodeState.STARTED);
 
 
     @Override
     public void receiveMarker(String senderHostname, int senderPort, String initiatorHostname, int initiatorPort, int snapshotId) throws DoubleMarkerException, UnexpectedMarkerReceived, IOException {
-        this.nodeStateLock.readLock().lock();
-        try {
-            if (nodeState == NodeState.READY) {
-                nodeSnapshotLock.writeLock().lock();
-                try {
-                    if (checkIfRemoteNodePresent(senderHostname, senderPort)) {
-                        Snapshot<StateType, MessageType> snap;
-                        synchronized (currentStateLock) {
-                            snap = new Snapshot<>(snapshotId, currentState, remoteNodes); //Creates the snapshot and saves the current state!
-                        }
-
-                        if (!runningSnapshots.contains(snap)) {
+        Snapshot<StateType, MessageType> completed = null;
+        if (nodeState.get() == NodeState.READY) {
+            nodeSnapshotLock.writeLock().lock();
+            try {
+                if (nodeState.get() == NodeState.READY) {
+                    RemoteNode<MessageType> sender = getRemoteNode(senderHostname, senderPort);
+                    if (sender != null) {
+                        Snapshot<StateType, MessageType> snap = runningSnapshots.get(snapshotId);
+
+                        if (snap == null && runningSnapshots.hasCompleted(snapshotId)) {
+                            // the marker of a link connected after the snapshot started, the snapshot has already been taken
+                            return;
+                        } else if (snap == null) {
                             //This is the first time we receive a marker,
                             // so we HAVE TO propagate the marker to the other nodes
-                            runningSnapshots.add(snap);
-                            recordSnapshotId(senderHostname, senderPort, snapshotId);
-                            executors.submit(() -> propagateMarker(initiatorHostname, initiatorPort, snapshotId));
-                        } else {
+                            snap = new Snapshot<>(snapshotId, captureState(), remoteNodes); //saves the current state!
+                            snap.initiator = new Entity(initiatorHostname, initiatorPort);
+                            runningSnapshots.start(snap, remoteNodes);
+                            recordMarker(snap, sender);
+                            // the markers are queued before releasing the lock, so no message sent after
+                            // the state has been recorded can reach a remote node before the marker
+                            propagateMarker(initiatorHostname, initiatorPort, snapshotId);
+                        } else if (snap.markers.isExpected(sender.channel)) {
                             // we have already received a marker for this snapshotId,
                             // so we don't have to propagate the marker to other nodes
-                            recordSnapshotId(senderHostname, senderPort, snapshotId);
+                            recordMarker(snap, sender);
+                        } else {
+                            // the sender has connected after the snapshot started on this node: the link is not part
+                            // of the snapshot, its marker must neither complete it nor start it again
+                            return;
                         }
 
-                        if (receivedMarkerFromAllLinks(snapshotId)) { //we have received a marker from all the channels
-                            Storage.writeFile(runningSnapshots, snapshotId, this.hostname, this.port);
-                            runningSnapshots.remove(snap);
+                        if (snap.markers.isComplete()) { //we have received a marker from all the channels
+                            runningSnapshots.complete(snap);
+                            completed = snap;
                         }
                     } else {
                         throw new UnexpectedMarkerReceived("ERROR: received a marker from a node not present in my remote nodes list");
                     }
-                } finally {
-                    nodeSnapshotLock.writeLock().unlock();
                 }
+            } finally {
+                nodeSnapshotLock.writeLock().unlock();
             }
-        } finally {
-            this.nodeStateLock.readLock().unlock();
+        }
+        if (completed != null) {
+            // the snapshot is saved without holding any lock, the marker sender doesn't wait for the disk
+            Snapshot<StateType, MessageType> saved = completed;
+            persister.persist(completed, this.hostname, this.port, deltaChain).whenComplete((bytes, e) -> {
+                executors.submit(() -> appConnector.handleSnapshotSaved(saved.snapshotId, e));
+                executors.submit(() -> reportCompletion(saved, bytes != null ? bytes : 0, e));
+            });
         }
     }
 
     @Override
-    public void receiveMessage(String senderHostname, int senderPort, MessageType message) throws RemoteException, NotBoundException, SnapshotInterruptException {
-        this.nodeStateLock.readLock().lock();
-        try {
-            if (nodeState == NodeState.READY) {
-                nodeSnapshotLock.writeLock().lock();
-                try {
-                    if (checkIfRemoteNodePresent(senderHostname, senderPort)) {
+    public void receiveMessage(String senderHostname, int senderPort, MessageType message) throws RemoteException, NotBoundException, SnapshotInterruptException, ReceiverBusyException, RestoreInProgress {
+        receiveMessages(senderHostname, senderPort, new ArrayList<>(Collections.singletonList(message)));
+    }
+
+    @Override
+    public void receiveMessages(String senderHostname, int senderPort, ArrayList<MessageType> messages) throws RemoteException, NotBoundException, SnapshotInterruptException, ReceiverBusyException, RestoreInProgress {
+        Entity sender = new Entity(senderHostname, senderPort);
+        // while the application is behind on the messages of the sender, the new ones are refused before being
+        // recorded: they wait in the outbound queue of the sender, whose thread isn't held here
+        if (nodeState.get() == NodeState.READY && !deliveries.awaitCapacity(sender, MAX_CAPACITY_WAIT))
+            throw new ReceiverBusyException(this.hostname + ":" + this.port + " | still delivering the previous messages of " + sender);
+        boolean unknownSender = false;
+        NodeState state = nodeState.get();
+        if (state == NodeState.READY) {
+            // the read lock is enough: running snapshots and received markers are only changed with the
+            // write lock, while messages coming from different senders can be recorded at the same time
+            nodeSnapshotLock.readLock().lock();
+            try {
+                state = nodeState.get();
+                if (state == NodeState.READY) {
+                    RemoteNode<MessageType> senderNode = getRemoteNode(senderHostname, senderPort);
+                    if (senderNode != null) {
                         if (!runningSnapshots.isEmpty()) { // Snapshot running
-                            runningSnapshots.forEach((snap) -> {
-                                if (!checkIfReceivedMarker(senderHostname, senderPort, snap.snapshotId)) {
-                                    snap.messages.add(new Envelope<>(new Entity(senderHostname, senderPort), message));
-                                }
-                            });
+                            runningSnapshots.record(senderNode.channel, sender, messages);
                         }
-                        executors.submit(() -> appConnector.handleIncomingMessage(senderHostname, senderPort, message));
+                        // queued while holding the lock, so that the application gets the messages in the order they were received
+                        deliveries.enqueue(sender, messages);
                     } else {
-                        // We issue the command to the remote node to remove us!
-                        Registry registry = LocateRegistry.getRegistry(senderHostname, senderPort);
-                        RemoteInterface<MessageType> remoteInterface = (RemoteInterface<MessageType>) registry.lookup("RemoteInterface");
-                        remoteInterface.removeMe(this.hostname, this.port);
+                        unknownSender = true;
                     }
-                } finally {
-                    nodeSnapshotLock.writeLock().unlock();
                 }
+            } finally {
+                nodeSnapshotLock.readLock().unlock();
             }
-        } finally {
-            this.nodeStateLock.readLock().unlock();
         }
+        if (unknownSender) {
+            // We issue the command to the remote node to remove us!
+            stubs.get(senderHostname, senderPort).removeMe(this.hostname, this.port);
+        }
+        // the messages have been dropped: the sender must not consider them delivered
+        if (state == NodeState.RESTORING)
+            throw new RestoreInProgress(this.hostname + ":" + this.port + " | a restore is in progress, the messages have been dropped");
+        if (state != NodeState.READY)
+            throw new RemoteException(this.hostname + ":" + this.port + " | not connected to the network (" + state + "), the messages have been dropped");
     }
 
     @Override
     public void addMeBack(String hostname, int port) throws RemoteException, NotBoundException {
-        this.nodeStateLock.writeLock().lock();
+        // looked up before taking the lock, the node is reached while the snapshots go on
+        RemoteInterface<MessageType> remoteInterface = stubs.get(hostname, port);
+        nodeSnapshotLock.writeLock().lock();
         try {
-            if (nodeState == NodeState.READY || nodeState == NodeState.DETACHED) {
-                nodeSnapshotLock.writeLock().lock();
-                try {
-                    Registry registry = LocateRegistry.getRegistry(hostname, port);
-                    RemoteInterface<MessageType> remoteInterface = (RemoteInterface<MessageType>) registry.lookup("RemoteInterface");
-                    if (getRemoteNode(hostname, port) == null) {
-                        remoteNodes.add(new RemoteNode<>(hostname, port, remoteInterface));
-                        executors.submit(()->appConnector.handleNewConnection(hostname, port));
-                    }
-                } finally {
-                    nodeSnapshotLock.writeLock().unlock();
+            NodeState state = nodeState.get();
+            if (state == NodeState.READY || state == NodeState.DETACHED) {
+                if (getRemoteNode(hostname, port) == null) {
+                    remoteNodes.add(new RemoteNode<>(hostname, port, remoteInterface));
+                    executors.submit(()->appConnector.handleNewConnection(hostname, port));
                 }
-                this.nodeState = NodeState.READY;
+                if (state == NodeState.DETACHED)
+                    moveTo(NodeState.DETACHED, NodeState.READY);
             }
         } finally {
-            this.nodeStateLock.writeLock().unlock();
+            nodeSnapshotLock.writeLock().unlock();
         }
     }
 
 
     @Override
     public void removeMe(String hostname, int port) throws RemoteException, SnapshotInterruptException {
-        nodeStateLock.readLock().lock();
-        try {
-            if (nodeState == NodeState.READY) {
-                nodeSnapshotLock.writeLock().lock();
-                try {
-                    if (!this.runningSnapshots.isEmpty()) {
-                        throw new SnapshotInterruptException(hostname + ":" + port + " | ERROR: REMOVING DURING SNAPSHOT, ASSUMPTION NOT RESPECTED");
-                    }
-                    RemoteNode<MessageType> remoteNode = getRemoteNode(hostname, port);
-                    this.remoteNodes.remove(remoteNode);
-                } finally {
-                    nodeSnapshotLock.writeLock().unlock();
-                }
-                executors.submit(()->appConnector.handleRemoveConnection(hostname, port));
-            }
-        } finally {
-            nodeStateLock.readLock().unlock();
-        }
-        nodeStateLock.writeLock().lock();
         nodeSnapshotLock.writeLock().lock();
         try {
+            if (nodeState.get() != NodeState.READY)
+                return;
+            if (!this.runningSnapshots.isEmpty()) {
+                throw new SnapshotInterruptException(hostname + ":" + port + " | ERROR: REMOVING DURING SNAPSHOT, ASSUMPTION NOT RESPECTED");
+            }
+            this.remoteNodes.remove(hostname, port);
             if (remoteNodes.size()==0)
-                nodeState = NodeState.DETACHED;
+                moveTo(NodeState.READY, NodeState.DETACHED);
         } finally {
             nodeSnapshotLock.writeLock().unlock();
-            nodeStateLock.writeLock().unlock();
         }
+        executors.submit(()->appConnector.handleRemoveConnection(hostname, port));
+    }
+
+
+
+    @Override
+    public void ping() {
+    }
+
+    @Override
+    public void snapshotCompleted(String hostname, int port, int snapshotId, long bytes, ArrayList<Entity> connections, String error) {
+        SnapshotCompletion completion = completions.get(snapshotId);
+        if (completion != null)
+            completion.report(new Entity(hostname, port), bytes, connections, error);
     }
 
 
@@ -217,106 +367,216 @@ class RemoteImplementation<StateType, MessageType>  implements RemoteInterface<M
 
     @Override
     public void restoreState(int snapshotId) throws RestoreAlreadyInProgress, IOException, ClassNotFoundException {
-        this.nodeStateLock.readLock().lock();
-        try {
-            if (!(nodeState == NodeState.READY)) {
+        synchronized (restoreLock) {
+            if (nodeState.get() == NodeState.RESTORING) {
                 if (currentSnapshotToBeRestored == null) {
-                    currentSnapshotToBeRestored = Storage.readFile(snapshotId, this.hostname, this.port);
+                    currentSnapshotToBeRestored = readSnapshot(snapshotId);
                 } else if (snapshotId != currentSnapshotToBeRestored.snapshotId) {
                     throw new RestoreAlreadyInProgress("CRITICAL ERROR: Another snapshot is being restored");
                 }
                 synchronized (currentStateLock) {
+                    if (!stateReplaced) {
+                        stateBeforeRestore = this.currentState;
+                        stateReplaced = true;
+                    }
                     this.currentState = currentSnapshotToBeRestored.state;
                 }
-                executors.submit(()->appConnector.handleRestoredState(this.currentState));
+                StateType state = currentSnapshotToBeRestored.state;
+                executors.submit(()->appConnector.handleRestoredState(state));
             }
-        } finally {
-            this.nodeStateLock.readLock().unlock();
         }
     }
 
     @Override
     public void restoreConnections(int snapshotId) throws RestoreAlreadyInProgress, IOException, RestoreNotPossible, ClassNotFoundException {
-        this.nodeStateLock.readLock().lock();
-        try {
-            if (!(nodeState == NodeState.READY)) {
+        synchronized (restoreLock) {
+            if (nodeState.get() == NodeState.RESTORING) {
                 if (currentSnapshotToBeRestored == null) {
-                    currentSnapshotToBeRestored = Storage.readFile(snapshotId, this.hostname, this.port);
+                    currentSnapshotToBeRestored = readSnapshot(snapshotId);
                 } else if (snapshotId != currentSnapshotToBeRestored.snapshotId) {
                     throw new RestoreAlreadyInProgress("CRITICAL ERROR: Another snapshot is being restored");
                 }
-                this.remoteNodes = new ArrayList<>();
-                ArrayList<RemoteNode<MessageType>> tempList= new ArrayList<>();
+                RemoteNodeTable<MessageType> tempList= new RemoteNodeTable<>();
                 for (Entity entity : currentSnapshotToBeRestored.connectedNodes) {
                     try {
-                        Registry registry = LocateRegistry.getRegistry(entity.getHostname(), entity.getPort());
-                        RemoteInterface<MessageType> remoteInterface = (RemoteInterface<MessageType>) registry.lookup("RemoteInterface");
+                        RemoteInterface<MessageType> remoteInterface = stubs.get(entity.getHostname(), entity.getPort());
                         tempList.add(new RemoteNode<>(entity.getHostname(), entity.getPort(), remoteInterface));
                     }catch(RemoteException | NotBoundException e){
                         throw new RestoreNotPossible("["+entity.getHostname()+":"+entity.getPort()+"] NOT AVAILABLE");
                     }
                 }
-                this.remoteNodes=tempList;
-                executors.submit(()->appConnector.handleRestoredConnections(currentSnapshotToBeRestored.connectedNodes));
+                nodeSnapshotLock.writeLock().lock();
+                try {
+                    if (connectionsBeforeRestore == null)
+                        connectionsBeforeRestore = this.remoteNodes;
+                    this.remoteNodes=tempList;
+                } finally {
+                    nodeSnapshotLock.writeLock().unlock();
+                }
+                ArrayList<Entity> connections = currentSnapshotToBeRestored.connectedNodes;
+                executors.submit(()->appConnector.handleRestoredConnections(connections));
             }
-        } finally {
-            this.nodeStateLock.readLock().unlock();
         }
     }
 
     @Override
     public void setReady(boolean value) throws RemoteException {
-        nodeStateLock.writeLock().lock();
-        try {
-            // in the case of flipping the nodeReady bit from false to true we "reset" the currentSnapshotToBeRestored to null
-            if (!(nodeState == NodeState.READY) && value)
-                currentSnapshotToBeRestored = null;
-            this.nodeState = value ? NodeState.READY : NodeState.RESTORING;
-        } finally {
-            nodeStateLock.writeLock().unlock();
+        synchronized (restoreLock) {
+            ArrayList<Snapshot<StateType, MessageType>> interrupted;
+            // the state changes with the write lock, so no marker or message is being handled meanwhile
+            nodeSnapshotLock.writeLock().lock();
+            try {
+                if (value) {
+                    // the restore is completed: what it replaced can no longer be put back
+                    if (nodeState.get() == NodeState.RESTORING) {
+                        currentSnapshotToBeRestored = null;
+                        forgetReplaced();
+                        startLinks(remoteNodes);
+                        moveTo(NodeState.RESTORING, NodeState.READY);
+                    }
+                    return;
+                }
+                NodeState state = nodeState.get();
+                if (state == NodeState.RESTORING)
+                    return;
+                if (state != NodeState.READY && state != NodeState.DETACHED)
+                    throw new RemoteException("["+hostname+":"+port+"] cannot start a restore while " + state);
+                moveTo(state, NodeState.RESTORING);
+                // a restore starts: what a previous one replaced can no longer be put back, and the running
+                // snapshots can no longer receive their markers
+                forgetReplaced();
+                // the messages sent before the restore would be applied on top of the restored state
+                stopLinks(remoteNodes);
+                interrupted = new ArrayList<>(runningSnapshots.values());
+                runningSnapshots = new RunningSnapshots<>();
+            } finally {
+                nodeSnapshotLock.writeLock().unlock();
+            }
+            if (!interrupted.isEmpty()) {
+                SnapshotInterruptException error = new SnapshotInterruptException(hostname + ":" + port + " | the snapshot has been interrupted by a restore");
+                for (Snapshot<StateType, MessageType> snapshot : interrupted) {
+                    executors.submit(() -> appConnector.handleSnapshotSaved(snapshot.snapshotId, error));
+                    executors.submit(() -> reportCompletion(snapshot, 0, error));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void abortRestore() {
+        synchronized (restoreLock) {
+            if (nodeState.get() != NodeState.RESTORING)
+                return;
+            ArrayList<Entity> connections = new ArrayList<>();
+            boolean connectionsReplaced = connectionsBeforeRestore != null;
+            nodeSnapshotLock.writeLock().lock();
+            try {
+                if (connectionsReplaced)
+                    this.remoteNodes = connectionsBeforeRestore;
+                startLinks(remoteNodes);
+                for (RemoteNode<MessageType> node : remoteNodes) {
+                    connections.add(new Entity(node.hostname, node.port));
+                }
+                moveTo(NodeState.RESTORING, remoteNodes.size() == 0 ? NodeState.DETACHED : NodeState.READY);
+            } finally {
+                nodeSnapshotLock.writeLock().unlock();
+            }
+            if (connectionsReplaced)
+                executors.submit(()->appConnector.handleRestoredConnections(connections));
+            if (stateReplaced) {
+                StateType state;
+                synchronized (currentStateLock) {
+                    this.currentState = stateBeforeRestore;
+                    state = this.currentState;
+                }
+                executors.submit(()->appConnector.handleRestoredState(state));
+            }
+            forgetReplaced();
+            currentSnapshotToBeRestored = null;
+            try {
+                // the snapshot read by the restore can be deleted again
+                store.pin(null, this.hostname, this.port);
+            } catch (IOException | ClassNotFoundException e) {
+                System.err.println("Could not unpin the snapshot of the aborted restore");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void forgetReplaced() {
+        connectionsBeforeRestore = null;
+        stateReplaced = false;
+        stateBeforeRestore = null;
+    }
+
+    /**
+     * This method stops the links to the provided nodes: the messages and markers waiting in their outbound queues
+     * fail with RestoreInProgress, and so do the ones refused by a busy node instead of being sent again.
+     * A message already on its way is refused by the receiver, which is restoring too
+     * @param nodes the nodes whose links are stopped
+     * */
+    private void stopLinks(RemoteNodeTable<MessageType> nodes) {
+        RestoreInProgress e = new RestoreInProgress(this.hostname + ":" + this.port + " | a restore has started, the messages have been dropped");
+        for (RemoteNode<MessageType> node : nodes) {
+            synchronized (node.outbound) {
+                node.stopped = true;
+                node.busySince = 0;
+                Outbound<MessageType> dropped;
+                while ((dropped = node.outbound.poll()) != null) {
+                    dropped.future.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * This method lets the links to the provided nodes send again, once the restore has ended
+     * @param nodes the nodes whose links are started
+     * */
+    private void startLinks(RemoteNodeTable<MessageType> nodes) {
+        for (RemoteNode<MessageType> node : nodes) {
+            synchronized (node.outbound) {
+                node.stopped = false;
+            }
         }
     }
 
     @Override
     public void restoreOldIncomingMessages(int snapshotId) throws RestoreAlreadyInProgress, IOException, ClassNotFoundException {
-        this.nodeStateLock.readLock().lock();
-        try {
-            if (nodeState == NodeState.READY) {
+        synchronized (restoreLock) {
+            if (nodeState.get() == NodeState.READY) {
                 if (currentSnapshotToBeRestored == null) {
-                    currentSnapshotToBeRestored = Storage.readFile(snapshotId, this.hostname, this.port);
+                    currentSnapshotToBeRestored = readSnapshot(snapshotId);
                 } else if (snapshotId != currentSnapshotToBeRestored.snapshotId) {
                     throw new RestoreAlreadyInProgress("CRITICAL ERROR: Another snapshot is being restored");
                 }
-                executors.submit(()->{
-                    for (Envelope<MessageType> envelope : currentSnapshotToBeRestored.messages) {
-                        executors.submit(()->appConnector.handleIncomingMessage(envelope.sender.getHostname(), envelope.sender.getPort(), envelope.message));
-                    }
-                });
+                // this is the last step of the restore: the snapshot can be deleted again
+                store.pin(null, this.hostname, this.port);
+                // the recorded messages of each sender are delivered as a batch, before the ones it sends after the restore
+                LinkedHashMap<Entity, ArrayList<MessageType>> recorded = new LinkedHashMap<>();
+                for (Envelope<MessageType> envelope : currentSnapshotToBeRestored.messages) {
+                    recorded.computeIfAbsent(envelope.sender, sender -> new ArrayList<>()).add(envelope.message);
+                }
+                recorded.forEach(deliveries::enqueue);
             }
-        } finally {
-            this.nodeStateLock.readLock().unlock();
         }
     }
 
     @Override
     public ArrayList<Entity> getConnections() {
-        nodeStateLock.readLock().lock();
+        nodeSnapshotLock.readLock().lock();
         try {
-            if (nodeState == NodeState.READY || nodeState == NodeState.DETACHED) {
-                nodeSnapshotLock.readLock().lock();
-                try {
-                    ArrayList<Entity> nodes = new ArrayList<>();
-                    for (RemoteNode<MessageType> node : remoteNodes) {
-                        nodes.add(new Entity(node.hostname, node.port));
-                    }
-                    return nodes;
-                } finally {
-                    nodeSnapshotLock.readLock().unlock();
+            NodeState state = nodeState.get();
+            if (state == NodeState.READY || state == NodeState.DETACHED) {
+                ArrayList<Entity> nodes = new ArrayList<>();
+                for (RemoteNode<MessageType> node : remoteNodes) {
+                    nodes.add(new Entity(node.hostname, node.port));
                 }
+                return nodes;
             }
             return null;
         } finally {
-            nodeStateLock.readLock().unlock();
+            nodeSnapshotLock.readLock().unlock();
         }
     }
 
@@ -328,90 +588,277 @@ class RemoteImplementation<StateType, MessageType>  implements RemoteInterface<M
 
 
     /**
-     * This function stores the provided snapshotId inside the provided remote entity
-     * @param senderHostname the hostname of the entity in which the snapshotId will be recorded
-     * @param senderPort the RMI registry port of the entity in which the snapshotId will be recorded
-     * @param snapshotId the snapshot identifier to be recorded
+     * This method moves the node from the expected state to the next one, if no other thread has changed the state in the meantime
+     * @param expected the state the node must be in
+     * @param next the state to move to, it must be allowed by NodeState.canMoveTo
+     * @return false if the node is not in the expected state
+     * @throws IllegalStateException the transition is not part of the lifecycle of a node
+     * */
+    protected boolean moveTo(NodeState expected, NodeState next) {
+        if (!expected.canMoveTo(next))
+            throw new IllegalStateException("A node cannot move from " + expected + " to " + next);
+        return nodeState.compareAndSet(expected, next);
+    }
+
+    /**
+     * This function records that the marker of a running snapshot has been received from the provided remote node
+     * @param snapshot the running snapshot the marker belongs to
+     * @param sender the remote node the marker has been received from
      * @throws DoubleMarkerException received multiple marker (same id) from the same link
      */
-    private void recordSnapshotId(String senderHostname, int senderPort, int snapshotId) throws DoubleMarkerException {
-        RemoteNode<MessageType> remoteNode = getRemoteNode(senderHostname,senderPort);
-        if(remoteNode!=null) {
-            if(remoteNode.snapshotIdsReceived.contains(snapshotId)){
-                throw new DoubleMarkerException(hostname +":"+port + " | ERROR: received multiple marker (same id) for the same link");
-            }else {
-                remoteNode.snapshotIdsReceived.add(snapshotId);
+    private void recordMarker(Snapshot<StateType, MessageType> snapshot, RemoteNode<MessageType> sender) throws DoubleMarkerException {
+        if (!runningSnapshots.closeChannel(snapshot, sender.channel))
+            throw new DoubleMarkerException(hostname +":"+port + " | ERROR: received multiple marker (same id) for the same link");
+    }
+
+    /**
+     * This method notifies the node that started a snapshot that this node has saved its part
+     * @param snapshot the saved snapshot
+     * @param bytes the size of the saved snapshot, in bytes
+     * @param error the exception that prevented the snapshot from being saved, null if it has been saved
+     * */
+    private void reportCompletion(Snapshot<StateType, MessageType> snapshot, long bytes, Throwable error) {
+        Entity initiator = snapshot.initiator;
+        try {
+            RemoteInterface<MessageType> initiatorInterface;
+            if (initiator.getHostname().equals(this.hostname) && initiator.getPort() == this.port) {
+                initiatorInterface = this;
+            } else {
+                // the initiator may not be connected to this node
+                RemoteNode<MessageType> initiatorNode = getRemoteNode(initiator.getHostname(), initiator.getPort());
+                initiatorInterface = initiatorNode != null ? initiatorNode.remoteInterface : stubs.get(initiator.getHostname(), initiator.getPort());
             }
+            initiatorInterface.snapshotCompleted(this.hostname, this.port, snapshot.snapshotId, bytes, snapshot.connectedNodes, error != null ? error.toString() : null);
+        } catch (RemoteException | NotBoundException | RuntimeException e) {
+            System.err.println("["+hostname+":"+port+"] could not report the completion of snapshot " + snapshot.snapshotId + " to " + initiator);
         }
     }
 
     /**
      * This method sends a specific marker to all the connected RemoteNodes via RMI.
      * Together with the specific marker, also an identifier of the snapshot initiator
-     * is propagated
+     * is propagated. The markers are added to the outbound queue of each RemoteNode,
+     * after the messages already queued on the same link.
      * @param snapshotId the unique snapshot identifier (i.e. marker) that is being propagated
      * @param initiatorHostname the IP address of the entity that initiated the snapshot
      * @param initiatorPort the port of the entity that initiated the snapshot
      * */
     private void propagateMarker(String initiatorHostname, int initiatorPort, int snapshotId) {
+        HashMap<Entity, CompletableFuture<Void>> markers = new HashMap<>();
         for (RemoteNode<MessageType> remoteNode : this.remoteNodes) {
+            markers.put(new Entity(remoteNode.hostname, remoteNode.port), enqueue(remoteNode, new Outbound<>(initiatorHostname, initiatorPort, snapshotId)));
+        }
+        CompletableFuture.allOf(markers.values().toArray(new CompletableFuture<?>[0])).whenComplete((ignored, error) -> {
+            if (error == null)
+                return;
+            Map<Entity, Throwable> failures = collectFailures(markers);
+            System.err.println("["+hostname+":"+port+"] could not deliver the marker of snapshot " + snapshotId + " to " + failures.keySet());
+            executors.submit(() -> appConnector.handleMarkerFailures(snapshotId, failures));
+        });
+    }
+
+    /**
+     * This method collects the exceptions of the markers that could not be delivered
+     * @param markers the delivery of the marker to each node, all of them must be completed
+     * @return the exception thrown by each node that did not receive the marker
+     * */
+    static Map<Entity, Throwable> collectFailures(Map<Entity, CompletableFuture<Void>> markers) {
+        LinkedHashMap<Entity, Throwable> failures = new LinkedHashMap<>();
+        markers.forEach((entity, marker) -> {
             try {
-                remoteNode.remoteInterface.receiveMarker(this.hostname, this.port, initiatorHostname, initiatorPort, snapshotId);
+                marker.join();
+            } catch (CompletionException | CancellationException e) {
+                failures.put(entity, e instanceof CompletionException ? e.getCause() : e);
             }
-            catch (Exception ignore){
+        });
+        return failures;
+    }
+
+    /**
+     * This method adds an element to the outbound queue of the provided RemoteNode and starts
+     * a sender for that queue if none is running
+     * @param remoteNode the node the element is sent to
+     * @param outbound the messages or the marker to send
+     * @return a future completed once the element has been received by the remote node
+     * */
+    protected CompletableFuture<Void> enqueue(RemoteNode<MessageType> remoteNode, Outbound<MessageType> outbound) {
+        boolean startSender;
+        synchronized (remoteNode.outbound) {
+            if (remoteNode.stopped) {
+                outbound.future.completeExceptionally(new RestoreInProgress(remoteNode.hostname + ":" + remoteNode.port + " | the link has been stopped by a restore"));
+                return outbound.future;
             }
+            remoteNode.outbound.add(outbound);
+            startSender = !remoteNode.draining;
+            remoteNode.draining = true;
         }
+        if (startSender)
+            startSender(remoteNode);
+        return outbound.future;
     }
 
     /**
-     * This method retrieve the RemoteNode object associated to the hostname/port couple by
-     * performing a lookup in the list of stored RemoteNode objects, since each one
-     * contains the hostname/port as attributes. The association RemoteNode and hostname/port is unique
-     * @param hostname the hostname of the Remote Node to look up
-     * @param port the port of the Remote Node to look up
+     * This method submits the sender of a RemoteNode, whose draining variable has already been set
+     * @param remoteNode the node whose outbound queue is emptied
      * */
-    protected RemoteNode<MessageType> getRemoteNode(String hostname, int port) {
-        for (RemoteNode<MessageType> remoteNode : remoteNodes) {
-            if(remoteNode.hostname.equals(hostname) && remoteNode.port==port)
-                return remoteNode;
+    private void startSender(RemoteNode<MessageType> remoteNode) {
+        try {
+            senders.submit(() -> drain(remoteNode));
+        } catch (RejectedExecutionException e) {
+            // the node has been stopped: nothing will be sent on the link anymore
+            synchronized (remoteNode.outbound) {
+                Outbound<MessageType> rejected;
+                while ((rejected = remoteNode.outbound.poll()) != null) {
+                    rejected.future.completeExceptionally(e);
+                }
+                remoteNode.draining = false;
+                remoteNode.busySince = 0;
+            }
         }
-        return null;
     }
 
     /**
-     * This method checks if the same marker has been received by all nodes connected to the current node.
-     * If all connected nodes have sent a specific marker, it means that the related snapshot is over
-     * @param snapshotId the unique snapshot identifier (i.e. marker) to check
+     * This method empties the outbound queue of a RemoteNode. Consecutive messages are grouped
+     * into a single receiveMessages call, markers are sent on their own, always respecting the queue order.
+     * The messages refused by a busy node are put back at the head of the queue and the sender is submitted again
+     * after BUSY_RETRY_DELAY: meanwhile its thread empties the queues of the other nodes
+     * @param remoteNode the node whose outbound queue is emptied
      * */
-    private boolean receivedMarkerFromAllLinks(int snapshotId) {
-        return remoteNodes.stream().filter(rn->rn.snapshotIdsReceived.contains(snapshotId)).count() == remoteNodes.size();
+    private void drain(RemoteNode<MessageType> remoteNode) {
+        while (true) {
+            ArrayList<Outbound<MessageType>> batch = new ArrayList<>();
+            Outbound<MessageType> marker = null;
+            synchronized (remoteNode.outbound) {
+                int batchSize = 0;
+                Outbound<MessageType> next;
+                while ((next = remoteNode.outbound.peek()) != null && batchSize < MAX_BATCH_SIZE) {
+                    if (next.isMarker()) {
+                        if (batch.isEmpty())
+                            marker = remoteNode.outbound.poll();
+                        break;
+                    }
+                    batch.add(remoteNode.outbound.poll());
+                    batchSize += next.messages.size();
+                }
+                if (batch.isEmpty() && marker == null) {
+                    remoteNode.draining = false;
+                    return;
+                }
+            }
+            if (marker != null) {
+                sendMarker(remoteNode, marker);
+            } else if (!sendBatch(remoteNode, batch)) {
+                requeue(remoteNode, batch);
+                return;
+            }
+        }
     }
 
     /**
-     * This method checks if inside the remote node list it exists a node with the provided hostname and port
-     * @param hostname the hostname of the node to search for
-     * @param port the RMI registry port of the node to search for
-     */
-    private boolean checkIfRemoteNodePresent(String hostname, int port){
-        for (RemoteNode<MessageType> remoteNode : remoteNodes){
-            if(remoteNode.equals(new RemoteNode<>(hostname, port, null)))
-                return true;
+     * This method puts the messages refused by a busy node back at the head of the outbound queue, in their order, and
+     * submits the sender again after BUSY_RETRY_DELAY. Once busyRetryTimeout has passed since the first refusal the
+     * messages fail with ReceiverBusyException instead, so that two nodes waiting for each other to catch up don't wait forever
+     * @param remoteNode the busy node
+     * @param batch the refused messages
+     * */
+    private void requeue(RemoteNode<MessageType> remoteNode, ArrayList<Outbound<MessageType>> batch) {
+        long now = System.nanoTime();
+        synchronized (remoteNode.outbound) {
+            if (remoteNode.stopped) {
+                // a restore has started meanwhile: the messages must not reach the restored node
+                RestoreInProgress e = new RestoreInProgress(remoteNode.hostname + ":" + remoteNode.port + " | the link has been stopped by a restore");
+                batch.forEach(outbound -> outbound.future.completeExceptionally(e));
+                remoteNode.draining = false;
+                remoteNode.busySince = 0;
+                return;
+            }
+            if (remoteNode.busySince == 0)
+                remoteNode.busySince = now;
+            if (busyRetryTimeout > 0 && now - remoteNode.busySince >= TimeUnit.MILLISECONDS.toNanos(busyRetryTimeout)) {
+                // the node is reachable but behind: not a RemoteException, so that the sender doesn't take it for a node to remove
+                ReceiverBusyException e = new ReceiverBusyException(remoteNode.hostname + ":" + remoteNode.port + " | refused the messages for " + busyRetryTimeout + " ms");
+                batch.forEach(outbound -> outbound.future.completeExceptionally(e));
+                remoteNode.busySince = 0;
+            } else {
+                for (int i = batch.size() - 1; i >= 0; i--) {
+                    remoteNode.outbound.addFirst(batch.get(i));
+                }
+            }
+        }
+        CompletableFuture.delayedExecutor(BUSY_RETRY_DELAY, TimeUnit.MILLISECONDS).execute(() -> startSender(remoteNode));
+    }
+
+    private void sendMarker(RemoteNode<MessageType> remoteNode, Outbound<MessageType> marker) {
+        try {
+            remoteNode.remoteInterface.receiveMarker(this.hostname, this.port, marker.initiatorHostname, marker.initiatorPort, marker.snapshotId);
+            marker.future.complete(null);
+        } catch (Exception e) {
+            marker.future.completeExceptionally(e);
         }
-        return false;
     }
 
     /**
-     * This method checks if from the provided entity the local node has already received the marker
-     * @param hostname the hostname of the provided entity
-     * @param port the RMI port of the provided entity
-     * @param snapshotId the identifier of the snapshot to check for
-     */
-    private boolean checkIfReceivedMarker(String hostname, int port, int snapshotId){
-        for (RemoteNode<MessageType> remoteNode : remoteNodes){
-            if(remoteNode.equals(new RemoteNode<>(hostname, port, null)))
-                if(remoteNode.snapshotIdsReceived.contains(snapshotId))
-                    return true;
+     * @return false if the messages have been refused by the busy node and must be sent again, true otherwise
+     * */
+    private boolean sendBatch(RemoteNode<MessageType> remoteNode, ArrayList<Outbound<MessageType>> batch) {
+        ArrayList<MessageType> messages = new ArrayList<>();
+        for (Outbound<MessageType> outbound : batch) {
+            messages.addAll(outbound.messages);
         }
-        return false;
+        try {
+            try {
+                remoteNode.remoteInterface.receiveMessages(this.hostname, this.port, messages);
+            } catch (RemoteException e) {
+                // the remote node may have been restarted: we look it up again and retry once, the senders
+                // of the same node share the new reference instead of each looking the node up
+                remoteNode.remoteInterface = stubs.refresh(remoteNode.hostname, remoteNode.port, remoteNode.remoteInterface);
+                remoteNode.remoteInterface.receiveMessages(this.hostname, this.port, messages);
+            }
+            batch.forEach(outbound -> outbound.future.complete(null));
+        } catch (ReceiverBusyException e) {
+            return false;
+        } catch (Exception e) {
+            batch.forEach(outbound -> outbound.future.completeExceptionally(e));
+        }
+        synchronized (remoteNode.outbound) {
+            remoteNode.busySince = 0;
+        }
+        return true;
+    }
+
+    /**
+     * This method reads a snapshot saved by this node, once the snapshots waiting to be saved have been written.
+     * The snapshot is pinned, so that it isn't deleted by the collector until the restore ends
+     * @param snapshotId the unique snapshot identifier
+     * */
+    private Snapshot<StateType, MessageType> readSnapshot(int snapshotId) throws IOException, ClassNotFoundException {
+        persister.awaitPending();
+        store.pin(snapshotId, this.hostname, this.port);
+        return store.read(snapshotId, this.hostname, this.port);
+    }
+
+    /**
+     * This method returns the state to store in a new snapshot: a copy (see StateCopier) of the state returned by the
+     * StateProvider if one is registered, the last state provided with updateState otherwise
+     * @throws IOException thrown if the state returned by the StateProvider cannot be copied
+     * */
+    protected StateType captureState() throws IOException {
+        StateProvider<StateType> provider = stateProvider;
+        if (provider == null) {
+            synchronized (currentStateLock) {
+                return currentState;
+            }
+        }
+        return stateCopier.copy(provider.getState());
+    }
+
+    /**
+     * This method retrieve the RemoteNode object associated to the hostname/port couple by
+     * performing a lookup in the index of stored RemoteNode objects. The association RemoteNode and hostname/port is unique
+     * @param hostname the hostname of the Remote Node to look up
+     * @param port the port of the Remote Node to look up
+     * */
+    protected RemoteNode<MessageType> getRemoteNode(String hostname, int port) {
+        return remoteNodes.get(hostname, port);
     }
-}
\ No newline at end of file
+}
@@ -26,8 +26,26 @@ interface RemoteInterface<MessageType> extends Remote {
      * @throws RemoteException communication-related exception that may occur during remote calls
      * @throws NotBoundException the remote node that is being removed has not bound its remote implementation
      * @throws SnapshotInterruptException it's not possible to remove a node when a snapshot is running
+     * @throws ReceiverBusyException the node is behind on the messages of the sender, the message has not been received
+     * @throws RestoreInProgress the node is restoring a snapshot, the message has been dropped
      * */
-    void receiveMessage(String senderHostname, int senderPort, MessageType message) throws RemoteException, NotBoundException, SnapshotInterruptException;
+    void receiveMessage(String senderHostname, int senderPort, MessageType message) throws RemoteException, NotBoundException, SnapshotInterruptException, ReceiverBusyException, RestoreInProgress;
+
+    /**
+     * This method is called from a remote node to send a batch of messages, in the order they were sent.
+     * It behaves as receiveMessage called on each message, but the whole batch is recorded inside the running snapshots at once,
+     * so a marker received on the same link is either before or after all the messages of the batch
+     * @param senderHostname the hostname of the entity that sent the messages that are being received
+     * @param senderPort the RMI registry port of the entity that sent the messages that are being received
+     * @param messages the messages that are being received
+     * @throws RemoteException communication-related exception that may occur during remote calls
+     * @throws NotBoundException the remote node that is being removed has not bound its remote implementation
+     * @throws SnapshotInterruptException it's not possible to remove a node when a snapshot is running
+     * @throws ReceiverBusyException the node is behind on the messages of the sender, none of the messages has been received:
+     * they can be sent again later
+     * @throws RestoreInProgress the node is restoring a snapshot, the messages have been dropped
+     * */
+    void receiveMessages(String senderHostname, int senderPort, ArrayList<MessageType> messages) throws RemoteException, NotBoundException, SnapshotInterruptException, ReceiverBusyException, RestoreInProgress;
 
     /**
      * It is called from a remote node to send a marker of a running snapshot on the network
@@ -97,9 +115,35 @@ interface RemoteInterface<MessageType> extends Remote {
     void restoreOldIncomingMessages(int snapshotId) throws IOException, RestoreAlreadyInProgress, ClassNotFoundException;
 
     /**
-     * This method is called from a remote node to set our ready state, this state is used to indicate if a node is currently restoring a snapshot or not
+     * This method is called from a remote node to set our ready state, this state is used to indicate if a node is currently restoring a snapshot or not.
+     * When a restore starts the snapshots running on the node are interrupted: their initiator gets a failed report
      * @param value the value to be set
      * @throws RemoteException communication-related exception that may occur during remote calls
      */
     void setReady(boolean value) throws RemoteException;
-}
\ No newline at end of file
+
+    /**
+     * This method is called from a remote node to abort a restore that has not been completed: the connections and the state
+     * that the node had before the restore are put back and the node leaves the not-ready state
+     * @throws RemoteException communication-related exception that may occur during remote calls
+     */
+    void abortRestore() throws RemoteException;
+
+    /**
+     * This method is called from a remote node, on the node that started a snapshot, once the remote node has saved its part of the snapshot
+     * @param hostname the hostname of the node that saved its part
+     * @param port the port of the node that saved its part
+     * @param snapshotId the unique snapshot identifier
+     * @param bytes the size of the saved part, in bytes
+     * @param connections the nodes connected to the remote node when the snapshot started
+     * @param error the reason why the remote node could not save its part, null if it has been saved
+     * @throws RemoteException communication-related exception that may occur during remote calls
+     */
+    void snapshotCompleted(String hostname, int port, int snapshotId, long bytes, ArrayList<Entity> connections, String error) throws RemoteException;
+
+    /**
+     * This method is called from a remote node to check that this node can be reached, it does nothing
+     * @throws RemoteException communication-related exception that may occur during remote calls
+     */
+    void ping() throws RemoteException;
+}
@@ -0,0 +1,176 @@
+package library;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * This class stores the RemoteNodes connected to the local node, indexed by hostname and port.
+ * Lookups are served by an open addressing hash table and don't allocate any object, so they can
+ * be performed for every received message. The table is immutable once published: every change
+ * builds a new one, hence lookups and iterations never block and never observe a partial change.
+ * Changes to the topology are rare compared to lookups, which justifies the copy.
+ * @param <MessageType> this is the type that will be exchanged as a message between nodes
+ * */
+class RemoteNodeTable<MessageType> implements Iterable<RemoteNode<MessageType>> {
+
+    /**
+     * An empty table, shared by all the empty instances
+     * */
+    private static final Table EMPTY = new Table(new RemoteNode<?>[0]);
+
+    /**
+     * The currently published table
+     * */
+    private volatile Table table = EMPTY;
+
+    /**
+     * This method retrieves the RemoteNode associated to the hostname/port couple
+     * @param hostname the hostname of the Remote Node to look up
+     * @param port the port of the Remote Node to look up
+     * @return the RemoteNode, null if not present
+     * */
+    public RemoteNode<MessageType> get(String hostname, int port) {
+        return (RemoteNode<MessageType>) table.get(hostname, port);
+    }
+
+    /**
+     * This method checks if a node with the provided hostname and port is present
+     * @param hostname the hostname of the node to search for
+     * @param port the port of the node to search for
+     * */
+    public boolean contains(String hostname, int port) {
+        return table.get(hostname, port) != null;
+    }
+
+    /**
+     * This method adds a RemoteNode, unless a node with the same hostname and port is already present.
+     * The node gets the lowest channel not used by the other nodes, so channels stay dense
+     * @param remoteNode the node to add
+     * @return true if the node has been added
+     * */
+    public synchronized boolean add(RemoteNode<MessageType> remoteNode) {
+        Table current = table;
+        if (current.get(remoteNode.hostname, remoteNode.port) != null)
+            return false;
+        BitSet usedChannels = new BitSet(current.nodes.length);
+        for (RemoteNode<?> node : current.nodes) {
+            usedChannels.set(node.channel);
+        }
+        remoteNode.channel = usedChannels.nextClearBit(0);
+        RemoteNode<?>[] nodes = Arrays.copyOf(current.nodes, current.nodes.length + 1);
+        nodes[current.nodes.length] = remoteNode;
+        table = new Table(nodes);
+        return true;
+    }
+
+    /**
+     * This method removes the RemoteNode associated to the hostname/port couple
+     * @param hostname the hostname of the Remote Node to remove
+     * @param port the port of the Remote Node to remove
+     * @return the removed RemoteNode, null if not present
+     * */
+    public synchronized RemoteNode<MessageType> remove(String hostname, int port) {
+        Table current = table;
+        RemoteNode<?> removed = current.get(hostname, port);
+        if (removed == null)
+            return null;
+        RemoteNode<?>[] nodes = new RemoteNode<?>[current.nodes.length - 1];
+        int i = 0;
+        for (RemoteNode<?> node : current.nodes) {
+            if (node != removed)
+                nodes[i++] = node;
+        }
+        table = nodes.length == 0 ? EMPTY : new Table(nodes);
+        return (RemoteNode<MessageType>) removed;
+    }
+
+    /**
+     * This method removes all the RemoteNodes
+     * */
+    public synchronized void clear() {
+        table = EMPTY;
+    }
+
+    public int size() {
+        return table.nodes.length;
+    }
+
+    public boolean isEmpty() {
+        return table.nodes.length == 0;
+    }
+
+    /**
+     * The returned iterator walks the nodes present when it was created, in insertion order,
+     * and it is not affected by later changes
+     * */
+    @Override
+    public Iterator<RemoteNode<MessageType>> iterator() {
+        RemoteNode<?>[] nodes = table.nodes;
+        return new Iterator<RemoteNode<MessageType>>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < nodes.length;
+            }
+
+            @Override
+            public RemoteNode<MessageType> next() {
+                if (next >= nodes.length)
+                    throw new NoSuchElementException();
+                return (RemoteNode<MessageType>) nodes[next++];
+            }
+        };
+    }
+
+    /**
+     * An immutable set of nodes: the nodes in insertion order and the hash index built on them
+     * */
+    private static final class Table {
+
+        /**
+         * The nodes in insertion order
+         * */
+        private final RemoteNode<?>[] nodes;
+
+        /**
+         * The hash index, with linear probing. Its length is a power of two at least twice the number of nodes,
+         * so there is always an empty slot ending the probe sequence
+         * */
+        private final RemoteNode<?>[] slots;
+
+        private Table(RemoteNode<?>[] nodes) {
+            this.nodes = nodes;
+            int capacity = Integer.highestOneBit(Math.max(nodes.length, 1) * 2 - 1) << 1;
+            this.slots = new RemoteNode<?>[capacity];
+            for (RemoteNode<?> node : nodes) {
+                int i = hash(node.hostname, node.port) & (capacity - 1);
+                while (slots[i] != null)
+                    i = (i + 1) & (capacity - 1);
+                slots[i] = node;
+            }
+        }
+
+        private RemoteNode<?> get(String hostname, int port) {
+            int mask = slots.length - 1;
+            int i = hash(hostname, port) & mask;
+            RemoteNode<?> node;
+            while ((node = slots[i]) != null) {
+                if (node.port == port && node.hostname.equals(hostname))
+                    return node;
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        /**
+         * The hash of a hostname/port couple, the hashCode of a String is cached so it is computed only once
+         * */
+        private static int hash(String hostname, int port) {
+            int h = hostname.hashCode() * 31 + port;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package library;
+
+import library.exceptions.RestoreAlreadyInProgress;
+import library.exceptions.RestoreNotPossible;
+import library.exceptions.RestorePhaseException;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * This class restores a snapshot on the initiator of the restore and on all the nodes it was connected to.
+ * The restore is split into phases (see RestorePhase): each phase calls all the nodes at the same time, as many
+ * of them concurrently as the threads of the executor, and acts as a barrier for the next one. If a node fails before READY the restore
+ * is aborted on every node, which gets back the connections and the state it had before, so that the nodes never
+ * handle messages with a mix of restored and not restored states.
+ * */
+class RestoreCoordinator<StateType, MessageType> {
+
+    /**
+     * A remote call made on each node during a phase
+     * */
+    private interface NodeCall<MessageType> {
+        void call(RemoteInterface<MessageType> node) throws Exception;
+    }
+
+    private final RemoteImplementation<StateType, MessageType> localNode;
+
+    /**
+     * Runs the remote calls of a phase
+     * */
+    private final ExecutorService executor;
+
+    /**
+     * The duration of each phase, in nanoseconds
+     * */
+    private final EnumMap<RestorePhase, Long> timings = new EnumMap<>(RestorePhase.class);
+
+    RestoreCoordinator(RemoteImplementation<StateType, MessageType> localNode, ExecutorService executor) {
+        this.localNode = localNode;
+        this.executor = executor;
+    }
+
+    /**
+     * This method restores the snapshot on this node and on the nodes it was connected to when it has been taken
+     * @param snapshotId the unique snapshot identifier
+     * @throws RestoreNotPossible the restore has been aborted on all the nodes, the cause reports the failed ones
+     * @throws RestorePhaseException some of the nodes failed after the restore has been completed (READY or MESSAGES phase)
+     * */
+    void restore(int snapshotId) throws RestoreNotPossible, RestoreAlreadyInProgress, IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        localNode.setReady(false);
+        try {
+            localNode.restoreConnections(snapshotId);
+        } catch (RestoreNotPossible | RestoreAlreadyInProgress | IOException | ClassNotFoundException | RuntimeException e) {
+            localNode.abortRestore();
+            throw e;
+        }
+        ArrayList<RemoteNode<MessageType>> nodes = new ArrayList<>();
+        localNode.remoteNodes.forEach(nodes::add);
+
+        Map<Entity, Throwable> failures = runPhase(RestorePhase.PREPARE, start, nodes, node -> node.setReady(false));
+        if (!failures.isEmpty())
+            abort(RestorePhase.PREPARE, snapshotId, nodes, failures);
+
+        failures = runPhase(RestorePhase.CONNECTIONS, System.nanoTime(), nodes, node -> node.restoreConnections(snapshotId));
+        if (!failures.isEmpty())
+            abort(RestorePhase.CONNECTIONS, snapshotId, nodes, failures);
+
+        start = System.nanoTime();
+        try {
+            localNode.restoreState(snapshotId);
+        } catch (RestoreAlreadyInProgress | IOException | ClassNotFoundException | RuntimeException e) {
+            abort(RestorePhase.STATE, snapshotId, nodes, Map.of(new Entity(localNode.hostname, localNode.port), e));
+        }
+        failures = runPhase(RestorePhase.STATE, start, nodes, node -> node.restoreState(snapshotId));
+        if (!failures.isEmpty())
+            abort(RestorePhase.STATE, snapshotId, nodes, failures);
+
+        // from now on the restored states are used: the nodes that fail can no longer be rolled back
+        start = System.nanoTime();
+        localNode.setReady(true);
+        Map<Entity, Throwable> readyFailures = runPhase(RestorePhase.READY, start, nodes, node -> node.setReady(true));
+        ArrayList<RemoteNode<MessageType>> readyNodes = new ArrayList<>(nodes);
+        readyNodes.removeIf(node -> readyFailures.containsKey(new Entity(node.hostname, node.port)));
+
+        start = System.nanoTime();
+        localNode.restoreOldIncomingMessages(snapshotId);
+        Map<Entity, Throwable> messagesFailures = runPhase(RestorePhase.MESSAGES, start, readyNodes, node -> node.restoreOldIncomingMessages(snapshotId));
+
+        if (!readyFailures.isEmpty())
+            throw new RestorePhaseException("Could not complete the restore of snapshot " + snapshotId + " on " + readyFailures.keySet(), RestorePhase.READY, readyFailures);
+        if (!messagesFailures.isEmpty())
+            throw new RestorePhaseException("Could not restore the messages of snapshot " + snapshotId + " on " + messagesFailures.keySet(), RestorePhase.MESSAGES, messagesFailures);
+    }
+
+    /**
+     * This method runs a phase on all the provided nodes and records its duration
+     * @param phase the phase to run
+     * @param start the beginning of the phase, as returned by System.nanoTime()
+     * @param nodes the nodes to call
+     * @param call the call to make
+     * @return the exception thrown by each node that failed
+     * */
+    private Map<Entity, Throwable> runPhase(RestorePhase phase, long start, ArrayList<RemoteNode<MessageType>> nodes, NodeCall<MessageType> call) {
+        Map<Entity, Throwable> failures = callAll(nodes, call);
+        timings.put(phase, System.nanoTime() - start);
+        return failures;
+    }
+
+    /**
+     * This method makes the same call on all the provided nodes at the same time and waits until all of them have ended
+     * @param nodes the nodes to call
+     * @param call the call to make
+     * @return the exception thrown by each node that failed
+     * */
+    private Map<Entity, Throwable> callAll(ArrayList<RemoteNode<MessageType>> nodes, NodeCall<MessageType> call) {
+        LinkedHashMap<Entity, CompletableFuture<Void>> calls = new LinkedHashMap<>();
+        for (RemoteNode<MessageType> node : nodes) {
+            calls.put(new Entity(node.hostname, node.port), CompletableFuture.runAsync(() -> {
+                try {
+                    call.call(node.remoteInterface);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, executor));
+        }
+        // the barrier: the next phase starts only when all the nodes have ended this one
+        CompletableFuture.allOf(calls.values().toArray(new CompletableFuture<?>[0])).exceptionally(error -> null).join();
+        return RemoteImplementation.collectFailures(calls);
+    }
+
+    /**
+     * This method aborts the restore on this node and on all the provided nodes, including the ones that failed
+     * @param phase the phase some nodes failed in
+     * @param snapshotId the unique snapshot identifier
+     * @param nodes the nodes taking part in the restore
+     * @param failures the exception thrown by each node that failed
+     * @throws RestoreNotPossible always, it reports the failed nodes
+     * */
+    private void abort(RestorePhase phase, int snapshotId, ArrayList<RemoteNode<MessageType>> nodes, Map<Entity, Throwable> failures) throws RestoreNotPossible {
+        Map<Entity, Throwable> abortFailures = callAll(nodes, RemoteInterface::abortRestore);
+        localNode.abortRestore();
+        if (!abortFailures.isEmpty())
+            System.err.println("["+localNode.hostname+":"+localNode.port+"] could not abort the restore on " + abortFailures.keySet());
+        RestoreNotPossible exception = new RestoreNotPossible("The restore of snapshot " + snapshotId + " has been aborted, "
+                + failures.keySet() + " failed in the " + phase + " phase");
+        exception.initCause(new RestorePhaseException(exception.getMessage(), phase, failures));
+        throw exception;
+    }
+
+    /**
+     * @return the duration of each phase that has been run
+     * */
+    Map<RestorePhase, Duration> getTimings() {
+        EnumMap<RestorePhase, Duration> durations = new EnumMap<>(RestorePhase.class);
+        timings.forEach((phase, nanos) -> durations.put(phase, Duration.ofNanos(nanos)));
+        return Collections.unmodifiableMap(durations);
+    }
+}
@@ -0,0 +1,33 @@
+package library;
+
+/**
+ * The phases of a restore. Each phase is run on all the nodes at the same time and the next one starts
+ * only when it has ended on all of them. Until READY the restore can be aborted, putting back on every
+ * node the connections and the state it had before the restore
+ * */
+public enum RestorePhase {
+    /**
+     * The initiator restores its connections, then all the nodes stop handling messages and operations
+     * */
+    PREPARE,
+
+    /**
+     * The nodes restore their connections
+     * */
+    CONNECTIONS,
+
+    /**
+     * The nodes restore their state
+     * */
+    STATE,
+
+    /**
+     * The nodes handle messages and operations again: the restore can no longer be aborted
+     * */
+    READY,
+
+    /**
+     * The nodes handle the messages recorded in the snapshot
+     * */
+    MESSAGES
+}
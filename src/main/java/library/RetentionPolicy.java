@@ -0,0 +1,75 @@
+package library;
+
+/**
+ * This class describes which of the snapshots saved on disk by a node are kept. A snapshot is kept while all the
+ * limits are respected, counting from the most recent snapshot; the others are deleted in background.
+ * The most recent complete snapshot, the snapshot being restored and the snapshots needed to rebuild the state
+ * of a kept delta snapshot are never deleted. A limit set to 0 is disabled.
+ * */
+public class RetentionPolicy {
+
+    /**
+     * The maximum number of snapshots kept
+     * */
+    private int maxSnapshots = 0;
+
+    /**
+     * The maximum age of the snapshots kept, in milliseconds
+     * */
+    private long maxAgeMillis = 0;
+
+    /**
+     * The maximum number of bytes used by the snapshots kept
+     * */
+    private long maxBytes = 0;
+
+    /**
+     * The time between two runs of the collector deleting the snapshots, in milliseconds
+     * */
+    private long collectionIntervalMillis = 10_000;
+
+    /**
+     * This method checks if a snapshot can be kept
+     * @param count the number of snapshots kept, including this one
+     * @param ageMillis the age of this snapshot
+     * @param bytes the bytes used by the snapshots kept, including this one
+     * @return true if the snapshot respects all the limits
+     * */
+    boolean retains(int count, long ageMillis, long bytes) {
+        return (maxSnapshots == 0 || count <= maxSnapshots)
+                && (maxAgeMillis == 0 || ageMillis <= maxAgeMillis)
+                && (maxBytes == 0 || bytes <= maxBytes);
+    }
+
+    public int getMaxSnapshots() {
+        return maxSnapshots;
+    }
+
+    public void setMaxSnapshots(int maxSnapshots) {
+        this.maxSnapshots = maxSnapshots;
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    public void setMaxAgeMillis(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public long getCollectionIntervalMillis() {
+        return collectionIntervalMillis;
+    }
+
+    public void setCollectionIntervalMillis(long collectionIntervalMillis) {
+        this.collectionIntervalMillis = collectionIntervalMillis;
+    }
+}
@@ -0,0 +1,53 @@
+package library;
+
+import java.rmi.AlreadyBoundException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+
+/**
+ * Transport implementation based on Java RMI. The local RemoteInterface is exported with
+ * UnicastRemoteObject and bound in a registry created on the local port.
+ * Remote references are obtained with a registry lookup.
+ * @param <MessageType> this is the type that will be exchanged as a message between nodes
+ * */
+class RmiTransport<MessageType> implements Transport<MessageType> {
+
+    /**
+     * The name used to bind the RemoteInterface inside the RMI registry
+     * */
+    private static final String BINDING_NAME = "RemoteInterface";
+
+    /**
+     * The exported local implementation, needed to un-export it
+     * */
+    private RemoteInterface<MessageType> localNode;
+
+    /**
+     * The port of the local RMI registry
+     * */
+    private int port;
+
+    @Override
+    public void export(String hostname, int port, RemoteInterface<MessageType> localNode) throws RemoteException, AlreadyBoundException {
+        RemoteInterface<MessageType> stub = (RemoteInterface<MessageType>) UnicastRemoteObject.exportObject(localNode, 0);
+        Registry registry = LocateRegistry.createRegistry(port);
+        registry.bind(BINDING_NAME, stub);
+        this.localNode = localNode;
+        this.port = port;
+    }
+
+    @Override
+    public RemoteInterface<MessageType> lookup(String hostname, int port) throws RemoteException, NotBoundException {
+        Registry registry = LocateRegistry.getRegistry(hostname, port);
+        return (RemoteInterface<MessageType>) registry.lookup(BINDING_NAME);
+    }
+
+    @Override
+    public void unexport() throws RemoteException, NotBoundException {
+        UnicastRemoteObject.unexportObject(localNode, true);
+        LocateRegistry.getRegistry(port).unbind(BINDING_NAME);
+    }
+}
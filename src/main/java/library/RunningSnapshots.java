@@ -0,0 +1,224 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * This class holds the snapshots running on a node, indexed by their identifier, and records the messages that
+ * belong to them. The messages received from a link are appended once to the log of its channel (see RemoteNode.channel),
+ * whatever the number of snapshots recording the link: each snapshot only keeps, for every channel, the range of the log
+ * between the moment it started on this node and the moment the marker has been received from the channel.
+ * The messages of a snapshot are collected from its ranges when it completes, and the parts of the logs that
+ * no running snapshot refers to anymore are dropped.
+ * <p>
+ * Snapshots are started, markers recorded and snapshots completed while holding the nodeSnapshotLock in write mode,
+ * messages are recorded while holding it in read mode: messages received from different links are recorded at the same time.
+ * @param <MessageType> this is the type that will be exchanged as a message between nodes
+ * @param <StateType> this is the type that will be saved as the state of the application
+ * */
+class RunningSnapshots<StateType, MessageType> {
+
+    /**
+     * The messages received from a link while at least one snapshot is recording it
+     * */
+    private static class ChannelLog<MessageType> {
+        final ArrayList<Envelope<MessageType>> envelopes = new ArrayList<>();
+
+        /**
+         * The position, since the log has been created, of the first envelope still kept
+         * */
+        long base;
+
+        /**
+         * The number of running snapshots still recording the link
+         * */
+        int recording;
+
+        long end() {
+            return base + envelopes.size();
+        }
+    }
+
+    /**
+     * The ranges of the channel logs that belong to a running snapshot, -1 where not set
+     * */
+    private static class Ranges {
+        final long[] from;
+        final long[] to;
+
+        Ranges(int channels) {
+            from = new long[channels];
+            to = new long[channels];
+            Arrays.fill(from, -1);
+            Arrays.fill(to, -1);
+        }
+    }
+
+    private final HashMap<Integer, Snapshot<StateType, MessageType>> snapshots = new HashMap<>();
+
+    private final HashMap<Integer, Ranges> ranges = new HashMap<>();
+
+    /**
+     * The number of completed snapshots remembered by hasCompleted
+     * */
+    private static final int COMPLETED_KEPT = 1024;
+
+    /**
+     * The identifiers of the last snapshots completed on this node, oldest first
+     * */
+    private final LinkedHashSet<Integer> completed = new LinkedHashSet<>();
+
+    /**
+     * The logs indexed by channel
+     * */
+    private ChannelLog<MessageType>[] logs = newLogs(0);
+
+    /**
+     * @param snapshotId the unique snapshot identifier
+     * @return the running snapshot, null if it isn't running on this node
+     * */
+    Snapshot<StateType, MessageType> get(int snapshotId) {
+        return snapshots.get(snapshotId);
+    }
+
+    /**
+     * @param snapshotId the unique snapshot identifier
+     * @return true if the snapshot has recently completed on this node: a marker received afterwards, on a link
+     * connected after the snapshot started, must not start it again
+     * */
+    boolean hasCompleted(int snapshotId) {
+        return completed.contains(snapshotId);
+    }
+
+    boolean isEmpty() {
+        return snapshots.isEmpty();
+    }
+
+    int size() {
+        return snapshots.size();
+    }
+
+    Collection<Snapshot<StateType, MessageType>> values() {
+        return snapshots.values();
+    }
+
+    /**
+     * This method adds a snapshot whose state has just been recorded: from now on it records the messages
+     * received from the provided nodes, until their markers are received
+     * @param snapshot the snapshot, its marker tracker must be set
+     * @param remoteNodes the nodes connected when the snapshot starts
+     * */
+    void start(Snapshot<StateType, MessageType> snapshot, Iterable<RemoteNode<MessageType>> remoteNodes) {
+        int channels = 0;
+        for (RemoteNode<MessageType> node : remoteNodes) {
+            channels = Math.max(channels, node.channel + 1);
+        }
+        if (channels > logs.length) {
+            ChannelLog<MessageType>[] grown = newLogs(channels);
+            System.arraycopy(logs, 0, grown, 0, logs.length);
+            logs = grown;
+        }
+        Ranges snapshotRanges = new Ranges(channels);
+        for (RemoteNode<MessageType> node : remoteNodes) {
+            ChannelLog<MessageType> log = logs[node.channel];
+            snapshotRanges.from[node.channel] = log.end();
+            log.recording++;
+        }
+        snapshots.put(snapshot.snapshotId, snapshot);
+        ranges.put(snapshot.snapshotId, snapshotRanges);
+    }
+
+    /**
+     * This method records the marker of a running snapshot received from a channel: the messages received
+     * from the channel afterwards don't belong to the snapshot
+     * @param snapshot the running snapshot
+     * @param channel the channel the marker has been received from
+     * @return false if the marker had already been received from the channel
+     * */
+    boolean closeChannel(Snapshot<StateType, MessageType> snapshot, int channel) {
+        if (!snapshot.markers.close(channel))
+            return false;
+        Ranges snapshotRanges = ranges.get(snapshot.snapshotId);
+        if (channel < snapshotRanges.from.length && snapshotRanges.from[channel] >= 0) {
+            snapshotRanges.to[channel] = logs[channel].end();
+            logs[channel].recording--;
+        }
+        return true;
+    }
+
+    /**
+     * This method records the messages received from a link, for all the snapshots that are recording it
+     * @param channel the channel of the link
+     * @param sender the node that sent the messages
+     * @param messages the received messages, in the order they have been sent
+     * */
+    void record(int channel, Entity sender, List<MessageType> messages) {
+        if (channel >= logs.length)
+            return;
+        ChannelLog<MessageType> log = logs[channel];
+        if (log.recording == 0)
+            return;
+        synchronized (log) {
+            for (MessageType message : messages) {
+                log.envelopes.add(new Envelope<>(sender, message));
+            }
+        }
+    }
+
+    /**
+     * This method removes a snapshot whose markers have been received from all the channels.
+     * The messages of its ranges are added to the snapshot and the marker tracker is dropped
+     * @param snapshot the running snapshot
+     * */
+    void complete(Snapshot<StateType, MessageType> snapshot) {
+        snapshots.remove(snapshot.snapshotId);
+        completed.add(snapshot.snapshotId);
+        if (completed.size() > COMPLETED_KEPT)
+            completed.remove(completed.iterator().next());
+        Ranges snapshotRanges = ranges.remove(snapshot.snapshotId);
+        for (int channel = 0; channel < snapshotRanges.from.length; channel++) {
+            long from = snapshotRanges.from[channel];
+            if (from < 0)
+                continue;
+            ChannelLog<MessageType> log = logs[channel];
+            long to = snapshotRanges.to[channel] >= 0 ? snapshotRanges.to[channel] : log.end();
+            snapshot.messages.addAll(log.envelopes.subList((int) (from - log.base), (int) (to - log.base)));
+            trim(channel);
+        }
+        snapshot.markers = null;
+    }
+
+    /**
+     * This method drops the beginning of the log of a channel that no running snapshot refers to
+     * @param channel the channel of the log
+     * */
+    private void trim(int channel) {
+        ChannelLog<MessageType> log = logs[channel];
+        long keepFrom = log.end();
+        for (Ranges snapshotRanges : ranges.values()) {
+            if (channel < snapshotRanges.from.length && snapshotRanges.from[channel] >= 0)
+                keepFrom = Math.min(keepFrom, snapshotRanges.from[channel]);
+        }
+        int dropped = (int) (keepFrom - log.base);
+        if (dropped == log.envelopes.size()) {
+            log.envelopes.clear();
+            log.envelopes.trimToSize();
+        } else if (dropped > 0) {
+            log.envelopes.subList(0, dropped).clear();
+        }
+        log.base = keepFrom;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <MessageType> ChannelLog<MessageType>[] newLogs(int channels) {
+        ChannelLog<MessageType>[] logs = (ChannelLog<MessageType>[]) new ChannelLog<?>[channels];
+        for (int i = 0; i < channels; i++) {
+            logs[i] = new ChannelLog<>();
+        }
+        return logs;
+    }
+}
@@ -0,0 +1,68 @@
+package library;
+
+import java.io.*;
+
+/**
+ * Courtesy of
+ * www.infoworld.com/article/2077578/java-tip-76--an-alternative-to-the-deep-copy-technique.html
+ *
+ * Given that we decided to make a deep copy of a serializable object this trick allows us
+ * to make it by using only properties deriving from the fact that that object is serializable.
+ * So no Cloneable or similar approaches, that would have implied that the user must create a State class
+ * with specific characteristics mandated by the library (so not completely State agnostic)
+ *
+ * The serialized bytes are written to a buffer owned by the current thread and read back from it
+ * without copying them, so the buffer is allocated once per thread instead of once per copy.
+ * @param <StateType> this is the type that will be saved as the state of the application
+ */
+class SerializationStateCopier<StateType> implements StateCopier<StateType> {
+
+    /**
+     * Buffers bigger than this are released after the copy, so that a single huge state doesn't keep memory busy
+     * */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The buffer of each thread, shared by all the copiers since it doesn't depend on the state type
+     * */
+    private static final ThreadLocal<Buffer> buffers = ThreadLocal.withInitial(Buffer::new);
+
+    @Override
+    public StateType copy(StateType state) throws IOException {
+        Buffer buffer = buffers.get();
+        buffer.reset();
+        try {
+            // First serializing the object and its state to memory
+            try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+                out.writeObject(state);
+            }
+            // And then deserializing it from the same memory: the deserialization process
+            // will create a new object with the same state as in the serialized object
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(buffer.array(), 0, buffer.size()))) {
+                return (StateType) in.readObject();
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unable to deserialize the copy of the state", e);
+        } finally {
+            if (buffer.capacity() > MAX_RETAINED_BUFFER_SIZE)
+                buffers.remove();
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream that gives access to its internal array
+     * */
+    private static class Buffer extends ByteArrayOutputStream {
+        private Buffer() {
+            super(4096);
+        }
+
+        private byte[] array() {
+            return buf;
+        }
+
+        private int capacity() {
+            return buf.length;
+        }
+    }
+}
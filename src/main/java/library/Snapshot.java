@@ -38,6 +38,18 @@ class Snapshot<StateType, MessageType> {
      * */
     protected ArrayList<Envelope<MessageType>> messages = new ArrayList<>();
 
+    /**
+     * The markers received while the snapshot is running on this node, null once it has completed
+     * or if the snapshot has been loaded from disk
+     * */
+    protected MarkerTracker markers;
+
+    /**
+     * The node that started the snapshot, it is notified once the snapshot has been saved.
+     * Null if the snapshot has been loaded from disk
+     * */
+    protected Entity initiator;
+
     /**
      * Snapshot constructor that builds a full snapshot objects. Additionally, to
      * the unique snapshot identifier, this constructor also stores the state of
@@ -47,7 +59,7 @@ class Snapshot<StateType, MessageType> {
      * @param state  the current state of the node at the moment of the snapshot initialization
      * @param remoteNodes the list of connected nodes at the moment of snapshot initialization
      * */
-    public Snapshot(int id, StateType state, ArrayList<RemoteNode<MessageType>> remoteNodes){
+    public Snapshot(int id, StateType state, Iterable<RemoteNode<MessageType>> remoteNodes){
         this.snapshotId = id;
         this.state = state;
 
@@ -56,7 +68,7 @@ class Snapshot<StateType, MessageType> {
             Entity connectedNode = new Entity(node.hostname, node.port);
             connectedNodes.add(connectedNode);
         }
-
+        this.markers = new MarkerTracker(remoteNodes);
 
     }
 
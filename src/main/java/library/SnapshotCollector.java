@@ -0,0 +1,93 @@
+package library;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class periodically deletes, in background, the snapshots saved by a node that its retention
+ * policy doesn't keep. The deletion and the saving of the snapshots are mutually exclusive (see SnapshotStore),
+ * so the collector never deletes a snapshot being written or the base of a delta being computed.
+ * */
+class SnapshotCollector {
+
+    /**
+     * The thread running the collections
+     * */
+    private final ScheduledExecutorService scheduler;
+
+    private final RetentionPolicy policy;
+
+    private final SnapshotStore store;
+
+    private final String hostname;
+
+    private final int port;
+
+    /**
+     * The application notified of the deleted snapshots
+     * */
+    private final AppConnector<?, ?> appConnector;
+
+    /**
+     * The bytes reclaimed since the collector started
+     * */
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+
+    public SnapshotCollector(String name, RetentionPolicy policy, SnapshotStore store, String hostname, int port, AppConnector<?, ?> appConnector) {
+        this.policy = policy;
+        this.store = store;
+        this.hostname = hostname;
+        this.port = port;
+        this.appConnector = appConnector;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = policy.getCollectionIntervalMillis();
+        scheduler.scheduleWithFixedDelay(this::collect, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This method deletes the snapshots that the retention policy doesn't keep
+     * and notifies the application of the deleted ones
+     * */
+    void collect() {
+        try {
+            List<SnapshotManifest.Entry> removed = store.collect(policy, hostname, port);
+            if (removed.isEmpty())
+                return;
+            ArrayList<Integer> snapshotIds = new ArrayList<>();
+            long bytes = 0;
+            for (SnapshotManifest.Entry entry : removed) {
+                snapshotIds.add(entry.snapshotId);
+                bytes += entry.size;
+            }
+            reclaimedBytes.addAndGet(bytes);
+            appConnector.handleSnapshotsCollected(snapshotIds, bytes);
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            // the collection is retried at the next run
+            System.err.println("Could not delete the old snapshots");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the bytes reclaimed since the collector started
+     * */
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    /**
+     * This method stops the collector, a collection already running is completed
+     * */
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+}
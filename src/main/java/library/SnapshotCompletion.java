@@ -0,0 +1,64 @@
+package library;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This class collects, on the node that started a snapshot, the reports of the nodes that have saved their part.
+ * The initiator only knows its own connections, so the nodes expected to report are discovered from the reports
+ * themselves: each report carries the connections of its node. Since the network is connected, the snapshot is
+ * complete once every node that has been discovered has reported.
+ * */
+class SnapshotCompletion {
+
+    private final int snapshotId;
+
+    /**
+     * The moment the snapshot started, as returned by System.nanoTime()
+     * */
+    private final long start = System.nanoTime();
+
+    /**
+     * The nodes known to take part in the snapshot
+     * */
+    private final HashSet<Entity> expected = new HashSet<>();
+
+    private final LinkedHashMap<Entity, SnapshotReport.NodeReport> reports = new LinkedHashMap<>();
+
+    /**
+     * Completed with the report of the snapshot once all the nodes have saved their part
+     * */
+    final CompletableFuture<SnapshotReport> completed = new CompletableFuture<>();
+
+    /**
+     * @param snapshotId the unique snapshot identifier
+     * @param initiator the node that started the snapshot, the first one expected to report
+     * */
+    SnapshotCompletion(int snapshotId, Entity initiator) {
+        this.snapshotId = snapshotId;
+        this.expected.add(initiator);
+    }
+
+    /**
+     * This method records the report of a node
+     * @param node the node that has saved its part of the snapshot
+     * @param bytes the size of the saved part, in bytes
+     * @param connections the nodes connected to the reporting node when the snapshot started
+     * @param error the reason why the node could not save its part, null if it has been saved
+     * @return true if the report completes the snapshot
+     * */
+    synchronized boolean report(Entity node, long bytes, List<Entity> connections, String error) {
+        if (completed.isDone() || reports.containsKey(node))
+            return false;
+        long now = System.nanoTime();
+        reports.put(node, new SnapshotReport.NodeReport(node, Duration.ofNanos(now - start), bytes, error));
+        expected.addAll(connections);
+        if (!reports.keySet().containsAll(expected))
+            return false;
+        completed.complete(new SnapshotReport(snapshotId, Duration.ofNanos(now - start), reports));
+        return true;
+    }
+}
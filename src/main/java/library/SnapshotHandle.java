@@ -0,0 +1,56 @@
+package library;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This class is returned to the node that starts a snapshot (see DistributedSnapshot.initiateSnapshotAsync).
+ * It identifies the snapshot and lets the caller wait for its progress without blocking the node.
+ * */
+public class SnapshotHandle {
+
+    /**
+     * A unique identifier of the snapshot
+     * */
+    private final int snapshotId;
+
+    /**
+     * Completed once the marker has been delivered to all the connected nodes
+     * */
+    private final CompletableFuture<Void> markersDelivered;
+
+    /**
+     * Completed once all the nodes have saved their part of the snapshot
+     * */
+    private final CompletableFuture<SnapshotReport> completed;
+
+    SnapshotHandle(int snapshotId, CompletableFuture<Void> markersDelivered, CompletableFuture<SnapshotReport> completed) {
+        this.snapshotId = snapshotId;
+        this.markersDelivered = markersDelivered;
+        this.completed = completed;
+    }
+
+    public int getSnapshotId() {
+        return snapshotId;
+    }
+
+    /**
+     * @return a future completed once the marker has been delivered to all the connected nodes, or exceptionally
+     * with a MarkerDeliveryException reporting the nodes that did not receive it
+     * */
+    public CompletableFuture<Void> markersDelivered() {
+        return markersDelivered;
+    }
+
+    /**
+     * Each node reports to the initiator once it has saved its part of the snapshot: the returned future can be used
+     * to start the next snapshot only when the previous one is over. If a node can't be reached by the markers, its
+     * part is never saved: the future is completed exceptionally with a TimeoutException once the snapshot completion
+     * timeout of the configuration has passed. It can also be awaited with a shorter timeout (e.g. CompletableFuture.orTimeout)
+     * @return a future completed with the report of the snapshot once all the nodes have saved their part (or have
+     * failed to, see SnapshotReport.isSuccessful), or exceptionally if the markers could not be delivered by this node
+     * or if the nodes didn't report in time
+     * */
+    public CompletableFuture<SnapshotReport> completed() {
+        return completed;
+    }
+}
@@ -0,0 +1,261 @@
+package library;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * This class is the index of the snapshots saved by a node: for each snapshot id it stores the sequence number,
+ * the name, the size and the status of the snapshot. It is kept in memory by the SnapshotStore of the node; the
+ * stores on disk save it in the folder of the node after every change, replacing the previous file atomically,
+ * so that a crash never leaves a partial manifest.
+ * */
+class SnapshotManifest implements Serializable {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Name of the manifest file inside the folder of a node
+     * */
+    static final String FILE_NAME = "manifest.ser";
+
+    /**
+     * The status of a snapshot in the manifest
+     * */
+    enum Status {
+        /**
+         * The snapshot is being written, it can't be restored
+         * */
+        WRITING,
+        /**
+         * The snapshot has been written completely
+         * */
+        COMPLETE,
+        /**
+         * The write of the snapshot failed, it can't be restored
+         * */
+        FAILED
+    }
+
+    /**
+     * The information stored for each snapshot
+     * */
+    static class Entry implements Serializable {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        final int snapshotId;
+
+        /**
+         * The position of the snapshot in the sequence of snapshots saved by the node
+         * */
+        final int sequenceNumber;
+
+        /**
+         * The name of the snapshot in the store of the node (for the file store, its folder relative to the folder of the node)
+         * */
+        final String name;
+
+        /**
+         * The time the snapshot has been added, in milliseconds since the epoch
+         * */
+        final long creationTime;
+
+        long size;
+
+        /**
+         * The position of the segment of the snapshot, for the stores keeping all the segments in one file
+         * */
+        long offset;
+
+        Status status = Status.WRITING;
+
+        /**
+         * The name of the snapshot this delta snapshot is based on, null if the snapshot contains the full state
+         * */
+        String baseName;
+
+        Entry(int snapshotId, int sequenceNumber, String name, long creationTime) {
+            this.snapshotId = snapshotId;
+            this.sequenceNumber = sequenceNumber;
+            this.name = name;
+            this.creationTime = creationTime;
+        }
+    }
+
+    private final HashMap<Integer, Entry> entries = new HashMap<>();
+
+    /**
+     * All the entries, indexed by name. It also holds the entries replaced in the id index by a newer snapshot
+     * with the same id (the ids repeat after a restart of the node), until they are collected
+     * */
+    private final HashMap<String, Entry> entriesByName = new HashMap<>();
+
+    /**
+     * The sequence number of the last snapshot added
+     * */
+    private int lastSequenceNumber = 0;
+
+    /**
+     * Incremented each time the store rewrites all the segments of the node in a new file (see LogSnapshotStore)
+     * */
+    int generation = 0;
+
+    /**
+     * The last complete snapshot, null if there isn't any
+     * */
+    private Entry lastComplete;
+
+    /**
+     * The id of the snapshot being restored, it is never collected. It is not saved: a restore doesn't survive a restart
+     * */
+    private transient Integer pinned;
+
+    /**
+     * This method adds a new snapshot, in the WRITING status. A snapshot already saved with the same id can no longer
+     * be read or restored, it is deleted by the next collection unless a kept snapshot is based on it
+     * @param snapshotId the unique snapshot identifier
+     * @return the entry of the new snapshot
+     * */
+    Entry add(int snapshotId) {
+        int sequenceNumber = ++lastSequenceNumber;
+        Entry entry = new Entry(snapshotId, sequenceNumber, sequenceNumber + "_" + snapshotId, System.currentTimeMillis());
+        Entry replaced = entries.put(snapshotId, entry);
+        entriesByName.put(entry.name, entry);
+        if (replaced != null && replaced == lastComplete) {
+            lastComplete = null;
+            for (Entry other : entries.values()) {
+                if (other.status == Status.COMPLETE && (lastComplete == null || other.sequenceNumber > lastComplete.sequenceNumber))
+                    lastComplete = other;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * This method marks a snapshot as complete
+     * @param entry the entry of the snapshot
+     * @param size the size of the segment of the snapshot
+     * */
+    void complete(Entry entry, long size) {
+        entry.size = size;
+        entry.status = Status.COMPLETE;
+        if (lastComplete == null || entry.sequenceNumber > lastComplete.sequenceNumber)
+            lastComplete = entry;
+    }
+
+    /**
+     * @param snapshotId the unique snapshot identifier
+     * @return the entry of the snapshot, null if the snapshot isn't in the manifest
+     * */
+    Entry get(int snapshotId) {
+        return entries.get(snapshotId);
+    }
+
+    /**
+     * @param name the name of the snapshot
+     * @return the entry of the snapshot, null if the snapshot isn't in the manifest
+     * */
+    Entry getByName(String name) {
+        return entriesByName.get(name);
+    }
+
+    /**
+     * @return the entries of all the snapshots, the ones replaced by a snapshot with the same id included
+     * */
+    Collection<Entry> getEntries() {
+        return entriesByName.values();
+    }
+
+    /**
+     * @return the entry of the last complete snapshot, null if there isn't any
+     * */
+    Entry getLastComplete() {
+        return lastComplete;
+    }
+
+    /**
+     * This method prevents a snapshot from being collected, replacing the snapshot previously pinned
+     * @param snapshotId the unique snapshot identifier, null to unpin the snapshot
+     * */
+    void pin(Integer snapshotId) {
+        pinned = snapshotId;
+    }
+
+    /**
+     * This method removes from the manifest the snapshots that the retention policy doesn't keep.
+     * Kept snapshots are the complete ones within the limits of the policy (at least the last one),
+     * the pinned one and the snapshots their states are based on. Incomplete snapshots and the ones replaced
+     * by a snapshot with the same id are removed
+     * @param policy the retention policy
+     * @param now the current time, in milliseconds since the epoch
+     * @return the entries removed, whose segments must be deleted
+     * */
+    List<Entry> collect(RetentionPolicy policy, long now) {
+        ArrayList<Entry> complete = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.status == Status.COMPLETE)
+                complete.add(entry);
+        }
+        complete.sort(Comparator.comparingInt((Entry entry) -> entry.sequenceNumber).reversed());
+
+        HashSet<Entry> kept = new HashSet<>();
+        long bytes = 0;
+        for (Entry entry : complete) {
+            bytes += entry.size;
+            // the limits only grow going back in time, the first snapshot exceeding them ends the kept ones
+            if (!kept.isEmpty() && !policy.retains(kept.size() + 1, now - entry.creationTime, bytes))
+                break;
+            kept.add(entry);
+        }
+        if (pinned != null && entries.containsKey(pinned))
+            kept.add(entries.get(pinned));
+        for (Entry entry : new ArrayList<>(kept)) {
+            Entry base = entry.baseName != null ? entriesByName.get(entry.baseName) : null;
+            while (base != null && kept.add(base)) {
+                base = base.baseName != null ? entriesByName.get(base.baseName) : null;
+            }
+        }
+
+        ArrayList<Entry> removed = new ArrayList<>();
+        for (Entry entry : entriesByName.values()) {
+            if (!kept.contains(entry))
+                removed.add(entry);
+        }
+        for (Entry entry : removed) {
+            entries.remove(entry.snapshotId, entry);
+            entriesByName.remove(entry.name);
+        }
+        return removed;
+    }
+
+    /**
+     * This method saves the manifest in the provided folder: it is written to a temporary file
+     * that atomically replaces the previous manifest
+     * @param folder the folder of the node
+     * */
+    void save(Path folder) throws IOException {
+        Path temporary = folder.resolve(FILE_NAME + ".tmp");
+        try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            oos.writeObject(this);
+        }
+        Files.move(temporary, folder.resolve(FILE_NAME), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * This method loads the manifest saved in the provided folder
+     * @param folder the folder of the node
+     * @return the manifest, an empty one if the folder doesn't contain a manifest
+     * */
+    static SnapshotManifest load(Path folder) throws IOException, ClassNotFoundException {
+        Path file = folder.resolve(FILE_NAME);
+        if (!Files.exists(file))
+            return new SnapshotManifest();
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            return (SnapshotManifest) ois.readObject();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package library;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.*;
+
+/**
+ * This class saves the completed local snapshots to the SnapshotStore in background, so that the write doesn't
+ * happen while the node holds its locks. Snapshots are saved one at a time, in the order they completed.
+ * At most a fixed number of snapshots can wait to be saved: when the queue is full, the thread handing
+ * over a new snapshot waits for a free slot.
+ * @param <StateType> this is the type that will be saved as the state of the application
+ * @param <MessageType> this is the type that will be exchanged as a message between nodes
+ * */
+class SnapshotPersister<StateType, MessageType> {
+
+    /**
+     * The thread saving the snapshots and its bounded queue
+     * */
+    private final ThreadPoolExecutor writer;
+
+    /**
+     * Completed when the last snapshot handed over has been saved (or has failed)
+     * */
+    private CompletableFuture<?> last = CompletableFuture.completedFuture(null);
+
+    /**
+     * The store the snapshots are saved to
+     * */
+    private final SnapshotStore store;
+
+    /**
+     * The compression of the saved snapshots
+     * */
+    private final Compression compression;
+
+    public SnapshotPersister(String name, int queueCapacity, SnapshotStore store, Compression compression) {
+        this.store = store;
+        this.compression = compression;
+        this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (runnable, executor) -> {
+                    // the handler is also called once the persister has been stopped: the snapshot is rejected,
+                    // no thread would save it
+                    if (executor.isShutdown())
+                        throw new RejectedExecutionException("The persister has been stopped");
+                    // the queue is full: wait for a free slot instead of rejecting the snapshot
+                    try {
+                        while (!executor.getQueue().offer(runnable, 100, TimeUnit.MILLISECONDS)) {
+                            if (executor.isShutdown())
+                                throw new RejectedExecutionException("The persister has been stopped");
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting to save a snapshot", e);
+                    }
+                });
+    }
+
+    /**
+     * This method hands over a completed snapshot to be saved on disk
+     * @param snapshot the snapshot to save
+     * @param hostname the hostname of the local node
+     * @param port the port of the local node
+     * @param deltaChain the snapshots previously saved by the node, null to always save the full state
+     * @return a future completed with the size of the snapshot, in bytes, once it has been saved, or exceptionally
+     * with the IOException that prevented it, or with a RejectedExecutionException if the persister has been stopped
+     * */
+    public synchronized CompletableFuture<Long> persist(Snapshot<StateType, MessageType> snapshot, String hostname, int port, DeltaChain<StateType> deltaChain) {
+        CompletableFuture<Long> saved = new CompletableFuture<>();
+        try {
+            writer.execute(() -> {
+                try {
+                    saved.complete(store.write(snapshot, hostname, port, deltaChain, compression));
+                } catch (IOException | RuntimeException e) {
+                    saved.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            saved.completeExceptionally(e);
+        }
+        last = saved;
+        return saved;
+    }
+
+    /**
+     * @return a future completed once all the snapshots handed over so far have been saved, or have failed
+     * */
+    public synchronized CompletableFuture<Void> flush() {
+        return last.handle((ignored, e) -> null);
+    }
+
+    /**
+     * This method waits until all the snapshots handed over so far have been saved, or have failed.
+     * It is called before reading snapshots from disk
+     * @throws IOException thrown if interrupted while waiting
+     * */
+    public void awaitPending() throws IOException {
+        try {
+            flush().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the snapshots to be saved");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e); // never happens: flush doesn't complete exceptionally
+        }
+    }
+
+    /**
+     * This method stops the thread once the snapshots already handed over have been saved
+     * */
+    public void shutdown() {
+        writer.shutdown();
+    }
+}
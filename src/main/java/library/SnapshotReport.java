@@ -0,0 +1,131 @@
+package library;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * This class describes a snapshot that has been saved by all the nodes of the network.
+ * It is provided to the node that started the snapshot (see SnapshotHandle.completed)
+ * */
+public class SnapshotReport {
+
+    /**
+     * The outcome of the snapshot on a single node
+     * */
+    public static class NodeReport implements Serializable {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final Entity node;
+        private final Duration latency;
+        private final long bytes;
+        private final String error;
+
+        NodeReport(Entity node, Duration latency, long bytes, String error) {
+            this.node = node;
+            this.latency = latency;
+            this.bytes = bytes;
+            this.error = error;
+        }
+
+        public Entity getNode() {
+            return node;
+        }
+
+        /**
+         * @return the time between the start of the snapshot and the moment the initiator learnt the node had saved its part
+         * */
+        public Duration getLatency() {
+            return latency;
+        }
+
+        /**
+         * @return the size of the part of the snapshot saved by the node, in bytes
+         * */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return the reason why the node could not save its part of the snapshot, null if it has been saved
+         * */
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return "NodeReport{" +
+                    "node=" + node +
+                    ", latency=" + latency +
+                    ", bytes=" + bytes +
+                    (error != null ? ", error=" + error : "") +
+                    '}';
+        }
+    }
+
+    private final int snapshotId;
+
+    private final Duration duration;
+
+    private final Map<Entity, NodeReport> nodes;
+
+    SnapshotReport(int snapshotId, Duration duration, Map<Entity, NodeReport> nodes) {
+        this.snapshotId = snapshotId;
+        this.duration = duration;
+        this.nodes = Collections.unmodifiableMap(nodes);
+    }
+
+    public int getSnapshotId() {
+        return snapshotId;
+    }
+
+    /**
+     * @return the time between the start of the snapshot and the moment all the nodes had saved their part
+     * */
+    public Duration getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return the outcome of the snapshot on each node, the initiator included
+     * */
+    public Map<Entity, NodeReport> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return the size of the whole snapshot, in bytes
+     * */
+    public long getTotalBytes() {
+        long total = 0;
+        for (NodeReport report : nodes.values()) {
+            total += report.bytes;
+        }
+        return total;
+    }
+
+    /**
+     * @return true if all the nodes have saved their part of the snapshot
+     * */
+    public boolean isSuccessful() {
+        for (NodeReport report : nodes.values()) {
+            if (report.error != null)
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "SnapshotReport{" +
+                "snapshotId=" + snapshotId +
+                ", duration=" + duration +
+                ", totalBytes=" + getTotalBytes() +
+                ", nodes=" + nodes.values() +
+                '}';
+    }
+}
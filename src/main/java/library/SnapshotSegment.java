@@ -0,0 +1,265 @@
+package library;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * This class reads and writes the segment containing a local snapshot: a single file, or a single record of a SnapshotStore.
+ * The segment is written sequentially through one buffered stream and it is made of:
+ * <ul>
+ *     <li>a header: magic number, format version, snapshot id and the codec compressing the rest of the segment</li>
+ *     <li>the kind of state record</li>
+ *     <li>the state record: the serialized state, or the name of the base snapshot and the serialized delta</li>
+ *     <li>the connected nodes: their number followed by hostname and port of each one</li>
+ *     <li>the messages: their number followed by one record per message with the sender hostname and port
+ *     and the length-prefixed serialized message</li>
+ * </ul>
+ * Every serialized object is written as a length-prefixed blob, so that it can be read without any stream header shared among records.
+ * When compression is enabled, everything after the header goes through a single deflate stream: the serialized objects
+ * of a segment repeat the same class descriptors, so compressing them together reduces the size much more than one by one.
+ * Version 1 segments, without the codec, are still read.
+ * */
+class SnapshotSegment {
+
+    /**
+     * Name of the segment file inside the folder of a snapshot
+     * */
+    static final String FILE_NAME = "snapshot.seg";
+
+    /**
+     * The first bytes of every segment ("DSNP")
+     * */
+    private static final int MAGIC = 0x44534E50;
+
+    private static final int VERSION = 2;
+
+    /**
+     * Codecs of the segment body
+     * */
+    private static final byte NO_CODEC = 0;
+    private static final byte DEFLATE_CODEC = 1;
+
+    /**
+     * Kinds of state record
+     * */
+    private static final byte FULL_STATE = 0;
+    private static final byte DELTA_STATE = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * This method writes a snapshot to a segment file
+     * @param file the segment file to create
+     * @param snapshot the snapshot to write
+     * @param delta the changes with respect to the base snapshot, null to write the full state
+     * @param baseFolder the name of the snapshot the delta refers to, ignored if delta is null
+     * @param compression the compression of the segment body
+     * @return the size of the segment
+     * */
+    static <StateType, MessageType> long write(Path file, Snapshot<StateType, MessageType> snapshot, Serializable delta, String baseFolder, Compression compression) throws IOException {
+        return write(Files.newOutputStream(file), snapshot, delta, baseFolder, compression);
+    }
+
+    /**
+     * This method writes a snapshot as a segment to a stream, which is closed at the end
+     * @param stream the stream to write the segment to
+     * @param snapshot the snapshot to write
+     * @param delta the changes with respect to the base snapshot, null to write the full state
+     * @param baseFolder the name of the snapshot the delta refers to, ignored if delta is null
+     * @param compression the compression of the segment body
+     * @return the size of the segment
+     * */
+    static <StateType, MessageType> long write(OutputStream stream, Snapshot<StateType, MessageType> snapshot, Serializable delta, String baseFolder, Compression compression) throws IOException {
+        BlobWriter blobs = new BlobWriter();
+        CountingOutputStream counter = new CountingOutputStream(stream);
+        Deflater deflater = null;
+        if (compression != Compression.NONE)
+            deflater = new Deflater(compression == Compression.FAST ? Deflater.BEST_SPEED : Deflater.DEFAULT_COMPRESSION);
+        try (DataOutputStream header = new DataOutputStream(new BufferedOutputStream(counter, BUFFER_SIZE))) {
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeInt(snapshot.snapshotId);
+            header.writeByte(deflater != null ? DEFLATE_CODEC : NO_CODEC);
+
+            DataOutputStream out = header;
+            DeflaterOutputStream deflated = null;
+            if (deflater != null) {
+                deflated = new DeflaterOutputStream(header, deflater, BUFFER_SIZE);
+                out = new DataOutputStream(new BufferedOutputStream(deflated, BUFFER_SIZE));
+            }
+
+            if (delta != null) {
+                out.writeByte(DELTA_STATE);
+                out.writeUTF(baseFolder);
+                blobs.write(out, delta);
+            } else {
+                out.writeByte(FULL_STATE);
+                blobs.write(out, snapshot.state);
+            }
+
+            out.writeInt(snapshot.connectedNodes.size());
+            for (Entity entity : snapshot.connectedNodes) {
+                out.writeUTF(entity.getHostname());
+                out.writeInt(entity.getPort());
+            }
+
+            out.writeInt(snapshot.messages.size());
+            for (Envelope<MessageType> envelope : snapshot.messages) {
+                out.writeUTF(envelope.sender.getHostname());
+                out.writeInt(envelope.sender.getPort());
+                blobs.write(out, envelope.message);
+            }
+            out.flush();
+            if (deflated != null)
+                deflated.finish();
+            header.flush();
+            return counter.getByteCount();
+        } finally {
+            if (deflater != null)
+                deflater.end();
+        }
+    }
+
+    /**
+     * This method reads a whole segment file in one pass
+     * @param file the segment file to read
+     * @param snapshot the snapshot to fill: connected nodes and messages are read, the state is left to the caller
+     * @return the state record
+     * */
+    static <StateType, MessageType> StateRecord read(Path file, Snapshot<StateType, MessageType> snapshot) throws IOException, ClassNotFoundException {
+        return read(Files.newInputStream(file), file.toString(), snapshot);
+    }
+
+    /**
+     * This method reads a whole segment from a stream in one pass, the stream is closed at the end
+     * @param stream the stream to read the segment from
+     * @param name the name of the segment, used in the error messages
+     * @param snapshot the snapshot to fill: connected nodes and messages are read, the state is left to the caller
+     * @return the state record
+     * */
+    static <StateType, MessageType> StateRecord read(InputStream stream, String name, Snapshot<StateType, MessageType> snapshot) throws IOException, ClassNotFoundException {
+        try (DataInputStream header = new DataInputStream(new BufferedInputStream(stream, BUFFER_SIZE));
+             DataInputStream in = openBody(header, name)) {
+            StateRecord stateRecord = readStateRecord(in);
+
+            int nodes = in.readInt();
+            snapshot.connectedNodes = new ArrayList<>(nodes);
+            for (int i = 0; i < nodes; i++) {
+                snapshot.connectedNodes.add(new Entity(in.readUTF(), in.readInt()));
+            }
+
+            int messages = in.readInt();
+            snapshot.messages = new ArrayList<>(messages);
+            for (int i = 0; i < messages; i++) {
+                Entity sender = new Entity(in.readUTF(), in.readInt());
+                snapshot.messages.add(new Envelope<>(sender, (MessageType) readBlob(in)));
+            }
+            return stateRecord;
+        }
+    }
+
+    /**
+     * This method reads only the header and the state record of a segment file
+     * @param file the segment file to read
+     * @return the state record
+     * */
+    static StateRecord readState(Path file) throws IOException, ClassNotFoundException {
+        return readState(Files.newInputStream(file), file.toString());
+    }
+
+    /**
+     * This method reads only the header and the state record of a segment from a stream, the stream is closed at the end
+     * @param stream the stream to read the segment from
+     * @param name the name of the segment, used in the error messages
+     * @return the state record
+     * */
+    static StateRecord readState(InputStream stream, String name) throws IOException, ClassNotFoundException {
+        try (DataInputStream header = new DataInputStream(new BufferedInputStream(stream, BUFFER_SIZE));
+             DataInputStream in = openBody(header, name)) {
+            return readStateRecord(in);
+        }
+    }
+
+    /**
+     * This method reads the header of a segment
+     * @param in the stream of the segment
+     * @param name the name of the segment, used in the error messages
+     * @return the stream to read the body of the segment from, decompressing it if needed
+     * */
+    private static DataInputStream openBody(DataInputStream in, String name) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new StreamCorruptedException(name + " is not a snapshot segment");
+        int version = in.readInt();
+        if (version != 1 && version != VERSION)
+            throw new StreamCorruptedException(name + " has an unsupported version: " + version);
+        in.readInt(); // snapshot id, already known by the caller
+        byte codec = version == 1 ? NO_CODEC : in.readByte();
+        if (codec == DEFLATE_CODEC)
+            return new DataInputStream(new BufferedInputStream(new InflaterInputStream(in), BUFFER_SIZE));
+        if (codec != NO_CODEC)
+            throw new StreamCorruptedException(name + " has an unsupported codec: " + codec);
+        return in;
+    }
+
+    private static StateRecord readStateRecord(DataInputStream in) throws IOException, ClassNotFoundException {
+        byte kind = in.readByte();
+        if (kind == DELTA_STATE) {
+            String baseFolder = in.readUTF();
+            return new StateRecord(readBlob(in), baseFolder);
+        }
+        return new StateRecord(readBlob(in), null);
+    }
+
+    private static Object readBlob(DataInputStream in) throws IOException, ClassNotFoundException {
+        byte[] blob = new byte[in.readInt()];
+        in.readFully(blob);
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(blob))) {
+            return ois.readObject();
+        }
+    }
+
+    /**
+     * The state record of a segment: the full state, or a delta together with the name of its base snapshot
+     * */
+    static class StateRecord {
+        /**
+         * The state, or the delta if baseFolder is not null
+         * */
+        final Object value;
+
+        /**
+         * The name of the snapshot the delta must be applied to, null for a full state
+         * */
+        final String baseFolder;
+
+        StateRecord(Object value, String baseFolder) {
+            this.value = value;
+            this.baseFolder = baseFolder;
+        }
+    }
+
+    /**
+     * Serializes objects into a buffer reused for all the records of a segment
+     * */
+    private static class BlobWriter extends ByteArrayOutputStream {
+        private BlobWriter() {
+            super(4096);
+        }
+
+        private void write(DataOutputStream out, Object object) throws IOException {
+            reset();
+            try (ObjectOutputStream oos = new ObjectOutputStream(this)) {
+                oos.writeObject(object);
+            }
+            out.writeInt(count);
+            out.write(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package library;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * This interface abstracts where the snapshots completed by the nodes are saved. Each DistributedSnapshot
+ * instance uses the store selected with the StorageType of its Configuration. A store can hold the snapshots
+ * of several nodes, identified by hostname and port: the snapshots of different nodes are handled independently,
+ * so that nodes running in the same process save and read their snapshots in parallel.
+ * Each node has a SnapshotManifest indexing its snapshots.
+ * */
+interface SnapshotStore {
+
+    /**
+     * This method saves a snapshot, saving only the changes of the state with respect to the previous snapshot
+     * when the deltaChain allows it
+     * @param <StateType> this is the type that will be saved as the state of the application
+     * @param <MessageType> this is the type that will be exchanged as a message between nodes
+     * @param snapshot the snapshot to save
+     * @param hostname the hostname of the node saving the snapshot
+     * @param port the port of the node saving the snapshot
+     * @param deltaChain the snapshots previously saved by the node, null to always save the full state
+     * @param compression the compression of the state and of the messages, recorded in the snapshot
+     * @return the size of the saved snapshot, in bytes
+     * @throws IOException thrown if the snapshot cannot be saved
+     * */
+    <StateType, MessageType> long write(Snapshot<StateType, MessageType> snapshot, String hostname, int port, DeltaChain<StateType> deltaChain, Compression compression) throws IOException;
+
+    /**
+     * This method reads a snapshot saved by a node
+     * @param <StateType> this is the type that will be saved as the state of the application
+     * @param <MessageType> this is the type that will be exchanged as a message between nodes
+     * @param snapshotId the unique snapshot identifier
+     * @param hostname the hostname of the node that saved the snapshot
+     * @param port the port of the node that saved the snapshot
+     * @return the snapshot, with a null state if the snapshot hasn't been saved completely
+     * @throws IOException thrown if the snapshot cannot be read
+     * @throws ClassNotFoundException thrown if the snapshot contains objects of unknown classes
+     * */
+    <StateType, MessageType> Snapshot<StateType, MessageType> read(int snapshotId, String hostname, int port) throws IOException, ClassNotFoundException;
+
+    /**
+     * @param hostname the hostname of the node
+     * @param port the port of the node
+     * @return the id of the last snapshot saved completely by the node, -1 if there isn't any
+     * @throws IOException thrown if the manifest of the node cannot be read
+     * @throws ClassNotFoundException thrown if the manifest of the node cannot be deserialized
+     * */
+    int getLastSnapshotId(String hostname, int port) throws IOException, ClassNotFoundException;
+
+    /**
+     * This method prevents a snapshot from being deleted by collect while it is being restored.
+     * Only one snapshot per node is pinned: pinning a snapshot unpins the previous one
+     * @param snapshotId the id of the snapshot to pin, null to unpin the pinned snapshot
+     * @param hostname the hostname of the node
+     * @param port the port of the node
+     * @throws IOException thrown if the manifest of the node cannot be read
+     * @throws ClassNotFoundException thrown if the manifest of the node cannot be deserialized
+     * */
+    void pin(Integer snapshotId, String hostname, int port) throws IOException, ClassNotFoundException;
+
+    /**
+     * This method deletes the snapshots of a node that the retention policy doesn't keep (see RetentionPolicy)
+     * @param policy the retention policy
+     * @param hostname the hostname of the node
+     * @param port the port of the node
+     * @return the manifest entries of the deleted snapshots, their sizes are the bytes reclaimed
+     * @throws IOException thrown if the snapshots cannot be deleted
+     * @throws ClassNotFoundException thrown if the manifest of the node cannot be deserialized
+     * */
+    List<SnapshotManifest.Entry> collect(RetentionPolicy policy, String hostname, int port) throws IOException, ClassNotFoundException;
+
+    /**
+     * This method releases the resources (e.g. open files) held for a node, for example when the node stops.
+     * They are acquired again if the node uses the store again, the snapshots are not affected
+     * @param hostname the hostname of the node
+     * @param port the port of the node
+     * @throws IOException thrown if the resources cannot be released
+     * */
+    void release(String hostname, int port) throws IOException;
+
+    /**
+     * This method deletes all the snapshots of all the nodes
+     * @throws IOException thrown if the snapshots cannot be deleted
+     * */
+    void clear() throws IOException;
+}
@@ -0,0 +1,41 @@
+package library;
+
+import java.io.IOException;
+
+/**
+ * This interface defines how the library copies the state of the application, both when it is provided with
+ * updateState and when it is returned by a StateProvider. The copy must not be affected by later changes made
+ * by the application to the original object. It is selected in the Configuration used to initialize the library.
+ * A copy function supplied by the application (e.g. a copy constructor, State::new) can be used directly.
+ * @param <StateType> this is the type that will be saved as the state of the application
+ */
+@FunctionalInterface
+public interface StateCopier<StateType> {
+    /**
+     * This is the method that the library will invoke to copy the state
+     * @param state the state provided by the application
+     * @return an object equal to the state that the application won't modify
+     * @throws IOException thrown if the state cannot be copied
+     */
+    StateType copy(StateType state) throws IOException;
+
+    /**
+     * The default copier: a deep copy obtained by serializing and deserializing the state,
+     * which must be Serializable. The buffers used for the copy are reused by each thread
+     * @param <StateType> this is the type that will be saved as the state of the application
+     * @return a copier based on Java serialization
+     */
+    static <StateType> StateCopier<StateType> serialization() {
+        return new SerializationStateCopier<>();
+    }
+
+    /**
+     * A copier that doesn't copy: it can be used only when the state objects are immutable,
+     * so that the application can't modify the state stored by the library
+     * @param <StateType> this is the type that will be saved as the state of the application
+     * @return a copier returning the provided state itself
+     */
+    static <StateType> StateCopier<StateType> immutable() {
+        return state -> state;
+    }
+}
@@ -0,0 +1,15 @@
+package library;
+
+/**
+ * This interface can be implemented by the application to provide its state only when a snapshot needs it,
+ * instead of updating it with DistributedSnapshot.updateState after every change.
+ * @param <StateType> this is the type that will be saved as the state of the application
+ */
+public interface StateProvider<StateType> {
+    /**
+     * This is the method that the library will invoke when a snapshot is started on this node.
+     * The library stores a copy of the returned object, so the application can keep modifying it afterwards.
+     * @return the current state of the application
+     */
+    StateType getState();
+}
@@ -0,0 +1,23 @@
+package library;
+
+/**
+ * The stores of the snapshots that can be selected in the Configuration used to initialize the library
+ * */
+public enum StorageType {
+    /**
+     * One folder per snapshot on disk, each containing a single segment file
+     * */
+    FILE,
+    /**
+     * One append-only log file per node on disk, compacted when the deleted snapshots take more space than the live ones
+     * */
+    LOG,
+    /**
+     * Byte arrays on the heap, the snapshots are lost when the process ends (for tests and benchmarks)
+     * */
+    MEMORY,
+    /**
+     * Direct buffers outside of the heap, the snapshots are lost when the process ends (for tests and benchmarks)
+     * */
+    OFF_HEAP
+}
@@ -0,0 +1,189 @@
+package library;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps the references to the RemoteInterface of the remote nodes returned by the transport, indexed by node,
+ * so that a node is looked up once and not every time it is called (a round trip to the rmi registry with RMI,
+ * a new connection with NIO). All the lookups of a node go through this class.
+ * <p>
+ * The nodes looked up at the same time share a single lookup: after a failure, the threads that call the same node
+ * don't each look it up again. In background, the cached nodes are checked with a ping: a node that doesn't answer
+ * is looked up again and, if the lookup fails too, it is removed from the cache, the next lookup goes to the transport.
+ * @param <MessageType> this is the type that will be exchanged as a message between nodes
+ * */
+class StubCache<MessageType> {
+
+    private final Transport<MessageType> transport;
+
+    /**
+     * The reference to each node, or the lookup in progress
+     * */
+    private final ConcurrentHashMap<Entity, CompletableFuture<RemoteInterface<MessageType>>> stubs = new ConcurrentHashMap<>();
+
+    /**
+     * The thread running the health checks, null if they are disabled
+     * */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param name the name of the thread running the health checks
+     * @param transport the transport used to look up the nodes
+     * @param healthCheckInterval the time between two health checks, in milliseconds, 0 to disable them
+     * */
+    public StubCache(String name, Transport<MessageType> transport, long healthCheckInterval) {
+        this.transport = transport;
+        if (healthCheckInterval > 0) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::checkHealth, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+        } else {
+            this.scheduler = null;
+        }
+    }
+
+    /**
+     * This method returns the cached reference to a node, it looks the node up only if it isn't cached
+     * @param hostname the hostname of the remote node
+     * @param port the port of the remote node
+     * @return the reference to the RemoteInterface of the remote node
+     * @throws RemoteException communication-related exception that may occur while contacting the remote node
+     * @throws NotBoundException the remote node has not bound its remote implementation
+     * */
+    RemoteInterface<MessageType> get(String hostname, int port) throws RemoteException, NotBoundException {
+        Entity node = new Entity(hostname, port);
+        CompletableFuture<RemoteInterface<MessageType>> stub = stubs.get(node);
+        if (stub == null) {
+            CompletableFuture<RemoteInterface<MessageType>> lookup = new CompletableFuture<>();
+            stub = stubs.putIfAbsent(node, lookup);
+            if (stub == null) {
+                stub = lookup;
+                lookup(node, lookup);
+            }
+        }
+        return await(stub);
+    }
+
+    /**
+     * This method replaces a reference that failed with a new one. If the reference has already been replaced,
+     * by another thread or by a health check, the new one is returned without looking the node up again
+     * @param hostname the hostname of the remote node
+     * @param port the port of the remote node
+     * @param failed the reference whose call failed
+     * @return the new reference to the RemoteInterface of the remote node
+     * @throws RemoteException communication-related exception that may occur while contacting the remote node
+     * @throws NotBoundException the remote node has not bound its remote implementation
+     * */
+    RemoteInterface<MessageType> refresh(String hostname, int port, RemoteInterface<MessageType> failed) throws RemoteException, NotBoundException {
+        Entity node = new Entity(hostname, port);
+        CompletableFuture<RemoteInterface<MessageType>> stub = stubs.get(node);
+        if (stub != null && !holds(stub, failed))
+            return await(stub);
+        CompletableFuture<RemoteInterface<MessageType>> lookup = new CompletableFuture<>();
+        boolean replaced = stub == null ? stubs.putIfAbsent(node, lookup) == null : stubs.replace(node, stub, lookup);
+        if (!replaced)
+            return get(hostname, port);
+        lookup(node, lookup);
+        return await(lookup);
+    }
+
+    /**
+     * This method removes the reference to a node from the cache
+     * @param hostname the hostname of the remote node
+     * @param port the port of the remote node
+     * */
+    void evict(String hostname, int port) {
+        stubs.remove(new Entity(hostname, port));
+    }
+
+    /**
+     * @return the number of nodes cached
+     * */
+    int size() {
+        return stubs.size();
+    }
+
+    /**
+     * This method pings the cached nodes: the ones that don't answer are looked up again, or removed from the cache
+     * if the lookup fails too
+     * */
+    void checkHealth() {
+        for (Map.Entry<Entity, CompletableFuture<RemoteInterface<MessageType>>> entry : stubs.entrySet()) {
+            CompletableFuture<RemoteInterface<MessageType>> stub = entry.getValue();
+            if (!stub.isDone() || stub.isCompletedExceptionally())
+                continue;
+            Entity node = entry.getKey();
+            RemoteInterface<MessageType> remoteInterface = stub.join();
+            try {
+                remoteInterface.ping();
+            } catch (RemoteException | RuntimeException e) {
+                try {
+                    refresh(node.getHostname(), node.getPort(), remoteInterface);
+                } catch (RemoteException | NotBoundException | RuntimeException lookupError) {
+                    // the failed lookup has already removed the node from the cache
+                    System.err.println("Removed " + node + " from the cached nodes, it is not reachable");
+                }
+            }
+        }
+    }
+
+    /**
+     * This method stops the health checks, a check already running is completed
+     * */
+    void shutdown() {
+        if (scheduler != null)
+            scheduler.shutdown();
+    }
+
+    /**
+     * This method looks a node up through the transport and completes the provided lookup with the result.
+     * A failed lookup is removed from the cache, so that the next one is tried again
+     * */
+    private void lookup(Entity node, CompletableFuture<RemoteInterface<MessageType>> lookup) {
+        try {
+            lookup.complete(transport.lookup(node.getHostname(), node.getPort()));
+        } catch (RemoteException | NotBoundException | RuntimeException e) {
+            stubs.remove(node, lookup);
+            lookup.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * @return true if the provided lookup ended with the provided reference
+     * */
+    private static <MessageType> boolean holds(CompletableFuture<RemoteInterface<MessageType>> stub, RemoteInterface<MessageType> remoteInterface) {
+        return stub.isDone() && !stub.isCompletedExceptionally() && stub.join() == remoteInterface;
+    }
+
+    /**
+     * This method waits for a lookup and rethrows its failure
+     * */
+    private static <MessageType> RemoteInterface<MessageType> await(CompletableFuture<RemoteInterface<MessageType>> stub) throws RemoteException, NotBoundException {
+        try {
+            return stub.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException)
+                throw (RemoteException) cause;
+            if (cause instanceof NotBoundException)
+                throw (NotBoundException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new RemoteException("The lookup failed", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for the lookup", e);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package library;
+
+import java.rmi.AlreadyBoundException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+
+/**
+ * This interface abstracts the communication layer used between nodes.
+ * A transport publishes the local RemoteInterface so that other nodes can reach it
+ * and provides references to the RemoteInterface of remote nodes.
+ * The library only interacts with remote nodes through the references returned by lookup,
+ * so different implementations (RMI, NIO) can be swapped without changing the algorithm.
+ * @param <MessageType> this is the type that will be exchanged as a message between nodes
+ * */
+interface Transport<MessageType> {
+
+    /**
+     * This method publishes the local RemoteInterface in order to be reachable from other nodes
+     * @param hostname the hostname the local node can be reached at
+     * @param port the port the local node can be reached at
+     * @param localNode the local implementation of the RemoteInterface
+     * @throws RemoteException communication-related exception that may occur while exporting the local node
+     * @throws AlreadyBoundException the port has already bound a remote interface, try with another port
+     */
+    void export(String hostname, int port, RemoteInterface<MessageType> localNode) throws RemoteException, AlreadyBoundException;
+
+    /**
+     * This method returns a reference to the RemoteInterface published by a remote node
+     * @param hostname the hostname of the remote node
+     * @param port the port of the remote node
+     * @return the reference to the RemoteInterface of the remote node
+     * @throws RemoteException communication-related exception that may occur while contacting the remote node
+     * @throws NotBoundException the remote node has not bound its remote implementation
+     */
+    RemoteInterface<MessageType> lookup(String hostname, int port) throws RemoteException, NotBoundException;
+
+    /**
+     * This method un-publishes the local RemoteInterface and releases all the resources held by the transport
+     * @throws RemoteException communication-related exception that may occur while un-exporting the local node
+     * @throws NotBoundException the local node was not bound
+     */
+    void unexport() throws RemoteException, NotBoundException;
+}
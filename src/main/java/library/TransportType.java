@@ -0,0 +1,15 @@
+package library;
+
+/**
+ * The communication layers that can be selected in the Configuration used to initialize the library
+ * */
+public enum TransportType {
+    /**
+     * Java RMI: one registry per node and a synchronous remote call for each interaction
+     * */
+    RMI,
+    /**
+     * Non-blocking TCP: one persistent connection per link carrying length-prefixed frames
+     * */
+    NIO
+}
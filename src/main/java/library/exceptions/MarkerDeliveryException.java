@@ -0,0 +1,34 @@
+package library.exceptions;
+
+import library.Entity;
+
+import java.io.IOException;
+import java.io.Serial;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Exception to manage the case of markers that could not be delivered
+ * to some of the connected nodes. It reports the failure of each node
+ * */
+public final class MarkerDeliveryException extends IOException {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    // an unmodifiable view of the map built by the library, with serializable keys and values
+    @SuppressWarnings("serial")
+    private final Map<Entity, Throwable> failures;
+
+    public MarkerDeliveryException(String message, Map<Entity, Throwable> failures) {
+        super(message);
+        this.failures = Collections.unmodifiableMap(failures);
+        failures.values().forEach(this::addSuppressed);
+    }
+
+    /**
+     * @return the exception thrown by each node that did not receive the marker
+     * */
+    public Map<Entity, Throwable> getFailures() {
+        return failures;
+    }
+}
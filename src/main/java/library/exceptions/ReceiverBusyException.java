@@ -0,0 +1,16 @@
+package library.exceptions;
+
+import java.io.Serial;
+
+/**
+ * Exception to manage the case of messages refused by a node that is behind on the delivery
+ * of the messages of the same sender: they can be sent again later
+ * */
+public class ReceiverBusyException extends Exception {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    public ReceiverBusyException(String message) {
+        super(message);
+    }
+}
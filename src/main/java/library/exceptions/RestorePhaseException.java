@@ -0,0 +1,45 @@
+package library.exceptions;
+
+import library.Entity;
+import library.RestorePhase;
+
+import java.io.IOException;
+import java.io.Serial;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Exception to manage the failure of some of the nodes during a phase
+ * of a restore. It reports the phase and the failure of each node
+ * */
+public final class RestorePhaseException extends IOException {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final RestorePhase phase;
+
+    // an unmodifiable view of the map built by the library, with serializable keys and values
+    @SuppressWarnings("serial")
+    private final Map<Entity, Throwable> failures;
+
+    public RestorePhaseException(String message, RestorePhase phase, Map<Entity, Throwable> failures) {
+        super(message);
+        this.phase = phase;
+        this.failures = Collections.unmodifiableMap(failures);
+        failures.values().forEach(this::addSuppressed);
+    }
+
+    /**
+     * @return the phase the nodes failed in
+     * */
+    public RestorePhase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return the exception thrown by each node that failed
+     * */
+    public Map<Entity, Throwable> getFailures() {
+        return failures;
+    }
+}
@@ -1,9 +1,12 @@
 package oilwells;
 
 import library.AppConnector;
+import library.Configuration;
 import library.DistributedSnapshot;
+import library.ExecutionMode;
 import library.exceptions.*;
 import library.Entity;
+import library.StateCopier;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
@@ -11,6 +14,7 @@ import java.rmi.AlreadyBoundException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -23,9 +27,9 @@ import java.util.concurrent.TimeUnit;
  */
 public class OilWell implements AppConnector<OilCargo, Integer> {
     /**
-     * The amount of oil contained on the well
+     * The amount of oil contained on the well. It is read by the library, without taking oilAmountLock, when a snapshot starts
      */
-    private int oilAmount = -1;
+    private volatile int oilAmount = -1;
 
     /**
      * Lock-object for oilAmount variable
@@ -43,9 +47,9 @@ public class OilWell implements AppConnector<OilCargo, Integer> {
     private final Object directConnectionsLock = new Object();
 
     /**
-     * The library object used to interact with the library itself
+     * The library object used to interact with the library itself. The state is an Integer, no copy is needed
      */
-    private final DistributedSnapshot<Integer, OilCargo> distributedSnapshot = new DistributedSnapshot<>();
+    private final DistributedSnapshot<Integer, OilCargo> distributedSnapshot = new DistributedSnapshot<>(StateCopier.immutable());
 
     /**
      * Logger used to print on the command line
@@ -53,9 +57,10 @@ public class OilWell implements AppConnector<OilCargo, Integer> {
     private Logger logger;
 
     /**
-     * Thread used to periodically send oil to other oil wells
+     * Thread used to periodically send oil to other oil wells. The transfers are remote calls: a virtual thread
+     * doesn't hold an operating system thread while waiting for them
      */
-    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("oil-transfers").factory());
 
     public void setLogger(Logger logger) {
         this.logger = logger;
@@ -66,21 +71,21 @@ public class OilWell implements AppConnector<OilCargo, Integer> {
      * @param hostname the hostname of this node
      * @param port the port of this node
      * @param oilAmount the initial oil amount
-     * @throws StateUpdateException thrown if an error occur during the update of the state
      */
-    public void initialize(String hostname, int port, int oilAmount) throws StateUpdateException {
+    public void initialize(String hostname, int port, int oilAmount) {
         try {
-            distributedSnapshot.init(hostname, port, this);
+            Configuration configuration = new Configuration();
+            configuration.setExecutionMode(ExecutionMode.VIRTUAL_THREADS);
+            distributedSnapshot.init(hostname, port, this, configuration);
             this.oilAmount = oilAmount;
-            distributedSnapshot.updateState(oilAmount);
+            // the library reads the oil amount only when a snapshot starts
+            distributedSnapshot.setStateProvider(() -> this.oilAmount);
             logger.info("Successfully initialized new node on " + hostname + ":" + port);
             startOilTransfers(2*1000, (int)(this.oilAmount*0.001), (int)(this.oilAmount*0.01));
         } catch (RemoteException | AlreadyBoundException e) {
             logger.warn("Cannot initialize new node");
         } catch (AlreadyInitialized e) {
             logger.info("You have already initialized your node!");
-        } catch (RestoreInProgress e) {
-            logger.info(e.getMessage());
         } catch (NotInitialized ignored) {}
     }
 
@@ -144,7 +149,7 @@ public class OilWell implements AppConnector<OilCargo, Integer> {
             try {
                 distributedSnapshot.initiateSnapshot();
                 logger.info("Snapshot completed");
-            } catch (RemoteException | DoubleMarkerException | UnexpectedMarkerReceived e) {
+            } catch (RemoteException | MarkerDeliveryException e) {
                 logger.warn("Cannot complete snapshot");
             } catch (NotInitialized e) {
                 logger.info("You must first initialize your oil well!");
@@ -173,50 +178,79 @@ public class OilWell implements AppConnector<OilCargo, Integer> {
     }
 
     /**
-     * It is used to start the thread that periodically sends oil to another oil well
+     * It is used to start the thread that periodically sends oil to another oil well.
+     * The oil cargo is sent asynchronously: a slow well does not keep the locks held while the cargo travels
      */
     private void startOilTransfers(int frequency, int minAmount, int maxAmount) {
         logger.info("Starting automated oil transfers");
         executor.scheduleAtFixedRate(() -> {
+            ConnectionDetails randomWell;
             synchronized (directConnectionsLock) {
-                if (directConnections.size() > 0) {
-                    ConnectionDetails randomWell = directConnections.get((int) (Math.random() * (directConnections.size())));
-                    try {
-                        int amount = minAmount + (int) (Math.random() * ((maxAmount - minAmount) + 1));
-                        synchronized (oilAmountLock) {
-                            if (oilAmount - amount >= 0) {
-                                distributedSnapshot.sendMessage(randomWell.getHostname(), randomWell.getPort(), new OilCargo(amount));
-                                oilAmount -= amount;
-                                distributedSnapshot.updateState(oilAmount);
-                                logger.info("Sent " + amount + " oil to " + randomWell.getHostname() + ":" + randomWell.getPort() + ". New oilAmount = " + oilAmount);
-                            } else {
-                                logger.warn("You are running out of oil, cannot send oil to " + randomWell.getHostname() + ":" + randomWell.getPort());
-                            }
-                        }
-                    } catch (RemoteNodeNotFound | RemoteException e) {
-                        logger.warn("Error sending oil cargo. Disconnecting from " + randomWell.getHostname() + ":" + randomWell.getPort());
-                        try {
-                            distributedSnapshot.removeNode(randomWell.getHostname(), randomWell.getPort());
-                            directConnections.remove(randomWell);
-                        } catch (RemoteException | RestoreInProgress | SnapshotInterruptException ex) {
-                            logger.warn("Error removing node " + randomWell.getHostname() + ":" + randomWell.getPort());
-                        } catch (NotInitialized ignored) {}
-                    } catch (NotBoundException | SnapshotInterruptException e) {
-                        logger.warn("Error sending oil cargo");
-                    } catch (NotInitialized notInitialized) {
-                        logger.info("You must first initialize your oil well!");
-                    } catch (StateUpdateException e) {
-                        logger.info("Error in updating state");
-                    } catch (RestoreInProgress restoreInProgress) {
-                        logger.info("Cannot send oil while a restore is in progress");
-                    } catch (OperationForbidden operationForbidden) {
-                        logger.info(operationForbidden.getMessage());
+                if (directConnections.size() == 0)
+                    return;
+                randomWell = directConnections.get((int) (Math.random() * (directConnections.size())));
+            }
+            try {
+                int amount = minAmount + (int) (Math.random() * ((maxAmount - minAmount) + 1));
+                synchronized (oilAmountLock) {
+                    if (oilAmount - amount >= 0) {
+                        distributedSnapshot.sendMessageAsync(randomWell.getHostname(), randomWell.getPort(), new OilCargo(amount))
+                                .whenComplete((ignored, e) -> {
+                                    if (e != null)
+                                        executor.execute(() -> handleFailedTransfer(randomWell, amount, e));
+                                });
+                        oilAmount -= amount;
+                        logger.info("Sent " + amount + " oil to " + randomWell.getHostname() + ":" + randomWell.getPort() + ". New oilAmount = " + oilAmount);
+                    } else {
+                        logger.warn("You are running out of oil, cannot send oil to " + randomWell.getHostname() + ":" + randomWell.getPort());
                     }
                 }
+            } catch (RemoteNodeNotFound e) {
+                logger.warn("Error sending oil cargo. Disconnecting from " + randomWell.getHostname() + ":" + randomWell.getPort());
+                removeWell(randomWell);
+            } catch (NotInitialized notInitialized) {
+                logger.info("You must first initialize your oil well!");
+            } catch (RestoreInProgress restoreInProgress) {
+                logger.info("Cannot send oil while a restore is in progress");
+            } catch (OperationForbidden operationForbidden) {
+                logger.info(operationForbidden.getMessage());
             }
         }, 0, frequency, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * It is called when an oil cargo could not be delivered: the oil is given back to this well
+     * and, if the other well is not reachable, the connection is removed. A well that is only busy stays connected
+     */
+    private void handleFailedTransfer(ConnectionDetails well, int amount, Throwable cause) {
+        synchronized (oilAmountLock) {
+            oilAmount += amount;
+        }
+        if (cause instanceof ReceiverBusyException) {
+            // the other well is reachable, it is only behind on the cargoes of this one
+            logger.warn("Oil cargo refused by the busy well " + well.getHostname() + ":" + well.getPort());
+        } else if (cause instanceof RemoteException) {
+            logger.warn("Error sending oil cargo. Disconnecting from " + well.getHostname() + ":" + well.getPort());
+            removeWell(well);
+        } else {
+            logger.warn("Error sending oil cargo");
+        }
+    }
+
+    /**
+     * It removes the provided oil well from the network
+     */
+    private void removeWell(ConnectionDetails well) {
+        synchronized (directConnectionsLock) {
+            try {
+                distributedSnapshot.removeNode(well.getHostname(), well.getPort());
+                directConnections.remove(well);
+            } catch (RemoteException | RestoreInProgress | SnapshotInterruptException ex) {
+                logger.warn("Error removing node " + well.getHostname() + ":" + well.getPort());
+            } catch (NotInitialized ignored) {}
+        }
+    }
+
     @Override
     public void handleRestoredState(Integer state) {
         synchronized (oilAmountLock) {
@@ -244,12 +278,22 @@ public class OilWell implements AppConnector<OilCargo, Integer> {
     public void handleIncomingMessage(String senderHostname, int senderPort, OilCargo message) {
         synchronized (oilAmountLock) {
             oilAmount += message.getOilAmount();
-            try {
-                distributedSnapshot.updateState(oilAmount);
-                logger.info("Received " + message.getOilAmount() + " oil from " + senderHostname + ":" + senderPort + ". New oilAmount = " + oilAmount);
-            } catch (StateUpdateException | RestoreInProgress e) {
-                logger.warn("Received " + message.getOilAmount() + " oil from " + senderHostname + ":" + senderPort + ". Error updating state");
-            } catch (NotInitialized ignored) {}
+            logger.info("Received " + message.getOilAmount() + " oil from " + senderHostname + ":" + senderPort + ". New oilAmount = " + oilAmount);
+        }
+    }
+
+    /**
+     * It handles the messages of an oil well waiting to be handled. The oil amount is updated once for all of them
+     */
+    @Override
+    public void handleIncomingMessages(String senderHostname, int senderPort, List<OilCargo> messages) {
+        int received = 0;
+        for (OilCargo message : messages) {
+            received += message.getOilAmount();
+        }
+        synchronized (oilAmountLock) {
+            oilAmount += received;
+            logger.info("Received " + received + " oil from " + senderHostname + ":" + senderPort + " with " + messages.size() + " cargos. New oilAmount = " + oilAmount);
         }
     }
 
@@ -0,0 +1,127 @@
+package library;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how the locks of the library hold up when application threads send messages, the nodes receive them
+ * and snapshots propagate their markers, all at the same time on the same nodes.
+ * It is excluded from the default build, run it with: mvn test -P benchmark
+ */
+@Tag("benchmark")
+public class ContentionBenchmark {
+    private static final int NODES = 4;
+    private static final int SENDERS_PER_NODE = 4;
+    private static final long DURATION_MILLIS = 5_000;
+
+    @Test
+    public void sendsReceivesAndMarkersTogether() throws Exception {
+        Configuration configuration = new Configuration();
+        configuration.setStorageType(StorageType.MEMORY);
+        ArrayList<App<Message, State>> nodes = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            App<Message, State> node = new DiscardingApp("localhost", 11901 + i);
+            node.init(node, configuration);
+            node.snapshotLibrary.updateState(new State());
+            nodes.add(node);
+        }
+        for (App<Message, State> node : nodes.subList(1, NODES)) {
+            node.snapshotLibrary.joinNetwork(nodes.get(0).hostname, nodes.get(0).port);
+        }
+        Thread.sleep(500);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong sent = new AtomicLong();
+        AtomicLong snapshots = new AtomicLong();
+        AtomicLong updates = new AtomicLong();
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int n = 0; n < NODES; n++) {
+            App<Message, State> node = nodes.get(n);
+            for (int s = 0; s < SENDERS_PER_NODE; s++) {
+                int first = s;
+                threads.add(new Thread(() -> {
+                    Message message = new Message("from " + node.port);
+                    CompletableFuture<Void> last = null;
+                    try {
+                        for (long i = first; running.get(); i++) {
+                            App<Message, State> peer = nodes.get((int) (i % NODES));
+                            if (peer == node)
+                                continue;
+                            last = node.snapshotLibrary.sendMessageAsync(peer.hostname, peer.port, message);
+                            // bounds the messages queued but not delivered yet
+                            if (i % 256 == 0)
+                                last.join();
+                            sent.incrementAndGet();
+                        }
+                        if (last != null)
+                            last.join();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }));
+            }
+            // the application keeps updating its state, the snapshots read it
+            threads.add(new Thread(() -> {
+                State state = new State();
+                try {
+                    while (running.get()) {
+                        node.snapshotLibrary.updateState(state);
+                        updates.incrementAndGet();
+                        Thread.sleep(1);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }));
+        }
+        threads.add(new Thread(() -> {
+            try {
+                for (int i = 0; running.get(); i++) {
+                    nodes.get(i % NODES).snapshotLibrary.initiateSnapshotAsync().markersDelivered().get(30, TimeUnit.SECONDS);
+                    snapshots.incrementAndGet();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }));
+
+        long start = System.nanoTime();
+        threads.forEach(Thread::start);
+        Thread.sleep(DURATION_MILLIS);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("nodes=%d senders=%d time=%.1fs messages=%.0f msg/s snapshots=%.1f/s updates=%.0f/s%n",
+                NODES, NODES * SENDERS_PER_NODE, seconds, sent.get() / seconds, snapshots.get() / seconds, updates.get() / seconds);
+
+        for (App<Message, State> node : nodes) {
+            node.snapshotLibrary.stop();
+        }
+    }
+
+    /**
+     * An application that drops the received messages, so that only the library is measured
+     */
+    private static class DiscardingApp extends App<Message, State> {
+        DiscardingApp(String hostname, int port) {
+            super(hostname, port);
+        }
+
+        @Override
+        public void handleIncomingMessage(String senderHostname, int senderPort, Message message) {
+        }
+
+        @Override
+        public void handleIncomingMessages(String senderHostname, int senderPort, List<Message> messages) {
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package library;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeliveryLanesTest {
+    @Test
+    void messagesOfASenderAreDeliveredInOrder() throws InterruptedException {
+        ConcurrentHashMap<Entity, List<Integer>> received = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(3 * 2000);
+        DeliveryLanes<Integer> lanes = new DeliveryLanes<>("test-delivery", ExecutionMode.PLATFORM_THREADS, 2, 4096, new Receiver((sender, message) -> {
+            received.computeIfAbsent(sender, key -> new ArrayList<>()).add(message);
+            done.countDown();
+        }));
+        List<Entity> senders = List.of(new Entity("localhost", 1), new Entity("localhost", 2), new Entity("localhost", 3));
+        // the batches of the senders are interleaved, as when they are received at the same time
+        for (int from = 0; from < 2000; from += 10) {
+            for (Entity sender : senders) {
+                lanes.enqueue(sender, IntStream.range(from, from + 10).boxed().collect(Collectors.toList()));
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        List<Integer> expected = IntStream.range(0, 2000).boxed().collect(Collectors.toList());
+        for (Entity sender : senders) {
+            assertEquals(expected, received.get(sender));
+        }
+        // the last turn ends right after the last message has been handed over
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!lanes.getQueueDepth().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Map.of(), lanes.getQueueDepth());
+        lanes.shutdown();
+    }
+
+    @Test
+    void fullLaneRefusesTheSender() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        DeliveryLanes<Integer> lanes = new DeliveryLanes<>("test-delivery", ExecutionMode.PLATFORM_THREADS, 1, 4, new Receiver((sender, message) -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        Entity slow = new Entity("localhost", 1);
+        Entity other = new Entity("localhost", 2);
+        lanes.enqueue(slow, List.of(1, 2, 3, 4, 5, 6));
+        lanes.enqueue(other, List.of(1));
+        assertEquals(Map.of(slow, 6, other, 1), lanes.getQueueDepth());
+
+        // the lane of the other sender is within its capacity, the lane of the slow one isn't
+        assertTrue(lanes.awaitCapacity(other, 0));
+        long start = System.nanoTime();
+        assertFalse(lanes.awaitCapacity(slow, 200));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+
+        release.countDown();
+        assertTrue(lanes.awaitCapacity(slow, 5000));
+        lanes.shutdown();
+    }
+
+    @Test
+    void waitingMessagesAreDeliveredTogether() throws InterruptedException {
+        CountDownLatch first = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        List<List<Integer>> batches = Collections.synchronizedList(new ArrayList<>());
+        DeliveryLanes<Integer> lanes = new DeliveryLanes<>("test-delivery", ExecutionMode.PLATFORM_THREADS, 1, 4096, new Receiver(null) {
+            @Override
+            public void handleIncomingMessages(String senderHostname, int senderPort, List<Integer> messages) {
+                batches.add(new ArrayList<>(messages));
+                first.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        });
+        Entity sender = new Entity("localhost", 1);
+        lanes.enqueue(sender, List.of(1));
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+        // received while the application handles the first message: they are handed over with a single call
+        lanes.enqueue(sender, List.of(2));
+        lanes.enqueue(sender, List.of(3, 4));
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(List.of(1), List.of(2, 3, 4)), batches);
+        lanes.shutdown();
+    }
+
+    private interface Handler {
+        void handle(Entity sender, Integer message);
+    }
+
+    /**
+     * An application that only handles the received messages
+     */
+    private static class Receiver implements AppConnector<Integer, Object> {
+        private final Handler handler;
+
+        Receiver(Handler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void handleIncomingMessage(String senderHostname, int senderPort, Integer o) {
+            handler.handle(new Entity(senderHostname, senderPort), o);
+        }
+
+        @Override
+        public void handleNewConnection(String newConnectionHostname, int newConnectionPort) {
+        }
+
+        @Override
+        public void handleRemoveConnection(String removeConnectionHostname, int removeConnectionPort) {
+        }
+
+        @Override
+        public void handleRestoredState(Object state) {
+        }
+
+        @Override
+        public void handleRestoredConnections(ArrayList<Entity> connections) {
+        }
+    }
+}
@@ -1,23 +1,36 @@
 package library;
 
 import library.exceptions.*;
+import org.apache.commons.io.FileUtils;
 import org.junit.jupiter.api.Test;
 
 import javax.swing.plaf.synth.SynthTextAreaUI;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.rmi.AlreadyBoundException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class DistributedSnapshotTest {
     @Test
@@ -165,6 +178,572 @@ public class DistributedSnapshotTest {
 
     }
 
+    @Test
+    public void simpleSnapshotRestoreOverNio() throws RestoreInProgress, IOException, InterruptedException, RestoreAlreadyInProgress, NotBoundException, RestoreNotPossible, ClassNotFoundException, UnexpectedMarkerReceived, DoubleMarkerException, NotInitialized {
+        ArrayList<App<Message,State>> apps = new ArrayList<>();
+        apps.add(new App<>("localhost", 11161));
+        apps.add(new App<>("localhost", 11162));
+        apps.add(new App<>("localhost", 11163));
+
+        Configuration configuration = new Configuration();
+        configuration.setTransportType(TransportType.NIO);
+
+        // app[i] initialize & app[i] set initial state
+        apps.forEach((app)-> {
+            try {
+                app.init(app, configuration);
+                app.state=new State(app.port);
+                app.snapshotLibrary.updateState(app.state);
+            } catch (AlreadyBoundException | RemoteException | AlreadyInitialized | RestoreInProgress | StateUpdateException | NotInitialized e) {
+                e.printStackTrace();
+            }
+        });
+
+        // app[i] join network
+        apps.forEach((app)-> {
+            try {
+                if (!Objects.equals(app.hostname, apps.get(0).hostname) || app.port != apps.get(0).port)
+                    app.snapshotLibrary.joinNetwork(apps.get(0).hostname,apps.get(0).port);
+            } catch (RemoteException | NotBoundException | NotInitialized | OperationForbidden e) {
+                e.printStackTrace();
+            }
+        });
+        Thread.sleep(500);
+        apps.forEach((app)-> assertEquals(apps.size()-1, app.snapshotLibrary.remoteImplementation.remoteNodes.size()));
+
+        // start sending messages
+        ExecutorService executorService= Executors.newCachedThreadPool();
+        executorService.submit(()-> sendLoop(apps, 0));
+        executorService.submit(()-> sendLoop(apps, 1));
+        executorService.submit(()-> sendLoop(apps, 2));
+
+        apps.get(1).snapshotLibrary.initiateSnapshot();
+        Thread.sleep(500); // let the snapshot finish
+
+        apps.forEach((app)-> {
+            try {
+                app.state=new State(-1);
+                app.snapshotLibrary.updateState(app.state);
+            } catch (RestoreInProgress | StateUpdateException | NotInitialized e) {
+                e.printStackTrace();
+            }
+        });
+
+        //we restore the snapshot that we made
+        try {
+            apps.get(0).snapshotLibrary.disconnect();
+            apps.get(0).snapshotLibrary.restoreLastSnapshot();
+        } catch (OperationForbidden | SnapshotInterruptException e) {
+            e.printStackTrace();
+        }
+        Thread.sleep(200);
+
+        //at this point we should be able to see the same state of the previous setup
+        apps.forEach((app)-> {
+            assertEquals(app.state, new State(app.port),
+                    "["+app.hostname+":"+app.port+"] State.appId="+app.state.appId);
+            assertEquals(app.snapshotLibrary.remoteImplementation.currentState, new State(app.port),
+                    "["+app.hostname+":"+app.port+"] remoteImplementation.currentState.appId="+app.state.appId);
+        });
+
+        executorService.shutdownNow();
+        if (!executorService.awaitTermination(100, TimeUnit.MILLISECONDS)) {
+            System.out.println("Still waiting...");
+            System.exit(0);
+        }
+        for (App<Message, State> app : apps) {
+            app.snapshotLibrary.stop();
+        }
+        System.out.println("Exiting normally...");
+
+        Storage.cleanStorageFolder();
+    }
+
+    @Test
+    public void snapshotRestoreWithStateProvider() throws RestoreInProgress, IOException, InterruptedException, RestoreAlreadyInProgress, NotBoundException, RestoreNotPossible, ClassNotFoundException, UnexpectedMarkerReceived, DoubleMarkerException, NotInitialized {
+        ArrayList<App<Message,State>> apps = new ArrayList<>();
+        apps.add(new App<>("localhost", 11191));
+        apps.add(new App<>("localhost", 11192));
+        apps.add(new App<>("localhost", 11193));
+
+        // app[i] initialize & app[i] register the state provider: updateState is never called
+        apps.forEach((app)-> {
+            try {
+                app.init(app);
+                app.state=new State(app.port);
+                app.snapshotLibrary.setStateProvider(() -> app.state);
+            } catch (AlreadyBoundException | RemoteException | AlreadyInitialized | NotInitialized e) {
+                e.printStackTrace();
+            }
+        });
+
+        // app[i] join network
+        apps.forEach((app)-> {
+            try {
+                if (!Objects.equals(app.hostname, apps.get(0).hostname) || app.port != apps.get(0).port)
+                    app.snapshotLibrary.joinNetwork(apps.get(0).hostname,apps.get(0).port);
+            } catch (RemoteException | NotBoundException | NotInitialized | OperationForbidden e) {
+                e.printStackTrace();
+            }
+        });
+        Thread.sleep(500);
+
+        apps.get(1).snapshotLibrary.initiateSnapshot();
+        Thread.sleep(500); // let the snapshot finish
+
+        // the snapshot holds a copy: changing the state afterwards doesn't affect it
+        apps.forEach((app)-> app.state=new State(-1));
+
+        try {
+            apps.get(0).snapshotLibrary.disconnect();
+            apps.get(0).snapshotLibrary.restoreLastSnapshot();
+        } catch (OperationForbidden | SnapshotInterruptException e) {
+            e.printStackTrace();
+        }
+        Thread.sleep(200);
+
+        apps.forEach((app)-> assertEquals(app.state, new State(app.port),
+                "["+app.hostname+":"+app.port+"] State.appId="+app.state.appId));
+
+        Storage.cleanStorageFolder();
+    }
+
+    @Test
+    public void snapshotRestoreWithMemoryStore() throws RestoreInProgress, StateUpdateException, IOException, InterruptedException, RestoreAlreadyInProgress, NotBoundException, RestoreNotPossible, ClassNotFoundException, UnexpectedMarkerReceived, DoubleMarkerException, NotInitialized, OperationForbidden, SnapshotInterruptException {
+        ArrayList<App<Message,State>> apps = new ArrayList<>();
+        apps.add(new App<>("localhost", 11211));
+        apps.add(new App<>("localhost", 11212));
+        apps.add(new App<>("localhost", 11213));
+
+        // the snapshots are kept outside of the heap: nothing is written to disk
+        Configuration configuration = new Configuration();
+        configuration.setStorageType(StorageType.OFF_HEAP);
+        apps.forEach((app)-> {
+            try {
+                app.init(app, configuration);
+                app.state=new State(app.port);
+                app.snapshotLibrary.updateState(app.state);
+            } catch (AlreadyBoundException | RemoteException | AlreadyInitialized | RestoreInProgress | StateUpdateException | NotInitialized e) {
+                e.printStackTrace();
+            }
+        });
+        for (App<Message,State> app : apps.subList(1, apps.size())) {
+            app.snapshotLibrary.joinNetwork(apps.get(0).hostname, apps.get(0).port);
+        }
+        Thread.sleep(500);
+
+        apps.get(1).snapshotLibrary.initiateSnapshot();
+        Thread.sleep(500); // let the snapshot finish
+        assertEquals(-1, Storage.getLastSnapshotId(apps.get(1).hostname, apps.get(1).port));
+
+        for (App<Message,State> app : apps) {
+            app.state=new State(-1);
+            app.snapshotLibrary.updateState(app.state);
+        }
+        apps.get(0).snapshotLibrary.disconnect();
+        apps.get(0).snapshotLibrary.restoreLastSnapshot();
+        Thread.sleep(200);
+
+        apps.forEach((app)-> assertEquals(app.state, new State(app.port),
+                "["+app.hostname+":"+app.port+"] State.appId="+app.state.appId));
+        for (App<Message,State> app : apps) {
+            app.snapshotLibrary.stop();
+        }
+    }
+
+    @Test
+    public void markerFailuresAreReported() throws IOException, InterruptedException, NotBoundException, NotInitialized, OperationForbidden, RestoreInProgress, AlreadyBoundException, AlreadyInitialized, StateUpdateException {
+        ArrayList<App<Message,State>> apps = new ArrayList<>();
+        apps.add(new App<>("localhost", 11221));
+        apps.add(new App<>("localhost", 11222));
+        apps.add(new App<>("localhost", 11223));
+
+        Configuration configuration = new Configuration();
+        configuration.setSenderParallelism(2);
+        for (App<Message,State> app : apps) {
+            app.init(app, configuration);
+            app.snapshotLibrary.updateState(new State(app.port));
+        }
+        for (App<Message,State> app : apps.subList(1, apps.size())) {
+            app.snapshotLibrary.joinNetwork(apps.get(0).hostname, apps.get(0).port);
+        }
+        Thread.sleep(500);
+
+        // the last node is no longer reachable: the other markers are delivered anyway
+        apps.get(2).snapshotLibrary.stop();
+        MarkerDeliveryException exception = assertThrows(MarkerDeliveryException.class, () -> apps.get(0).snapshotLibrary.initiateSnapshot());
+        assertEquals(Set.of(new Entity("localhost", 11223)), exception.getFailures().keySet());
+        assertEquals(1, exception.getSuppressed().length);
+
+        // the handle of a snapshot started without waiting reports the same failure
+        SnapshotHandle handle = apps.get(0).snapshotLibrary.initiateSnapshotAsync();
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> handle.markersDelivered().get(5, TimeUnit.SECONDS));
+        assertEquals(Set.of(new Entity("localhost", 11223)), ((MarkerDeliveryException) failure.getCause()).getFailures().keySet());
+
+        apps.get(0).snapshotLibrary.stop();
+        apps.get(1).snapshotLibrary.stop();
+    }
+
+    @Test
+    public void restoreIsAbortedOnFailure() throws IOException, InterruptedException, ExecutionException, TimeoutException, NotBoundException, NotInitialized, OperationForbidden, RestoreInProgress, AlreadyBoundException, AlreadyInitialized, StateUpdateException, SnapshotInterruptException {
+        ArrayList<App<Message,State>> apps = new ArrayList<>();
+        apps.add(new App<>("localhost", 11231));
+        apps.add(new App<>("localhost", 11232));
+        apps.add(new App<>("localhost", 11233));
+
+        Configuration configuration = new Configuration();
+        configuration.setStorageFolder("restore_test_folder");
+        for (App<Message,State> app : apps) {
+            app.init(app, configuration);
+            app.snapshotLibrary.updateState(new State(app.port));
+        }
+        for (App<Message,State> app : apps.subList(1, apps.size())) {
+            app.snapshotLibrary.joinNetwork(apps.get(0).hostname, apps.get(0).port);
+        }
+        Thread.sleep(500);
+        apps.get(0).snapshotLibrary.initiateSnapshot();
+        Thread.sleep(500);
+        for (App<Message,State> app : apps) {
+            app.snapshotLibrary.flushSnapshots().get(5, TimeUnit.SECONDS);
+            app.snapshotLibrary.updateState(new State(-app.port));
+        }
+
+        // the snapshot of the second node can't be read: it fails while restoring its connections
+        try (Stream<Path> segments = Files.walk(Paths.get("restore_test_folder", "localhost_11232"))) {
+            for (Path segment : segments.filter(path -> path.endsWith(SnapshotSegment.FILE_NAME)).collect(Collectors.toList())) {
+                Files.write(segment, new byte[]{1, 2, 3});
+            }
+        }
+        apps.get(0).snapshotLibrary.disconnect();
+        RestoreNotPossible exception = assertThrows(RestoreNotPossible.class, () -> apps.get(0).snapshotLibrary.restoreLastSnapshot());
+        RestorePhaseException cause = (RestorePhaseException) exception.getCause();
+        assertEquals(RestorePhase.CONNECTIONS, cause.getPhase());
+        assertEquals(Set.of(new Entity("localhost", 11232)), cause.getFailures().keySet());
+        assertEquals(Set.of(RestorePhase.PREPARE, RestorePhase.CONNECTIONS), apps.get(0).snapshotLibrary.getLastRestoreTimings().keySet());
+
+        // no node has been restored: they all keep the state and the connections they had
+        for (App<Message,State> app : apps) {
+            assertEquals(new State(-app.port), app.snapshotLibrary.remoteImplementation.currentState);
+        }
+        assertEquals(NodeState.DETACHED, apps.get(0).snapshotLibrary.remoteImplementation.nodeState.get());
+        assertEquals(NodeState.READY, apps.get(1).snapshotLibrary.remoteImplementation.nodeState.get());
+        assertEquals(NodeState.READY, apps.get(2).snapshotLibrary.remoteImplementation.nodeState.get());
+        assertEquals(List.of(new Entity("localhost", 11233)), apps.get(1).snapshotLibrary.remoteImplementation.getConnections());
+
+        for (App<Message,State> app : apps) {
+            app.snapshotLibrary.stop();
+        }
+        FileUtils.deleteDirectory(new File("restore_test_folder"));
+    }
+
+    @Test
+    public void initiatorIsNotifiedOfGlobalCompletion() throws IOException, InterruptedException, ExecutionException, TimeoutException, NotBoundException, NotInitialized, OperationForbidden, RestoreInProgress, AlreadyBoundException, AlreadyInitialized, StateUpdateException {
+        ArrayList<App<Message,State>> apps = new ArrayList<>();
+        apps.add(new App<>("localhost", 11241));
+        apps.add(new App<>("localhost", 11242));
+        apps.add(new App<>("localhost", 11243));
+
+        Configuration configuration = new Configuration();
+        configuration.setStorageType(StorageType.MEMORY);
+        configuration.setExecutionMode(ExecutionMode.VIRTUAL_THREADS);
+        for (App<Message,State> app : apps) {
+            app.init(app, configuration);
+            app.snapshotLibrary.updateState(new State(app.port));
+        }
+        for (App<Message,State> app : apps.subList(1, apps.size())) {
+            app.snapshotLibrary.joinNetwork(apps.get(0).hostname, apps.get(0).port);
+        }
+        Thread.sleep(500);
+
+        // the snapshots are taken back to back: each one starts once the previous one has been saved by all the nodes
+        for (int i = 0; i < 3; i++) {
+            SnapshotHandle handle = apps.get(1).snapshotLibrary.initiateSnapshotAsync();
+            SnapshotReport report = handle.completed().get(5, TimeUnit.SECONDS);
+            assertEquals(handle.getSnapshotId(), report.getSnapshotId());
+            assertEquals(Set.of(new Entity("localhost", 11241), new Entity("localhost", 11242), new Entity("localhost", 11243)), report.getNodes().keySet());
+            assertTrue(report.isSuccessful());
+            for (SnapshotReport.NodeReport node : report.getNodes().values()) {
+                assertTrue(node.getBytes() > 0);
+                assertTrue(node.getLatency().compareTo(report.getDuration()) <= 0);
+            }
+            assertTrue(handle.markersDelivered().isDone());
+        }
+
+        assertTrue(apps.get(1).snapshotLibrary.remoteImplementation.completions.isEmpty());
+        for (App<Message,State> app : apps) {
+            app.snapshotLibrary.stop();
+        }
+    }
+
+    @Test
+    public void restoreInterruptsTheRunningSnapshots() throws IOException, InterruptedException, ExecutionException, TimeoutException, NotBoundException, NotInitialized, OperationForbidden, RestoreInProgress, AlreadyBoundException, AlreadyInitialized {
+        App<Message,State> first = new App<>("localhost", 11301);
+        App<Message,State> second = new App<>("localhost", 11302);
+        Configuration configuration = new Configuration();
+        configuration.setStorageType(StorageType.MEMORY);
+        first.init(first, configuration);
+        second.init(second, configuration);
+        second.snapshotLibrary.joinNetwork(first.hostname, first.port);
+        Thread.sleep(200);
+
+        // a snapshot started by the first node, still waiting for the marker of the second one, which
+        // it doesn't expect a report from
+        RemoteImplementation<State,Message> node = first.snapshotLibrary.remoteImplementation;
+        Entity initiator = new Entity(first.hostname, first.port);
+        SnapshotCompletion completion = new SnapshotCompletion(42, initiator);
+        node.completions.put(42, completion);
+        node.nodeSnapshotLock.writeLock().lock();
+        try {
+            Snapshot<State,Message> running = new Snapshot<>(42, new State(), new ArrayList<>());
+            running.initiator = initiator;
+            node.runningSnapshots.start(running, node.remoteNodes);
+        } finally {
+            node.nodeSnapshotLock.writeLock().unlock();
+        }
+
+        node.setReady(false);
+        assertEquals(NodeState.RESTORING, node.nodeState.get());
+        assertTrue(node.runningSnapshots.isEmpty());
+        SnapshotReport report = completion.completed.get(5, TimeUnit.SECONDS);
+        assertFalse(report.isSuccessful());
+        assertNotNull(report.getNodes().get(initiator).getError());
+
+        node.abortRestore();
+        assertEquals(NodeState.READY, node.nodeState.get());
+        first.snapshotLibrary.stop();
+        second.snapshotLibrary.stop();
+    }
+
+    @Test
+    public void restoreStopsTheLinks() throws InterruptedException, ExecutionException, TimeoutException, RemoteException, NotBoundException, NotInitialized, OperationForbidden, RemoteNodeNotFound, RestoreInProgress, AlreadyBoundException, AlreadyInitialized {
+        Configuration receiverConfiguration = new Configuration();
+        receiverConfiguration.setDeliveryQueueCapacity(1);
+        CountDownLatch release = new CountDownLatch(1);
+        App<Message,State> sender = new App<>("localhost", 11311);
+        App<Message,State> receiver = new App<>("localhost", 11312) {
+            @Override
+            public void handleIncomingMessages(String senderHostname, int senderPort, List<Message> messages) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.handleIncomingMessages(senderHostname, senderPort, messages);
+            }
+        };
+        sender.init(sender);
+        receiver.init(receiver, receiverConfiguration);
+        sender.snapshotLibrary.joinNetwork(receiver.hostname, receiver.port);
+
+        sender.snapshotLibrary.sendMessageAsync(receiver.hostname, receiver.port, new Message("MSG 0"));
+        assertNull(sender.snapshotLibrary.sendMessageAsync(receiver.hostname, receiver.port, new Message("MSG 1")).get(5, TimeUnit.SECONDS));
+        // refused by the busy receiver, the message would be sent again after the restore
+        CompletableFuture<Void> refused = sender.snapshotLibrary.sendMessageAsync(receiver.hostname, receiver.port, new Message("MSG 2"));
+        Thread.sleep(200);
+        sender.snapshotLibrary.remoteImplementation.setReady(false);
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> refused.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(RestoreInProgress.class, failure.getCause());
+
+        // a restoring node doesn't silently drop the messages it receives
+        receiver.snapshotLibrary.remoteImplementation.setReady(false);
+        assertThrows(RestoreInProgress.class, () -> receiver.snapshotLibrary.remoteImplementation.receiveMessages(sender.hostname, sender.port, new ArrayList<>(List.of(new Message("MSG 3")))));
+        release.countDown();
+
+        receiver.snapshotLibrary.remoteImplementation.abortRestore();
+        sender.snapshotLibrary.remoteImplementation.abortRestore();
+        assertNull(sender.snapshotLibrary.sendMessageAsync(receiver.hostname, receiver.port, new Message("MSG 4")).get(5, TimeUnit.SECONDS));
+        sender.snapshotLibrary.stop();
+        receiver.snapshotLibrary.stop();
+    }
+
+    @Test
+    public void snapshotCompletionTimesOut() throws IOException, InterruptedException, NotBoundException, NotInitialized, OperationForbidden, RestoreInProgress, AlreadyBoundException, AlreadyInitialized, StateUpdateException {
+        App<Message,State> initiator = new App<>("localhost", 11271);
+        App<Message,State> slow = new App<>("localhost", 11272);
+        Configuration configuration = new Configuration();
+        configuration.setStorageType(StorageType.MEMORY);
+        configuration.setSnapshotCompletionTimeout(300);
+        initiator.init(initiator, configuration);
+        slow.init(slow, configuration);
+        initiator.snapshotLibrary.updateState(new State(initiator.port));
+        // the slow node takes longer than the timeout to record its state
+        slow.snapshotLibrary.setStateProvider(() -> {
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new State(slow.port);
+        });
+        slow.snapshotLibrary.joinNetwork(initiator.hostname, initiator.port);
+
+        SnapshotHandle handle = initiator.snapshotLibrary.initiateSnapshotAsync();
+        ExecutionException e = assertThrows(ExecutionException.class, () -> handle.completed().get(5, TimeUnit.SECONDS));
+        assertInstanceOf(TimeoutException.class, e.getCause());
+        assertTrue(initiator.snapshotLibrary.remoteImplementation.completions.isEmpty());
+
+        Thread.sleep(2000); // let the slow node end the snapshot
+        initiator.snapshotLibrary.stop();
+        slow.snapshotLibrary.stop();
+    }
+
+    @Test
+    public void snapshotIsSavedInBackground() throws IOException, ClassNotFoundException, InterruptedException, ExecutionException, TimeoutException, UnexpectedMarkerReceived, DoubleMarkerException, NotInitialized, RestoreInProgress, NotBoundException, OperationForbidden, AlreadyBoundException, AlreadyInitialized, StateUpdateException {
+        App<Message,State> first = new App<>("localhost", 11201);
+        App<Message,State> second = new App<>("localhost", 11202);
+        first.init(first);
+        second.init(second);
+        first.snapshotLibrary.updateState(new State(first.port));
+        second.snapshotLibrary.updateState(new State(second.port));
+        second.snapshotLibrary.joinNetwork(first.hostname, first.port);
+
+        first.snapshotLibrary.initiateSnapshot();
+        Thread.sleep(200); // let the markers come back
+
+        // once flushed, the snapshot can be found on disk on both nodes
+        first.snapshotLibrary.flushSnapshots().get(5, TimeUnit.SECONDS);
+        second.snapshotLibrary.flushSnapshots().get(5, TimeUnit.SECONDS);
+        int snapshotId = Storage.getLastSnapshotId(first.hostname, first.port);
+        assertNotEquals(-1, snapshotId);
+        assertEquals(snapshotId, Storage.getLastSnapshotId(second.hostname, second.port));
+        assertEquals(new State(second.port), Storage.<State, Message>readFile(snapshotId, second.hostname, second.port).state);
+
+        Storage.cleanStorageFolder();
+    }
+
+    @Test
+    public void sendMessagesKeepsOrder() throws ReceiverBusyException, InterruptedException, RemoteException, NotBoundException, NotInitialized, OperationForbidden, RemoteNodeNotFound, SnapshotInterruptException, RestoreInProgress, AlreadyBoundException, AlreadyInitialized {
+        App<Message,State> sender = new App<>("localhost", 11171);
+        App<Message,State> receiver = new App<>("localhost", 11172);
+        sender.init(sender);
+        receiver.init(receiver);
+        sender.snapshotLibrary.joinNetwork(receiver.hostname, receiver.port);
+
+        ArrayList<Message> batch = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            batch.add(new Message("MSG " + i));
+        }
+        sender.snapshotLibrary.sendMessages(receiver.hostname, receiver.port, batch);
+        Thread.sleep(200);
+
+        assertEquals(batch.size(), receiver.state.messages.size());
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals(batch.get(i).message, receiver.state.messages.get(i).message);
+        }
+    }
+
+    @Test
+    public void sendMessageAsyncDeliversAll() throws InterruptedException, ExecutionException, TimeoutException, RemoteException, NotBoundException, NotInitialized, OperationForbidden, RemoteNodeNotFound, RestoreInProgress, AlreadyBoundException, AlreadyInitialized {
+        App<Message,State> sender = new App<>("localhost", 11181);
+        App<Message,State> receiver = new App<>("localhost", 11182);
+        sender.init(sender);
+        receiver.init(receiver);
+        sender.snapshotLibrary.joinNetwork(receiver.hostname, receiver.port);
+
+        ArrayList<CompletableFuture<Void>> deliveries = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            deliveries.add(sender.snapshotLibrary.sendMessageAsync(receiver.hostname, receiver.port, new Message("MSG " + i)));
+        }
+        // every future completes normally once the receiver has got the message
+        for (CompletableFuture<Void> delivery : deliveries) {
+            assertNull(delivery.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void stopReleasesTheThreads() throws ReceiverBusyException, InterruptedException, RemoteException, NotBoundException, NotInitialized, OperationForbidden, RemoteNodeNotFound, SnapshotInterruptException, RestoreInProgress, AlreadyBoundException, AlreadyInitialized {
+        App<Message,State> sender = new App<>("localhost", 11261);
+        App<Message,State> receiver = new App<>("localhost", 11262);
+        sender.init(sender);
+        receiver.init(receiver);
+        sender.snapshotLibrary.joinNetwork(receiver.hostname, receiver.port);
+        sender.snapshotLibrary.sendMessage(receiver.hostname, receiver.port, new Message("MSG"));
+        sender.snapshotLibrary.stop();
+        receiver.snapshotLibrary.stop();
+
+        // the sender and library threads of the stopped nodes end
+        long deadline = System.currentTimeMillis() + 5000;
+        List<String> alive;
+        do {
+            Thread.sleep(50);
+            alive = Thread.getAllStackTraces().keySet().stream().filter(Thread::isAlive).map(Thread::getName)
+                    .filter(name -> name.matches("snapshot-(sender|library)-1126[12].*")).collect(Collectors.toList());
+        } while (!alive.isEmpty() && System.currentTimeMillis() < deadline);
+        assertEquals(List.of(), alive);
+    }
+
+    @Test
+    public void busyReceiverRefusesWithoutLosingMessages() throws InterruptedException, ExecutionException, TimeoutException, RemoteException, NotBoundException, NotInitialized, OperationForbidden, RemoteNodeNotFound, RestoreInProgress, AlreadyBoundException, AlreadyInitialized {
+        Configuration configuration = new Configuration();
+        configuration.setDeliveryQueueCapacity(4);
+        App<Message,State> sender = new App<>("localhost", 11281);
+        App<Message,State> receiver = new App<>("localhost", 11282) {
+            @Override
+            public void handleIncomingMessages(String senderHostname, int senderPort, List<Message> messages) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.handleIncomingMessages(senderHostname, senderPort, messages);
+            }
+        };
+        sender.init(sender);
+        receiver.init(receiver, configuration);
+        sender.snapshotLibrary.joinNetwork(receiver.hostname, receiver.port);
+
+        // the receiver can't keep up: its refusals are sent again by the sender, in order
+        ArrayList<CompletableFuture<Void>> deliveries = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            deliveries.add(sender.snapshotLibrary.sendMessageAsync(receiver.hostname, receiver.port, new Message("MSG " + i)));
+        }
+        for (CompletableFuture<Void> delivery : deliveries) {
+            assertNull(delivery.get(10, TimeUnit.SECONDS));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (receiver.state.messages.size() < 200 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(200, receiver.state.messages.size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals("MSG " + i, receiver.state.messages.get(i).message);
+        }
+    }
+
+    @Test
+    public void refusedMessagesFailAfterTheTimeout() throws InterruptedException, ExecutionException, TimeoutException, RemoteException, NotBoundException, NotInitialized, OperationForbidden, RemoteNodeNotFound, RestoreInProgress, AlreadyBoundException, AlreadyInitialized {
+        Configuration receiverConfiguration = new Configuration();
+        receiverConfiguration.setDeliveryQueueCapacity(1);
+        Configuration senderConfiguration = new Configuration();
+        senderConfiguration.setBusyRetryTimeout(300);
+        CountDownLatch release = new CountDownLatch(1);
+        App<Message,State> sender = new App<>("localhost", 11291);
+        App<Message,State> receiver = new App<>("localhost", 11292) {
+            @Override
+            public void handleIncomingMessages(String senderHostname, int senderPort, List<Message> messages) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.handleIncomingMessages(senderHostname, senderPort, messages);
+            }
+        };
+        sender.init(sender, senderConfiguration);
+        receiver.init(receiver, receiverConfiguration);
+        sender.snapshotLibrary.joinNetwork(receiver.hostname, receiver.port);
+
+        CompletableFuture<Void> first = sender.snapshotLibrary.sendMessageAsync(receiver.hostname, receiver.port, new Message("MSG 0"));
+        CompletableFuture<Void> second = sender.snapshotLibrary.sendMessageAsync(receiver.hostname, receiver.port, new Message("MSG 1"));
+        // once the first messages are accepted, the receiver is stuck on them and refuses the next ones
+        assertNull(second.get(5, TimeUnit.SECONDS));
+        CompletableFuture<Void> refused = sender.snapshotLibrary.sendMessageAsync(receiver.hostname, receiver.port, new Message("MSG 2"));
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> refused.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(ReceiverBusyException.class, failure.getCause());
+        assertNull(first.get(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
     @Test
     public void restoreSnapshotWithRemovedNode() throws UnexpectedMarkerReceived, RestoreInProgress, DoubleMarkerException, NotInitialized, IOException, InterruptedException, RestoreAlreadyInProgress, NotBoundException, OperationForbidden, SnapshotInterruptException, RestoreNotPossible, ClassNotFoundException {
         ArrayList<App<Message, State>> apps = new ArrayList<>();
@@ -497,7 +1076,7 @@ public class DistributedSnapshotTest {
                     try {
                         current.snapshotLibrary.sendMessage(send_to.hostname, send_to.port,
                                 new Message("MSG from [" + current.hostname + ":" + current.port + "]"));
-                    } catch (RemoteException | NotBoundException | NotInitialized | SnapshotInterruptException e) {
+                    } catch (RemoteException | NotBoundException | NotInitialized | SnapshotInterruptException | ReceiverBusyException e) {
                         e.printStackTrace();
                         System.out.println("ANOTHER TYPE OF ERROR");
                     } catch (RestoreInProgress e) {
@@ -532,6 +1111,10 @@ class App<MessageType, StateType> implements AppConnector<MessageType, StateType
         snapshotLibrary.init(hostname, port, appConnector);
     }
 
+    void init(AppConnector<Message, State> appConnector, Configuration configuration) throws AlreadyBoundException, RemoteException, AlreadyInitialized {
+        snapshotLibrary.init(hostname, port, appConnector, configuration);
+    }
+
     Entity getEntity(String hostname, int port){
         for (Entity entity : connections) {
             if(entity.getHostname().equals(hostname)&& entity.getPort()==port)
@@ -550,6 +1133,18 @@ class App<MessageType, StateType> implements AppConnector<MessageType, StateType
         }
     }
 
+    @Override
+    public void handleIncomingMessages(String senderHostname, int senderPort, List<MessageType> messages) {
+        for (MessageType message : messages) {
+            state.messages.add((Message) message);
+        }
+        try {
+            snapshotLibrary.updateState(state);
+        } catch (StateUpdateException | RestoreInProgress | NotInitialized e) {
+            e.printStackTrace();
+        }
+    }
+
     @Override
     public void handleNewConnection(String newConnectionHostname, int newConnectionPort) {
         connections.add(new Entity(newConnectionHostname, newConnectionPort));
@@ -0,0 +1,142 @@
+package library;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the platform threads used and the throughput of a network where every node is connected to all the others,
+ * with the work of the library running on platform threads and on virtual threads.
+ * Each node calls all the other nodes at the same time (senderParallelism = number of peers).
+ * It is excluded from the default build, run it with: mvn test -P benchmark
+ */
+@Tag("benchmark")
+public class FanOutBenchmark {
+    private static final int NODES = 32;
+    private static final int SNAPSHOTS = 20;
+    private static final int MESSAGES = 20_000;
+
+    @Test
+    public void virtualThreadsAtHighFanOut() throws Exception {
+        System.out.println("cores=" + Runtime.getRuntime().availableProcessors() + " nodes=" + NODES);
+        run(ExecutionMode.PLATFORM_THREADS, 11601); // warm up
+        run(ExecutionMode.PLATFORM_THREADS, 11701);
+        run(ExecutionMode.VIRTUAL_THREADS, 11801);
+    }
+
+    private void run(ExecutionMode mode, int firstPort) throws Exception {
+        ThreadSampler sampler = new ThreadSampler();
+        sampler.start();
+
+        Configuration configuration = new Configuration();
+        configuration.setExecutionMode(mode);
+        configuration.setSenderParallelism(NODES - 1);
+        configuration.setStorageType(StorageType.MEMORY);
+        ArrayList<App<Message, State>> nodes = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            App<Message, State> node = new DiscardingApp("localhost", firstPort + i);
+            node.init(node, configuration);
+            node.snapshotLibrary.updateState(new State());
+            nodes.add(node);
+        }
+        for (App<Message, State> node : nodes.subList(1, NODES)) {
+            node.snapshotLibrary.joinNetwork(nodes.get(0).hostname, nodes.get(0).port);
+        }
+        Thread.sleep(500);
+
+        // every snapshot sends a marker on each of the NODES * (NODES - 1) links
+        long start = System.nanoTime();
+        for (int i = 0; i < SNAPSHOTS; i++) {
+            nodes.get(i % NODES).snapshotLibrary.initiateSnapshotAsync().completed().get(60, TimeUnit.SECONDS);
+        }
+        double snapshotSeconds = (System.nanoTime() - start) / 1e9;
+
+        // one node broadcasts to all the others
+        App<Message, State> sender = nodes.get(0);
+        Message message = new Message("broadcast");
+        start = System.nanoTime();
+        ArrayList<CompletableFuture<Void>> last = new ArrayList<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            App<Message, State> peer = nodes.get(1 + i % (NODES - 1));
+            CompletableFuture<Void> sent = sender.snapshotLibrary.sendMessageAsync(peer.hostname, peer.port, message);
+            if (i >= MESSAGES - (NODES - 1))
+                last.add(sent);
+        }
+        CompletableFuture.allOf(last.toArray(new CompletableFuture<?>[0])).join();
+        double messageSeconds = (System.nanoTime() - start) / 1e9;
+
+        sampler.interrupt();
+        sampler.join();
+        System.out.printf("mode=%s peakPlatformThreads(library=%d rmi=%d) snapshots=%.1f/s messages=%.0f msg/s%n",
+                mode, sampler.peakLibrary, sampler.peakRmi, SNAPSHOTS / snapshotSeconds, MESSAGES / messageSeconds);
+
+        for (App<Message, State> node : nodes) {
+            node.snapshotLibrary.stop();
+        }
+    }
+
+    /**
+     * Samples the platform threads started after it, split between the threads of the RMI runtime and the other ones
+     */
+    private static class ThreadSampler extends Thread {
+        private final HashSet<Long> before = new HashSet<>();
+        private volatile int peakLibrary;
+        private volatile int peakRmi;
+
+        ThreadSampler() {
+            for (long id : ManagementFactory.getThreadMXBean().getAllThreadIds()) {
+                before.add(id);
+            }
+            before.add(threadId());
+        }
+
+        @Override
+        public void run() {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            while (!isInterrupted()) {
+                int library = 0;
+                int rmi = 0;
+                for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+                    if (info == null || before.contains(info.getThreadId()))
+                        continue;
+                    if (info.getThreadName().startsWith("RMI"))
+                        rmi++;
+                    else
+                        library++;
+                }
+                peakLibrary = Math.max(peakLibrary, library);
+                peakRmi = Math.max(peakRmi, rmi);
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * An application that drops the received messages, so that only the library is measured
+     */
+    private static class DiscardingApp extends App<Message, State> {
+        DiscardingApp(String hostname, int port) {
+            super(hostname, port);
+        }
+
+        @Override
+        public void handleIncomingMessage(String senderHostname, int senderPort, Message message) {
+        }
+
+        @Override
+        public void handleIncomingMessages(String senderHostname, int senderPort, List<Message> messages) {
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package library;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NioTransportTest {
+    @Test
+    void lookupReusesTheOpenConnection() throws Exception {
+        // a node that accepts the connections and never answers
+        try (ServerSocket silentNode = new ServerSocket(0)) {
+            AtomicInteger accepted = new AtomicInteger();
+            ArrayList<Socket> connections = new ArrayList<>();
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        connections.add(silentNode.accept());
+                        accepted.incrementAndGet();
+                    }
+                } catch (Exception ignored) {
+                    // the server socket has been closed
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            NioTransport<String> transport = new NioTransport<>(200);
+            RemoteInterface<String> link = transport.lookup("localhost", silentNode.getLocalPort());
+            assertSame(link, transport.lookup("localhost", silentNode.getLocalPort()));
+            Thread.sleep(100);
+            assertEquals(1, accepted.get());
+
+            // the call gives up after the timeout and the next lookup opens a new connection
+            long start = System.nanoTime();
+            assertThrows(RemoteException.class, link::ping);
+            assertTrue(System.nanoTime() - start < 5_000_000_000L);
+            transport.lookup("localhost", silentNode.getLocalPort());
+            Thread.sleep(100);
+            assertEquals(2, accepted.get());
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package library;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NodeStateTest {
+    @Test
+    void transitionsFollowTheLifecycle() {
+        RemoteImplementation<String, String> node = new RemoteImplementation<>();
+        assertEquals(NodeState.STARTED, node.nodeState.get());
+        assertThrows(IllegalStateException.class, () -> node.moveTo(NodeState.STARTED, NodeState.READY));
+
+        assertTrue(node.moveTo(NodeState.STARTED, NodeState.DETACHED));
+        // the node is no longer STARTED: the transition doesn't happen
+        assertFalse(node.moveTo(NodeState.STARTED, NodeState.DETACHED));
+        assertEquals(NodeState.DETACHED, node.nodeState.get());
+
+        assertTrue(node.moveTo(NodeState.DETACHED, NodeState.READY));
+        assertTrue(node.moveTo(NodeState.READY, NodeState.DISCONNECTING));
+        assertThrows(IllegalStateException.class, () -> node.moveTo(NodeState.DISCONNECTING, NodeState.RESTORING));
+        assertTrue(node.moveTo(NodeState.DISCONNECTING, NodeState.DETACHED));
+        assertTrue(node.moveTo(NodeState.DETACHED, NodeState.RESTORING));
+        assertTrue(node.moveTo(NodeState.RESTORING, NodeState.READY));
+        assertFalse(NodeState.READY.canMoveTo(NodeState.STARTED));
+    }
+}
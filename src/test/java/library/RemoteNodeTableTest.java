@@ -0,0 +1,97 @@
+package library;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RemoteNodeTableTest {
+    @Test
+    void addGetRemove() {
+        RemoteNodeTable<String> table = new RemoteNodeTable<>();
+        for (int port = 11000; port < 11100; port++) {
+            assertTrue(table.add(new RemoteNode<>("localhost", port, null)));
+        }
+        assertFalse(table.add(new RemoteNode<>("localhost", 11050, null)));
+        assertEquals(100, table.size());
+
+        for (int port = 11000; port < 11100; port++) {
+            assertEquals(port, table.get("localhost", port).port);
+        }
+        assertNull(table.get("localhost", 11100));
+        assertNull(table.get("127.0.0.1", 11000));
+
+        assertEquals(11050, table.remove("localhost", 11050).port);
+        assertNull(table.remove("localhost", 11050));
+        assertFalse(table.contains("localhost", 11050));
+        assertTrue(table.contains("localhost", 11051));
+        assertEquals(99, table.size());
+
+        table.clear();
+        assertTrue(table.isEmpty());
+        assertNull(table.get("localhost", 11000));
+    }
+
+    @Test
+    void iterationKeepsInsertionOrderAndIgnoresLaterChanges() {
+        RemoteNodeTable<String> table = new RemoteNodeTable<>();
+        table.add(new RemoteNode<>("localhost", 3, null));
+        table.add(new RemoteNode<>("localhost", 1, null));
+        table.add(new RemoteNode<>("localhost", 2, null));
+
+        Iterator<RemoteNode<String>> iterator = table.iterator();
+        table.remove("localhost", 1);
+        table.add(new RemoteNode<>("localhost", 4, null));
+
+        ArrayList<Integer> ports = new ArrayList<>();
+        iterator.forEachRemaining(node -> ports.add(node.port));
+        assertEquals(Arrays.asList(3, 1, 2), ports);
+
+        ports.clear();
+        table.forEach(node -> ports.add(node.port));
+        assertEquals(Arrays.asList(3, 2, 4), ports);
+    }
+
+    @Test
+    void channelsTrackMarkers() {
+        RemoteNodeTable<String> table = new RemoteNodeTable<>();
+        for (int port = 1; port <= 3; port++) {
+            table.add(new RemoteNode<>("localhost", port, null));
+        }
+        // the channel of a removed node is given to the next node added
+        table.remove("localhost", 2);
+        table.add(new RemoteNode<>("localhost", 4, null));
+        assertEquals(1, table.get("localhost", 4).channel);
+
+        MarkerTracker markers = new MarkerTracker(table);
+        assertTrue(markers.close(table.get("localhost", 4).channel));
+        assertFalse(markers.close(table.get("localhost", 4).channel));
+        assertTrue(markers.isClosed(1));
+        assertFalse(markers.isClosed(table.get("localhost", 1).channel));
+        assertFalse(markers.isComplete());
+        assertTrue(markers.close(table.get("localhost", 1).channel));
+        assertTrue(markers.close(table.get("localhost", 3).channel));
+        assertTrue(markers.isComplete());
+    }
+
+    @Test
+    void linksAddedLaterAreNotTracked() {
+        RemoteNodeTable<String> table = new RemoteNodeTable<>();
+        table.add(new RemoteNode<>("localhost", 1, null));
+        table.add(new RemoteNode<>("localhost", 2, null));
+        MarkerTracker markers = new MarkerTracker(table);
+
+        // a node connected after the snapshot started doesn't count towards its completion
+        table.add(new RemoteNode<>("localhost", 3, null));
+        int late = table.get("localhost", 3).channel;
+        assertFalse(markers.isExpected(late));
+        assertThrows(IllegalArgumentException.class, () -> markers.close(late));
+        assertTrue(markers.close(table.get("localhost", 1).channel));
+        assertFalse(markers.isComplete());
+        assertTrue(markers.close(table.get("localhost", 2).channel));
+        assertTrue(markers.isComplete());
+    }
+}
@@ -0,0 +1,69 @@
+package library;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how many messages per second are recorded while 1, 10 and 100 snapshots are running at the same time,
+ * and how long it takes to collect the messages of the snapshots when they complete. It is excluded from the default build, run it with: mvn test -P benchmark
+ */
+@Tag("benchmark")
+public class RunningSnapshotsBenchmark {
+    private static final int PEERS = 8;
+    private static final int BATCHES = 200_000;
+    private static final int BATCH_SIZE = 8;
+
+    @Test
+    public void recordingScalesWithSnapshots() {
+        RemoteNodeTable<Integer> nodes = new RemoteNodeTable<>();
+        ArrayList<Entity> senders = new ArrayList<>();
+        for (int i = 0; i < PEERS; i++) {
+            nodes.add(new RemoteNode<>("localhost", 12000 + i, null));
+            senders.add(new Entity("localhost", 12000 + i));
+        }
+        ArrayList<Integer> batch = new ArrayList<>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(i);
+        }
+
+        run(nodes, senders, batch, 1); // warm up
+        for (int snapshots : new int[]{1, 10, 100}) {
+            run(nodes, senders, batch, snapshots);
+        }
+    }
+
+    /**
+     * Starts the snapshots, records the messages received from all the peers and completes the snapshots
+     */
+    private void run(RemoteNodeTable<Integer> nodes, ArrayList<Entity> senders, List<Integer> batch, int snapshots) {
+        RunningSnapshots<Integer, Integer> running = new RunningSnapshots<>();
+        ArrayList<Snapshot<Integer, Integer>> started = new ArrayList<>();
+        for (int id = 0; id < snapshots; id++) {
+            Snapshot<Integer, Integer> snapshot = new Snapshot<>(id, id, nodes);
+            running.start(snapshot, nodes);
+            started.add(snapshot);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < BATCHES; i++) {
+            int channel = i % PEERS;
+            running.record(channel, senders.get(channel), batch);
+        }
+        double recordSeconds = (System.nanoTime() - start) / 1e9;
+
+        start = System.nanoTime();
+        long recorded = 0;
+        for (Snapshot<Integer, Integer> snapshot : started) {
+            for (int channel = 0; channel < PEERS; channel++) {
+                running.closeChannel(snapshot, channel);
+            }
+            running.complete(snapshot);
+            recorded += snapshot.messages.size();
+        }
+        double completeSeconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("snapshots=%d messages=%d record=%.3fs throughput=%.0f msg/s collected=%d complete=%.3fs%n",
+                snapshots, BATCHES * BATCH_SIZE, recordSeconds, BATCHES * BATCH_SIZE / recordSeconds, recorded, completeSeconds);
+    }
+}
@@ -0,0 +1,50 @@
+package library;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RunningSnapshotsTest {
+    @Test
+    void overlappingSnapshotsShareMessages() {
+        RemoteNodeTable<String> nodes = new RemoteNodeTable<>();
+        nodes.add(new RemoteNode<>("localhost", 1, null));
+        nodes.add(new RemoteNode<>("localhost", 2, null));
+        Entity first = new Entity("localhost", 1);
+        Entity second = new Entity("localhost", 2);
+        RunningSnapshots<String, String> running = new RunningSnapshots<>();
+
+        Snapshot<String, String> a = new Snapshot<>(1, "a", nodes);
+        running.start(a, nodes);
+        running.record(0, first, List.of("m1"));
+        Snapshot<String, String> b = new Snapshot<>(2, "b", nodes);
+        running.start(b, nodes);
+        running.record(0, first, List.of("m2"));
+        running.record(1, second, List.of("m3"));
+        assertSame(b, running.get(2));
+
+        // the marker of the first link closes it for both snapshots
+        assertTrue(running.closeChannel(a, 0));
+        assertFalse(running.closeChannel(a, 0));
+        assertTrue(running.closeChannel(b, 0));
+        running.record(0, first, List.of("m4"));
+        running.record(1, second, List.of("m5"));
+        assertTrue(running.closeChannel(a, 1));
+        running.complete(a);
+        running.record(1, second, List.of("m6"));
+        assertTrue(running.closeChannel(b, 1));
+        running.complete(b);
+
+        assertTrue(running.isEmpty());
+        assertTrue(running.hasCompleted(1));
+        assertTrue(running.hasCompleted(2));
+        assertFalse(running.hasCompleted(3));
+        assertNull(a.markers);
+        assertEquals(List.of(new Envelope<>(first, "m1"), new Envelope<>(first, "m2"), new Envelope<>(second, "m3"), new Envelope<>(second, "m5")), a.messages);
+        assertEquals(List.of(new Envelope<>(first, "m2"), new Envelope<>(second, "m3"), new Envelope<>(second, "m5"), new Envelope<>(second, "m6")), b.messages);
+        // a message recorded for both snapshots is stored once
+        assertSame(a.messages.get(1), b.messages.get(0));
+    }
+}
@@ -0,0 +1,110 @@
+package library;
+
+import library.exceptions.*;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures how many messages per second a node can send when several application threads send at the same time,
+ * from 1 thread to twice the number of cores. It is excluded from the default build, run it with: mvn test -P benchmark
+ */
+@Tag("benchmark")
+public class SendThroughputBenchmark {
+    private static final int PEERS = 4;
+    private static final int MESSAGES_PER_THREAD = 20_000;
+
+    @Test
+    public void sendersScaleWithThreads() throws Exception {
+        App<Message, State> sender = new App<>("localhost", 11501);
+        sender.init(sender);
+        ArrayList<App<Message, State>> peers = new ArrayList<>();
+        for (int i = 0; i < PEERS; i++) {
+            App<Message, State> peer = new DiscardingApp("localhost", 11502 + i);
+            peer.init(peer);
+            peers.add(peer);
+        }
+        for (App<Message, State> peer : peers) {
+            peer.snapshotLibrary.joinNetwork(sender.hostname, sender.port);
+        }
+        Thread.sleep(500);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("cores=" + cores);
+        run(sender, peers, 1); // warm up
+        // the speedup is relative to a single sender thread: beyond the number of cores it only comes from the
+        // larger batches sent by the busier outbound queues, not from threads running in parallel
+        double single = 0;
+        for (int threads = 1; threads <= Math.max(8, 2 * cores); threads *= 2) {
+            long start = System.nanoTime();
+            run(sender, peers, threads);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double throughput = threads * MESSAGES_PER_THREAD / seconds;
+            if (threads == 1)
+                single = throughput;
+            System.out.printf("threads=%d messages=%d time=%.3fs throughput=%.0f msg/s speedup=%.2fx%n",
+                    threads, threads * MESSAGES_PER_THREAD, seconds, throughput, throughput / single);
+        }
+
+        sender.snapshotLibrary.stop();
+        for (App<Message, State> peer : peers) {
+            peer.snapshotLibrary.stop();
+        }
+    }
+
+    private void run(App<Message, State> sender, ArrayList<App<Message, State>> peers, int threads) throws InterruptedException {
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int finalT = t;
+            executorService.submit(() -> {
+                try {
+                    CompletableFuture<Void> last = null;
+                    Message message = new Message("MSG from " + finalT);
+                    for (int i = 0; i < MESSAGES_PER_THREAD; i++) {
+                        App<Message, State> peer = peers.get((finalT + i) % peers.size());
+                        last = sender.snapshotLibrary.sendMessageAsync(peer.hostname, peer.port, message);
+                    }
+                    last.join();
+                } catch (RemoteNodeNotFound | NotInitialized | RestoreInProgress | OperationForbidden e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        executorService.shutdown();
+        // the queues of the other peers may still be draining: wait for a message sent to each of them
+        for (App<Message, State> peer : peers) {
+            try {
+                sender.snapshotLibrary.sendMessageAsync(peer.hostname, peer.port, new Message("END")).join();
+            } catch (RemoteNodeNotFound | NotInitialized | RestoreInProgress | OperationForbidden e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * An application that drops the received messages, so that only the library is measured
+     */
+    private static class DiscardingApp extends App<Message, State> {
+        DiscardingApp(String hostname, int port) {
+            super(hostname, port);
+        }
+
+        @Override
+        public void handleIncomingMessage(String senderHostname, int senderPort, Message message) {
+        }
+
+        @Override
+        public void handleIncomingMessages(String senderHostname, int senderPort, List<Message> messages) {
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package library;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotStoreTest {
+    private static final Path FOLDER = Paths.get("store_test_folder");
+
+    @Test
+    void allStoresSaveAndCollect() throws IOException, ClassNotFoundException {
+        SnapshotStore[] stores = {
+                FileSnapshotStore.forFolder(FOLDER.resolve("file")),
+                LogSnapshotStore.forFolder(FOLDER.resolve("log")),
+                new MemorySnapshotStore(false),
+                new MemorySnapshotStore(true)
+        };
+        for (SnapshotStore store : stores) {
+            ArrayList<MockDeltaState> states = writeSnapshots(store, 6, new DeltaChain<>(2), Compression.DEFLATE);
+            assertEquals(105, store.getLastSnapshotId("localhost", 5));
+            assertEquals(-1, store.getLastSnapshotId("localhost", 6));
+            for (int i = 0; i < 6; i++) {
+                assertEquals(states.get(i), store.<MockDeltaState, MockMessage1>read(100 + i, "localhost", 5).state, store.getClass().getSimpleName());
+            }
+
+            // saved as base, delta, delta, base, delta, delta: the last one needs the three before it
+            RetentionPolicy policy = new RetentionPolicy();
+            policy.setMaxSnapshots(1);
+            List<SnapshotManifest.Entry> removed = store.collect(policy, "localhost", 5);
+            assertEquals(List.of(100, 101, 102), removed.stream().map(entry -> entry.snapshotId).sorted().collect(Collectors.toList()));
+            assertTrue(removed.stream().allMatch(entry -> entry.size > 0));
+            assertNull(store.read(100, "localhost", 5).state);
+
+            // the snapshots survive the release of the resources of the node
+            store.release("localhost", 5);
+            for (int i = 3; i < 6; i++) {
+                assertEquals(states.get(i), store.<MockDeltaState, MockMessage1>read(100 + i, "localhost", 5).state, store.getClass().getSimpleName());
+            }
+            store.clear();
+            assertEquals(-1, store.getLastSnapshotId("localhost", 5));
+        }
+    }
+
+    @Test
+    void logIsCompacted() throws IOException, ClassNotFoundException {
+        LogSnapshotStore store = LogSnapshotStore.forFolder(FOLDER.resolve("compaction"));
+        ArrayList<MockDeltaState> states = writeSnapshots(store, 6, null, Compression.NONE);
+        Path nodeFolder = FOLDER.resolve("compaction").resolve("localhost_5");
+        long logSize = Files.size(nodeFolder.resolve("snapshots-0.log"));
+
+        // only the 2 most recent full snapshots are kept: the deleted ones take more space, the log is rewritten
+        RetentionPolicy policy = new RetentionPolicy();
+        policy.setMaxSnapshots(2);
+        store.collect(policy, "localhost", 5);
+        try (Stream<Path> files = Files.list(nodeFolder)) {
+            assertEquals(List.of("snapshots-1.log"), files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(".log")).collect(Collectors.toList()));
+        }
+        assertTrue(Files.size(nodeFolder.resolve("snapshots-1.log")) < logSize);
+
+        // the offsets in the manifest point to the new log, also after reopening it
+        store.release("localhost", 5);
+        for (int i = 4; i < 6; i++) {
+            assertEquals(states.get(i), store.<MockDeltaState, MockMessage1>read(100 + i, "localhost", 5).state);
+        }
+        store.clear();
+    }
+
+    @Test
+    void reusedIdReplacesThePreviousSnapshot() throws IOException, ClassNotFoundException {
+        SnapshotStore[] stores = {
+                FileSnapshotStore.forFolder(FOLDER.resolve("file-reuse")),
+                LogSnapshotStore.forFolder(FOLDER.resolve("log-reuse")),
+                new MemorySnapshotStore(false)
+        };
+        for (SnapshotStore store : stores) {
+            // the node is restarted between the two snapshots: the ids start again from the same value
+            writeSnapshots(store, 2, null, Compression.NONE);
+            ArrayList<MockDeltaState> states = writeSnapshots(store, 1, null, Compression.NONE);
+            assertEquals(states.get(0), store.<MockDeltaState, MockMessage1>read(100, "localhost", 5).state, store.getClass().getSimpleName());
+
+            // the replaced snapshot is deleted by the next collection, the others are kept
+            RetentionPolicy policy = new RetentionPolicy();
+            policy.setMaxSnapshots(10);
+            List<SnapshotManifest.Entry> removed = store.collect(policy, "localhost", 5);
+            assertEquals(List.of("1_100"), removed.stream().map(entry -> entry.name).collect(Collectors.toList()), store.getClass().getSimpleName());
+            assertEquals(states.get(0), store.<MockDeltaState, MockMessage1>read(100, "localhost", 5).state);
+            assertNotNull(store.read(101, "localhost", 5).state);
+            assertEquals(List.of(), store.collect(policy, "localhost", 5));
+            store.clear();
+        }
+    }
+
+    @Test
+    void stoppedPersisterRejectsSnapshots() throws Exception {
+        SnapshotPersister<MockDeltaState, MockMessage1> persister = new SnapshotPersister<>("test-persister", 1, new MemorySnapshotStore(false), Compression.NONE);
+        persister.shutdown();
+        CompletableFuture<Long> saved = persister.persist(new Snapshot<>(100, new MockDeltaState()), "localhost", 5, null);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> saved.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(RejectedExecutionException.class, e.getCause());
+        persister.flush().get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Saves snapshots of a growing map on the node localhost:5, with ids starting from 100
+     * @param deltaChain the delta chain to use, null to save the full states
+     * @param compression the compression of the snapshots
+     * @return the saved states
+     */
+    private ArrayList<MockDeltaState> writeSnapshots(SnapshotStore store, int count, DeltaChain<MockDeltaState> deltaChain, Compression compression) throws IOException {
+        ArrayList<MockDeltaState> states = new ArrayList<>();
+        MockDeltaState state = new MockDeltaState();
+        for (int i = 0; i < count; i++) {
+            MockDeltaState next = new MockDeltaState();
+            next.entries.putAll(state.entries);
+            next.entries.put("key" + i, "value" + i);
+            state = next;
+            states.add(state);
+            Snapshot<MockDeltaState, MockMessage1> snapshot = new Snapshot<>(100 + i, state);
+            snapshot.messages.add(new Envelope<>(new Entity("localhost", 6), new MockMessage1('m', "message" + i)));
+            store.write(snapshot, "localhost", 5, deltaChain, compression);
+        }
+        return states;
+    }
+}
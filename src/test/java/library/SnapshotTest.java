@@ -3,13 +3,24 @@ package library;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serial;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Objects;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class SnapshotTest {
     @Test
@@ -135,6 +146,131 @@ public class SnapshotTest {
         assertEquals(snapshot1a.connectedNodes, readSnap1.connectedNodes);
     }
 
+    @Test
+    void writeDeltaFileTest() throws IOException, ClassNotFoundException {
+        DeltaChain<MockDeltaState> deltaChain = new DeltaChain<>(2);
+        ArrayList<Snapshot<MockDeltaState,MockMessage1>> runningSnapshots = new ArrayList<>();
+        ArrayList<MockDeltaState> states = new ArrayList<>();
+
+        MockDeltaState state = new MockDeltaState();
+        for (int i = 0; i < 5; i++) {
+            MockDeltaState next = new MockDeltaState();
+            next.entries.putAll(state.entries);
+            next.entries.put("key" + i, "value" + i);
+            state = next;
+            states.add(state);
+            Snapshot<MockDeltaState,MockMessage1> snapshot = new Snapshot<>(("delta" + i).hashCode(), state);
+            runningSnapshots.add(snapshot);
+            Storage.writeFile(runningSnapshots, snapshot.snapshotId, "localhost", 1, deltaChain);
+        }
+
+        // base, delta, delta, base, delta
+        List<Path> segments;
+        try (Stream<Path> files = Files.walk(Paths.get("storage_folder", "localhost_1"))) {
+            segments = files.filter(file -> file.endsWith(SnapshotSegment.FILE_NAME)).collect(Collectors.toList());
+        }
+        int deltas = 0;
+        for (Path segment : segments) {
+            if (SnapshotSegment.readState(segment).baseFolder != null)
+                deltas++;
+        }
+        assertEquals(3, deltas);
+        for (int i = 0; i < 5; i++) {
+            Snapshot<MockDeltaState,MockMessage1> readSnap = Storage.readFile(("delta" + i).hashCode(), "localhost", 1);
+            assertEquals(states.get(i), readSnap.state);
+        }
+
+        Storage.cleanStorageFolder();
+    }
+
+    @Test
+    void compressedSegmentTest() throws IOException, ClassNotFoundException {
+        MockDeltaState state = new MockDeltaState();
+        for (int i = 0; i < 200; i++) {
+            state.entries.put("key" + i, "value" + i);
+        }
+        Snapshot<MockDeltaState,MockMessage1> snapshot = new Snapshot<>(1, state);
+        Entity sender = new Entity("192.168.0.1", 123);
+        for (int i = 0; i < 500; i++) {
+            snapshot.messages.add(new Envelope<>(sender, new MockMessage1('q', "Hello World " + i)));
+        }
+
+        long uncompressed = SnapshotSegment.write(new ByteArrayOutputStream(), snapshot, null, null, Compression.NONE);
+        for (Compression compression : new Compression[]{Compression.DEFLATE, Compression.FAST}) {
+            ByteArrayOutputStream segment = new ByteArrayOutputStream();
+            long compressed = SnapshotSegment.write(segment, snapshot, null, null, compression);
+            assertEquals(segment.size(), compressed);
+            assertTrue(compressed * 3 < uncompressed, compression + ": " + compressed + " bytes out of " + uncompressed);
+
+            // the codec is read from the segment
+            Snapshot<MockDeltaState,MockMessage1> readSnap = new Snapshot<>(1);
+            SnapshotSegment.StateRecord stateRecord = SnapshotSegment.read(new ByteArrayInputStream(segment.toByteArray()), "segment", readSnap);
+            assertEquals(state, stateRecord.value);
+            assertEquals(snapshot.messages, readSnap.messages);
+            assertEquals(state, SnapshotSegment.readState(new ByteArrayInputStream(segment.toByteArray()), "segment").value);
+        }
+    }
+
+    @Test
+    void retentionTest() throws IOException, ClassNotFoundException {
+        DeltaChain<MockDeltaState> deltaChain = new DeltaChain<>(2);
+        ArrayList<Snapshot<MockDeltaState,MockMessage1>> runningSnapshots = new ArrayList<>();
+        ArrayList<MockDeltaState> states = new ArrayList<>();
+        MockDeltaState state = new MockDeltaState();
+        for (int i = 0; i < 5; i++) {
+            MockDeltaState next = new MockDeltaState();
+            next.entries.putAll(state.entries);
+            next.entries.put("key" + i, "value" + i);
+            state = next;
+            states.add(state);
+            runningSnapshots.add(new Snapshot<>(100 + i, state));
+            Storage.writeFile(runningSnapshots, 100 + i, "localhost", 4, deltaChain);
+        }
+        RetentionPolicy policy = new RetentionPolicy();
+        policy.setMaxSnapshots(1);
+
+        // saved as base, delta, delta, base, delta: the last one needs its base, the pinned one needs the first
+        Storage.pin(101, "localhost", 4);
+        List<SnapshotManifest.Entry> removed = Storage.collect(policy, "localhost", 4);
+        assertEquals(List.of(102), removed.stream().map(entry -> entry.snapshotId).collect(Collectors.toList()));
+        assertTrue(removed.get(0).size > 0);
+        assertNull(Storage.readFile(102, "localhost", 4).state);
+        assertEquals(states.get(1), Storage.readFile(101, "localhost", 4).state);
+        assertEquals(states.get(4), Storage.readFile(104, "localhost", 4).state);
+
+        Storage.pin(null, "localhost", 4);
+        removed = Storage.collect(policy, "localhost", 4);
+        assertEquals(2, removed.size());
+        assertEquals(104, Storage.getLastSnapshotId("localhost", 4));
+        assertEquals(states.get(4), Storage.readFile(104, "localhost", 4).state);
+        try (Stream<Path> folders = Files.list(Paths.get("storage_folder", "localhost_4"))) {
+            assertEquals(2, folders.filter(Files::isDirectory).count());
+        }
+        assertTrue(Storage.collect(policy, "localhost", 4).isEmpty());
+
+        Storage.cleanStorageFolder();
+    }
+
+    @Test
+    void manifestLookupTest() throws IOException, ClassNotFoundException {
+        // the ids are substrings of each other: a lookup by folder name would mix them up
+        ArrayList<Snapshot<MockState1,MockMessage1>> runningSnapshots = new ArrayList<>();
+        for (int id : new int[]{11, 1, 111}) {
+            runningSnapshots.add(new Snapshot<>(id, new MockState1("state" + id, id)));
+            Storage.writeFile(runningSnapshots, id, "localhost", 2);
+        }
+
+        assertEquals(111, Storage.getLastSnapshotId("localhost", 2));
+        for (int id : new int[]{11, 1, 111}) {
+            Snapshot<MockState1,MockMessage1> readSnap = Storage.readFile(id, "localhost", 2);
+            assertEquals(new MockState1("state" + id, id), readSnap.state);
+        }
+        assertNull(Storage.readFile(7, "localhost", 2).state);
+        assertEquals(-1, Storage.getLastSnapshotId("localhost", 3));
+
+        Storage.cleanStorageFolder();
+    }
+
 
 
 
@@ -169,6 +305,40 @@ class MockState1 implements Serializable {
     }
 }
 
+/**
+ * A map whose deltas are the entries added since the previous state
+ */
+class MockDeltaState implements DeltaState<MockDeltaState> {
+    HashMap<String, String> entries = new HashMap<>();
+
+    @Override
+    public Serializable diff(MockDeltaState previous) {
+        HashMap<String, String> added = new HashMap<>(entries);
+        added.keySet().removeAll(previous.entries.keySet());
+        return added;
+    }
+
+    @Override
+    public MockDeltaState apply(Serializable delta) {
+        MockDeltaState next = new MockDeltaState();
+        next.entries.putAll(entries);
+        next.entries.putAll((HashMap<String, String>) delta);
+        return next;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return entries.equals(((MockDeltaState) o).entries);
+    }
+
+    @Override
+    public int hashCode() {
+        return entries.hashCode();
+    }
+}
+
 class MockState2 implements Serializable {
 
     @Serial
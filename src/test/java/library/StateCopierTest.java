@@ -0,0 +1,47 @@
+package library;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StateCopierTest {
+    @Test
+    void serializationMakesDeepCopies() throws IOException {
+        StateCopier<State> copier = StateCopier.serialization();
+        State state = new State(1);
+        state.messages.add(new Message("first"));
+
+        // the thread buffer is reused by consecutive copies
+        for (int i = 0; i < 3; i++) {
+            State copy = copier.copy(state);
+            assertNotSame(state, copy);
+            assertEquals(state, copy);
+            assertEquals(state.messages.size(), copy.messages.size());
+            assertNotSame(state.messages, copy.messages);
+            state.messages.add(new Message("message " + i));
+        }
+    }
+
+    @Test
+    void immutableAndCopyFunction() throws IOException {
+        State state = new State(2);
+        assertSame(state, StateCopier.<State>immutable().copy(state));
+
+        StateCopier<State> copyConstructor = original -> new State(original.appId);
+        State copy = copyConstructor.copy(state);
+        assertNotSame(state, copy);
+        assertEquals(state, copy);
+    }
+
+    @Test
+    void libraryUsesTheCopierOfItsStateType() throws Exception {
+        DistributedSnapshot<State, Message> library = new DistributedSnapshot<>(StateCopier.immutable());
+        library.init("localhost", 11321, new App<>("localhost", 11321));
+        State state = new State(3);
+        library.updateState(state);
+        assertSame(state, library.remoteImplementation.currentState);
+        library.stop();
+    }
+}
@@ -0,0 +1,135 @@
+package library;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StubCacheTest {
+    @Test
+    void concurrentLookupsOfANodeShareOne() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        FakeTransport transport = new FakeTransport(release);
+        StubCache<Integer> stubs = new StubCache<>("test-stubs", transport, 0);
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        ArrayList<Future<RemoteInterface<Integer>>> lookups = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            lookups.add(callers.submit(() -> stubs.get("localhost", 1)));
+        }
+        Thread.sleep(100);
+        release.countDown();
+        RemoteInterface<Integer> stub = lookups.get(0).get(5, TimeUnit.SECONDS);
+        for (Future<RemoteInterface<Integer>> lookup : lookups) {
+            assertSame(stub, lookup.get(5, TimeUnit.SECONDS));
+        }
+        assertSame(stub, stubs.get("localhost", 1));
+        assertEquals(1, transport.lookups.get());
+        callers.shutdown();
+    }
+
+    @Test
+    void failedStubIsRefreshedOnce() throws Exception {
+        FakeTransport transport = new FakeTransport(null);
+        StubCache<Integer> stubs = new StubCache<>("test-stubs", transport, 0);
+        RemoteInterface<Integer> failed = stubs.get("localhost", 1);
+
+        // the first sender that fails looks the node up again, the next ones get the new reference
+        RemoteInterface<Integer> refreshed = stubs.refresh("localhost", 1, failed);
+        assertNotSame(failed, refreshed);
+        assertSame(refreshed, stubs.refresh("localhost", 1, failed));
+        assertSame(refreshed, stubs.get("localhost", 1));
+        assertEquals(2, transport.lookups.get());
+    }
+
+    @Test
+    void unreachableNodeIsEvicted() throws Exception {
+        FakeTransport transport = new FakeTransport(null);
+        StubCache<Integer> stubs = new StubCache<>("test-stubs", transport, 0);
+        stubs.get("localhost", 1);
+        RemoteInterface<Integer> restarted = stubs.get("localhost", 2);
+        stubs.get("localhost", 3);
+
+        // localhost:1 is stopped, localhost:2 is restarted: the old reference doesn't answer but the lookup succeeds
+        transport.down.add(1);
+        transport.stale.add(restarted);
+        stubs.checkHealth();
+        assertEquals(2, stubs.size());
+        assertNotSame(restarted, stubs.get("localhost", 2));
+        assertThrows(NotBoundException.class, () -> stubs.get("localhost", 1));
+
+        // once back, the node is looked up again
+        transport.down.remove(1);
+        assertNotNull(stubs.get("localhost", 1));
+        assertEquals(3, stubs.size());
+    }
+
+    @Test
+    void healthChecksRunInBackground() throws Exception {
+        FakeTransport transport = new FakeTransport(null);
+        StubCache<Integer> stubs = new StubCache<>("test-stubs", transport, 50);
+        stubs.get("localhost", 1);
+        transport.down.add(1);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stubs.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, stubs.size());
+        stubs.shutdown();
+    }
+
+    /**
+     * A transport returning a new reference at each lookup, whose calls fail for the stopped nodes
+     */
+    private static class FakeTransport implements Transport<Integer> {
+        final AtomicInteger lookups = new AtomicInteger();
+        final Set<Integer> down = ConcurrentHashMap.newKeySet();
+        final Set<Object> stale = ConcurrentHashMap.newKeySet();
+        private final CountDownLatch release;
+
+        FakeTransport(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public void export(String hostname, int port, RemoteInterface<Integer> localNode) {
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public RemoteInterface<Integer> lookup(String hostname, int port) throws RemoteException, NotBoundException {
+            lookups.incrementAndGet();
+            if (release != null) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RemoteException("Interrupted", e);
+                }
+            }
+            if (down.contains(port))
+                throw new NotBoundException(hostname + ":" + port);
+            return (RemoteInterface<Integer>) Proxy.newProxyInstance(RemoteInterface.class.getClassLoader(), new Class<?>[]{RemoteInterface.class}, (proxy, method, arguments) -> {
+                if (method.getDeclaringClass() == Object.class)
+                    return method.getName().equals("equals") ? proxy == arguments[0] : method.getName().equals("hashCode") ? System.identityHashCode(proxy) : "stub of " + port;
+                if (down.contains(port) || stale.contains(proxy))
+                    throw new RemoteException(hostname + ":" + port + " is not reachable");
+                return null;
+            });
+        }
+
+        @Override
+        public void unexport() {
+        }
+    }
+}